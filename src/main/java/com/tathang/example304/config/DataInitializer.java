@@ -3,14 +3,30 @@ package com.tathang.example304.config;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
 
 import com.tathang.example304.model.ERole;
 import com.tathang.example304.model.Role;
 import com.tathang.example304.repository.RoleRepository;
 
+import lombok.extern.slf4j.Slf4j;
+
+@Slf4j
 @Configuration
 public class DataInitializer {
 
+    // Partial index chỉ trên sản phẩm chưa archive (JPA @Index không khai báo được WHERE).
+    // Điều kiện giống hệt WHERE của các query menu để Postgres dùng được index.
+    private static final String[] PARTIAL_INDEXES = {
+            "CREATE INDEX IF NOT EXISTS idx_products_active_id ON products (id)"
+                    + " WHERE archive = false OR archive IS NULL",
+            "CREATE INDEX IF NOT EXISTS idx_products_active_category_id ON products (category_id, id)"
+                    + " WHERE archive = false OR archive IS NULL",
+            "CREATE INDEX IF NOT EXISTS idx_products_archived_updated_at ON products (updated_at)"
+                    + " WHERE archive = true"
+    };
+
     @Bean
     CommandLineRunner initRoles(RoleRepository roleRepository) {
         return args -> {
@@ -22,4 +38,49 @@ public class DataInitializer {
             }
         };
     }
+
+    @Bean
+    CommandLineRunner createPartialIndexes(JdbcTemplate jdbcTemplate) {
+        return args -> {
+            for (String sql : PARTIAL_INDEXES) {
+                try {
+                    jdbcTemplate.execute(sql);
+                } catch (Exception e) {
+                    // DB không hỗ trợ partial index (vd. H2 khi test) thì bỏ qua
+                    log.warn("⚠️ Skip partial index: {}", e.getMessage());
+                }
+            }
+        };
+    }
+
+    // Sản phẩm cũ chưa có updated_at: điền để phân trang theo updatedAt (keyset) không bỏ sót
+    @Bean
+    CommandLineRunner fillProductUpdatedAt(JdbcTemplate jdbcTemplate) {
+        return args -> {
+            int filled = jdbcTemplate.update("UPDATE products SET updated_at = COALESCE(created_at, CURRENT_TIMESTAMP)"
+                    + " WHERE updated_at IS NULL");
+            if (filled > 0) {
+                log.info("🕒 Filled updated_at for {} products", filled);
+            }
+        };
+    }
+
+    // Bộ đếm version cho delta sync. Lần đầu: tiếp nối id cũ của catalog_changes để version
+    // client đang giữ (trước đây là id) vẫn dùng được, và điền version cho các dòng cũ.
+    @Bean
+    CommandLineRunner initCatalogVersion(JdbcTemplate jdbcTemplate) {
+        return args -> {
+            try {
+                jdbcTemplate.update("INSERT INTO catalog_versions (id, version)"
+                        + " SELECT 1, COALESCE(MAX(id), 0) FROM catalog_changes"
+                        + " WHERE NOT EXISTS (SELECT 1 FROM catalog_versions WHERE id = 1)");
+            } catch (DuplicateKeyException e) {
+                // Node khác khởi động cùng lúc đã tạo
+            }
+            int filled = jdbcTemplate.update("UPDATE catalog_changes SET version = id WHERE version IS NULL");
+            if (filled > 0) {
+                log.info("🔢 Filled version for {} catalog changes", filled);
+            }
+        };
+    }
 }
@@ -1,15 +1,25 @@
 package com.tathang.example304.config;
 
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.web.servlet.config.annotation.ResourceHandlerRegistry;
+import org.springframework.web.filter.ShallowEtagHeaderFilter;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
 @Configuration
 public class WebConfig implements WebMvcConfigurer {
 
-    @Override
-    public void addResourceHandlers(ResourceHandlerRegistry registry) {
-        registry.addResourceHandler("/uploads/**")
-                .addResourceLocations("file:uploads/");
+    // /uploads/** do UploadController phục vụ từ file.upload-dir (cache header, Range, sendfile)
+
+    // ETag theo hash body chỉ cho order/bill của khách (/orders, /orders/{id}, /orders/{id}/bill...).
+    // Menu/danh mục/sản phẩm đã tự đặt ETag theo version và trả body serialize sẵn, không đi qua
+    // filter để khỏi bị chép vào bộ đệm và băm MD5 ở mỗi request.
+    @Bean
+    public FilterRegistrationBean<ShallowEtagHeaderFilter> customerEtagFilter() {
+        FilterRegistrationBean<ShallowEtagHeaderFilter> registration = new FilterRegistrationBean<>(
+                new ShallowEtagHeaderFilter());
+        registration.addUrlPatterns("/api/customer/orders/*");
+        registration.setName("customerEtagFilter");
+        return registration;
     }
 }
@@ -1,16 +1,31 @@
 package com.tathang.example304.controllers;
 
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import com.tathang.example304.model.*;
+import com.tathang.example304.payload.request.ProductPatchRequest;
+import com.tathang.example304.payload.response.ProductPageResponse;
 import com.tathang.example304.security.services.*;
 
+import jakarta.servlet.http.HttpServletRequest;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.math.BigDecimal;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.util.Optional;
 
@@ -26,10 +41,27 @@ public class AdminController {
     private final FileStorageService fileStorageService;
     private final UserService userService;
     private final RoleService roleService;
+    private final CatalogSnapshotService catalogSnapshotService;
+    private final PromotionPriceService promotionPriceService;
+    private final ProductCsvService productCsvService;
+    private final ProductPurgeService productPurgeService;
+    private final LowStockWatcher lowStockWatcher;
+    private final ImageVariantService imageVariantService;
+    private final ChunkedUploadService chunkedUploadService;
+    private final UploadGarbageCollector uploadGarbageCollector;
+    private final ImageProcessingService imageProcessingService;
+    private final UploadCache uploadCache;
+    private final StockReservationService stockReservationService;
 
     public AdminController(ProductService productService, CategoryService categoryService,
             PromotionService promotionService, ReportService reportService,
-            FileStorageService fileStorageService, UserService userService, RoleService roleService) {
+            FileStorageService fileStorageService, UserService userService, RoleService roleService,
+            CatalogSnapshotService catalogSnapshotService, PromotionPriceService promotionPriceService,
+            ProductCsvService productCsvService, ProductPurgeService productPurgeService,
+            LowStockWatcher lowStockWatcher, ImageVariantService imageVariantService,
+            ChunkedUploadService chunkedUploadService, UploadGarbageCollector uploadGarbageCollector,
+            ImageProcessingService imageProcessingService, UploadCache uploadCache,
+            StockReservationService stockReservationService) {
         this.productService = productService;
         this.categoryService = categoryService;
         this.promotionService = promotionService;
@@ -37,26 +69,112 @@ public class AdminController {
         this.fileStorageService = fileStorageService;
         this.userService = userService;
         this.roleService = roleService;
+        this.catalogSnapshotService = catalogSnapshotService;
+        this.promotionPriceService = promotionPriceService;
+        this.productCsvService = productCsvService;
+        this.productPurgeService = productPurgeService;
+        this.lowStockWatcher = lowStockWatcher;
+        this.imageVariantService = imageVariantService;
+        this.chunkedUploadService = chunkedUploadService;
+        this.uploadGarbageCollector = uploadGarbageCollector;
+        this.imageProcessingService = imageProcessingService;
+        this.uploadCache = uploadCache;
+        this.stockReservationService = stockReservationService;
     }
 
     // === PRODUCT MANAGEMENT ===
 
     // === GET PRODUCTS ===
     @GetMapping("/products")
-    public ResponseEntity<List<Product>> getAllProducts() {
+    public ResponseEntity<List<Product>> getAllProducts(WebRequest request) {
+        String etag = catalogSnapshotService.etag("admin-products");
+        if (request.checkNotModified(etag)) {
+            return null;
+        }
         try {
             List<Product> products = productService.getAllProducts();
-            return ResponseEntity.ok(products);
+            return ResponseEntity.ok()
+                    .eTag(etag)
+                    .cacheControl(CacheControl.noCache().cachePrivate())
+                    .body(products);
         } catch (Exception e) {
             return ResponseEntity.badRequest().build();
         }
     }
 
+    @GetMapping("/products/page")
+    public ResponseEntity<?> getProductPage(
+            @RequestParam(defaultValue = "20") int size,
+            @RequestParam(defaultValue = "name") String sort,
+            @RequestParam(defaultValue = "asc") String direction,
+            @RequestParam(required = false) Long categoryId,
+            @RequestParam(required = false) Boolean archive,
+            @RequestParam(required = false) BigDecimal minPrice,
+            @RequestParam(required = false) BigDecimal maxPrice,
+            @RequestParam(required = false) String cursor,
+            WebRequest request) {
+        String etag = catalogSnapshotService.etag("admin-products-page");
+        if (request.checkNotModified(etag)) {
+            return null;
+        }
+        try {
+            ProductPageResponse<Product> page = productService.getProductPage(
+                    size, sort, direction, categoryId, archive, minPrice, maxPrice, cursor);
+            return ResponseEntity.ok()
+                    .eTag(etag)
+                    .cacheControl(CacheControl.noCache().cachePrivate())
+                    .body(page);
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body("Không thể tải danh sách sản phẩm: " + e.getMessage());
+        }
+    }
+
+    // === BULK PATCH (giá / tồn kho / archive) ===
+    @PatchMapping("/products/bulk")
+    public ResponseEntity<?> bulkPatchProducts(@RequestBody List<ProductPatchRequest> patches) {
+        try {
+            return ResponseEntity.ok(productService.bulkPatch(patches));
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body("Cập nhật hàng loạt thất bại: " + e.getMessage());
+        }
+    }
+
+    // === CSV IMPORT / EXPORT ===
+    @PostMapping("/products/import")
+    public ResponseEntity<?> importProducts(@RequestParam("file") MultipartFile file) {
+        if (file == null || file.isEmpty()) {
+            return ResponseEntity.badRequest().body("File CSV trống");
+        }
+        try (InputStream input = file.getInputStream()) {
+            return ResponseEntity.ok(productCsvService.importCsv(input));
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body("Import thất bại: " + e.getMessage());
+        }
+    }
+
+    @GetMapping("/products/export")
+    public ResponseEntity<StreamingResponseBody> exportProducts() {
+        String filename = "products-" + LocalDate.now() + ".csv";
+        return ResponseEntity.ok()
+                .contentType(new MediaType("text", "csv", StandardCharsets.UTF_8))
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + filename + "\"")
+                .body(productCsvService::exportCsv);
+    }
+
     @GetMapping("/products/{id}")
-    public ResponseEntity<Product> getProductById(@PathVariable Long id) {
+    public ResponseEntity<Product> getProductById(@PathVariable Long id, WebRequest request) {
+        String etag = catalogSnapshotService.etag("admin-product-" + id);
+        if (request.checkNotModified(etag)) {
+            return null;
+        }
         try {
             Product product = productService.getProductById(id);
-            return product != null ? ResponseEntity.ok(product) : ResponseEntity.notFound().build();
+            return product != null
+                    ? ResponseEntity.ok()
+                            .eTag(etag)
+                            .cacheControl(CacheControl.noCache().cachePrivate())
+                            .body(product)
+                    : ResponseEntity.notFound().build();
         } catch (Exception e) {
             return ResponseEntity.notFound().build();
         }
@@ -161,24 +279,90 @@ public class AdminController {
         return deleted ? ResponseEntity.ok().build() : ResponseEntity.notFound().build();
     }
 
+    @PostMapping("/products/{id}/restore")
+    public ResponseEntity<?> restoreProduct(@PathVariable Long id) {
+        try {
+            return ResponseEntity.ok(productService.restoreProduct(id));
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body("Không thể khôi phục sản phẩm: " + e.getMessage());
+        }
+    }
+
+    // Chạy ngay job dọn sản phẩm archive (bình thường chạy theo lịch nếu catalog.purge.enabled=true)
+    @PostMapping("/products/purge-archived")
+    public ResponseEntity<Map<String, Object>> purgeArchivedProducts() {
+        return ResponseEntity.ok(Map.of("purged", productPurgeService.purgeArchived()));
+    }
+
+    // === LOW STOCK ===
+    @GetMapping("/products/low-stock")
+    public ResponseEntity<Map<String, Object>> getLowStockProducts() {
+        List<LowStockWatcher.LowStockItem> items = lowStockWatcher.getLowStock();
+        Map<String, Object> response = new HashMap<>();
+        response.put("threshold", lowStockWatcher.getThreshold());
+        response.put("count", items.size());
+        response.put("items", items);
+        return ResponseEntity.ok(response);
+    }
+
+    // Server-Sent Events: SNAPSHOT khi kết nối, sau đó LOW_STOCK / STOCK_UPDATED / RESTOCKED / RESET
+    @GetMapping(value = "/products/low-stock/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamLowStockProducts() {
+        return lowStockWatcher.subscribe();
+    }
+
+    // === STOCK RESERVATIONS (giữ hàng cho đơn chưa thanh toán) ===
+    @GetMapping("/stock/reservations")
+    public ResponseEntity<Map<String, Object>> getStockReservationStats() {
+        return ResponseEntity.ok(stockReservationService.stats());
+    }
+
+    // Nạp lại lịch từ DB và trả hàng các đơn đã hết hạn ngay, không chờ lần chạy kế tiếp
+    @PostMapping("/stock/reservations/sweep")
+    public ResponseEntity<?> sweepStockReservations() {
+        try {
+            stockReservationService.reconcile();
+            stockReservationService.sweep();
+            return ResponseEntity.ok(stockReservationService.stats());
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
     // === CATEGORY MANAGEMENT ===
 
     // === GET CATEGORIES ===
     @GetMapping("/categories")
-    public ResponseEntity<List<Category>> getAllCategories() {
+    public ResponseEntity<List<Category>> getAllCategories(WebRequest request) {
+        String etag = catalogSnapshotService.catalogEtag("admin-categories");
+        if (request.checkNotModified(etag)) {
+            return null;
+        }
         try {
             List<Category> categories = categoryService.getAllCategories();
-            return ResponseEntity.ok(categories);
+            return ResponseEntity.ok()
+                    .eTag(etag)
+                    .cacheControl(CacheControl.noCache().cachePrivate())
+                    .body(categories);
         } catch (Exception e) {
             return ResponseEntity.badRequest().build();
         }
     }
 
     @GetMapping("/categories/{id}")
-    public ResponseEntity<Category> getCategoryById(@PathVariable Long id) {
+    public ResponseEntity<Category> getCategoryById(@PathVariable Long id, WebRequest request) {
+        String etag = catalogSnapshotService.catalogEtag("admin-category-" + id);
+        if (request.checkNotModified(etag)) {
+            return null;
+        }
         try {
             Optional<Category> category = categoryService.getCategoryById(id);
-            return category.map(ResponseEntity::ok).orElse(ResponseEntity.notFound().build());
+            return category
+                    .map(c -> ResponseEntity.ok()
+                            .eTag(etag)
+                            .cacheControl(CacheControl.noCache().cachePrivate())
+                            .body(c))
+                    .orElse(ResponseEntity.notFound().build());
         } catch (Exception e) {
             return ResponseEntity.notFound().build();
         }
@@ -422,6 +606,140 @@ public class AdminController {
         }
     }
 
+    // === CATALOG SNAPSHOT ===
+    @GetMapping("/catalog/snapshot")
+    public ResponseEntity<Map<String, Object>> getCatalogSnapshotInfo() {
+        CatalogSnapshotService.Snapshot snapshot = catalogSnapshotService.getSnapshot();
+
+        Map<String, Object> info = new HashMap<>();
+        info.put("version", snapshot.getVersion());
+        info.put("stockVersion", snapshot.getStockVersion());
+        info.put("builtAt", snapshot.getBuiltAt());
+        info.put("productCount", snapshot.getProductCount());
+        info.put("categoryCount", snapshot.getCategoryCount());
+        info.put("menuBytes", snapshot.getMenuJson().length);
+        info.put("categoriesBytes", snapshot.getCategoriesJson().length);
+        info.put("groupedMenuBytes", snapshot.getGroupedMenuJson().length);
+        info.put("rebuildCount", catalogSnapshotService.getRebuildCount());
+        info.put("promotionPricesValidUntil", promotionPriceService.getValidUntil());
+        info.put("promotionPriceRecomputeCount", promotionPriceService.getRecomputeCount());
+        return ResponseEntity.ok(info);
+    }
+
+    @GetMapping("/images/variants/stats")
+    public ResponseEntity<Map<String, Object>> getImageVariantStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("generated", imageVariantService.getGeneratedCount());
+        stats.put("failed", imageVariantService.getFailedCount());
+        stats.put("rejected", imageVariantService.getRejectedCount());
+        stats.put("queueSize", imageVariantService.getQueueSize());
+        stats.put("queueCapacity", imageVariantService.getQueueCapacity());
+        Map<String, Object> processing = new HashMap<>();
+        processing.put("processed", imageProcessingService.getProcessedCount());
+        processing.put("rejectedBusy", imageProcessingService.getRejectedBusyCount());
+        processing.put("rejectedInvalid", imageProcessingService.getRejectedInvalidCount());
+        processing.put("rejectedTooLarge", imageProcessingService.getRejectedTooLargeCount());
+        processing.put("metadataBytesRemoved", imageProcessingService.getBytesRemoved());
+        processing.put("queueSize", imageProcessingService.getQueueSize());
+        processing.put("queueCapacity", imageProcessingService.getQueueCapacity());
+        stats.put("processing", processing);
+        return ResponseEntity.ok(stats);
+    }
+
+    // === CHUNKED UPLOAD (file lớn, gửi tiếp được khi mất kết nối) ===
+    @PostMapping("/uploads")
+    public ResponseEntity<?> initUpload(@RequestBody Map<String, Object> request) {
+        try {
+            Object totalSize = request.get("totalSize");
+            ChunkedUploadService.UploadSession session = chunkedUploadService.init(
+                    (String) request.get("fileName"),
+                    totalSize instanceof Number ? ((Number) totalSize).longValue() : -1,
+                    (String) request.get("sha256"));
+            return ResponseEntity.ok(session.toMap());
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body("Không tạo được upload: " + e.getMessage());
+        }
+    }
+
+    // Body là bytes thô của chunk, offset = số byte server đã nhận
+    @PutMapping("/uploads/{uploadId}")
+    public ResponseEntity<?> uploadChunk(@PathVariable String uploadId, @RequestParam long offset,
+            HttpServletRequest request) {
+        try (InputStream body = request.getInputStream()) {
+            return ResponseEntity.ok(chunkedUploadService.appendChunk(uploadId, offset, body).toMap());
+        } catch (ChunkedUploadService.OffsetMismatchException e) {
+            Map<String, Object> error = new HashMap<>();
+            error.put("message", e.getMessage());
+            error.put("offset", e.getExpectedOffset());
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(error);
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body("Upload chunk thất bại: " + e.getMessage());
+        }
+    }
+
+    @GetMapping("/uploads/{uploadId}")
+    public ResponseEntity<?> getUploadStatus(@PathVariable String uploadId) {
+        try {
+            return ResponseEntity.ok(chunkedUploadService.get(uploadId).toMap());
+        } catch (Exception e) {
+            return ResponseEntity.notFound().build();
+        }
+    }
+
+    @PostMapping("/uploads/{uploadId}/complete")
+    public ResponseEntity<?> completeUpload(@PathVariable String uploadId) {
+        try {
+            String url = chunkedUploadService.complete(uploadId);
+            return ResponseEntity.ok(Map.of("url", url));
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body("Hoàn tất upload thất bại: " + e.getMessage());
+        }
+    }
+
+    @DeleteMapping("/uploads/{uploadId}")
+    public ResponseEntity<?> abortUpload(@PathVariable String uploadId) {
+        try {
+            chunkedUploadService.abort(uploadId);
+            return ResponseEntity.ok(Map.of("message", "Đã hủy upload"));
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body("Hủy upload thất bại: " + e.getMessage());
+        }
+    }
+
+    // === UPLOAD GC (file ảnh không còn ai dùng) ===
+    @GetMapping("/uploads/gc")
+    public ResponseEntity<Map<String, Object>> getUploadGcStats() {
+        return ResponseEntity.ok(uploadGarbageCollector.getLastRun());
+    }
+
+    @PostMapping("/uploads/gc")
+    public ResponseEntity<?> runUploadGc() {
+        try {
+            return ResponseEntity.ok(uploadGarbageCollector.collect());
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    @GetMapping("/uploads/cache")
+    public ResponseEntity<Map<String, Object>> getUploadCacheStats() {
+        return ResponseEntity.ok(uploadCache.stats());
+    }
+
+    @DeleteMapping("/uploads/cache")
+    public ResponseEntity<Map<String, Object>> clearUploadCache() {
+        uploadCache.clear();
+        return ResponseEntity.ok(uploadCache.stats());
+    }
+
+    @PostMapping("/catalog/snapshot/rebuild")
+    public ResponseEntity<Map<String, Object>> rebuildCatalogSnapshot() {
+        CatalogSnapshotService.Snapshot snapshot = catalogSnapshotService.rebuild();
+        return ResponseEntity.ok(Map.of(
+                "version", snapshot.getVersion(),
+                "rebuildCount", catalogSnapshotService.getRebuildCount()));
+    }
+
     // === REPORTS ===
     @GetMapping("/reports/dashboard")
     public ResponseEntity<Map<String, Object>> getDashboardReport() {
@@ -25,6 +25,7 @@ import com.tathang.example304.repository.UserRepository;
 import com.tathang.example304.repository.ResetPasswordTokenRepository;
 import com.tathang.example304.security.jwt.JwtUtils;
 import com.tathang.example304.security.services.UserDetailsImpl;
+import com.tathang.example304.security.services.UserService;
 
 import org.springframework.mail.SimpleMailMessage;
 import org.springframework.mail.javamail.JavaMailSender;
@@ -46,6 +47,7 @@ public class AuthController {
     private final AuthenticationManager authenticationManager;
     private final ResetPasswordTokenRepository resetTokenRepo;
     private final JavaMailSender mailSender;
+    private final UserService userService;
     @Autowired
     private UserRepository userRepo;
 
@@ -58,7 +60,8 @@ public class AuthController {
             JwtUtils jwtUtils,
             AuthenticationManager authenticationManager,
             ResetPasswordTokenRepository resetTokenRepo,
-            JavaMailSender mailSender) {
+            JavaMailSender mailSender,
+            UserService userService) {
         this.userRepository = userRepository;
         this.roleRepository = roleRepository;
         this.passwordEncoder = passwordEncoder;
@@ -66,6 +69,7 @@ public class AuthController {
         this.authenticationManager = authenticationManager;
         this.resetTokenRepo = resetTokenRepo;
         this.mailSender = mailSender;
+        this.userService = userService;
     }
 
     // ✅ THÊM SLASH VÀO ĐẦU CÁC POST MAPPING
@@ -271,16 +275,9 @@ public class AuthController {
             @AuthenticationPrincipal UserDetailsImpl userDetails,
             @RequestBody UpdateProfileRequest request) {
 
-        User user = userRepository.findById(userDetails.getId())
-                .orElseThrow(() -> new RuntimeException("User not found"));
-
-        user.setFullName(request.getFullName());
-        user.setEmail(request.getEmail());
-        user.setPhone(request.getPhone());
-        user.setAddress(request.getAddress());
-        user.setImageUrl(request.getImageUrl()); // 🔥 LƯU ẢNH
-
-        userRepository.save(user);
+        // 🔥 LƯU ẢNH: qua UserService để cập nhật tham chiếu blob cùng transaction
+        userService.updateProfile(userDetails.getId(), request.getFullName(), request.getEmail(),
+                request.getPhone(), request.getAddress(), request.getImageUrl());
 
         return ResponseEntity.ok("Profile updated");
     }
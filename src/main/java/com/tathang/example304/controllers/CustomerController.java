@@ -1,14 +1,21 @@
 package com.tathang.example304.controllers;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.CacheControl;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 
+import com.tathang.example304.dto.ProductSummary;
 import com.tathang.example304.model.*;
 import com.tathang.example304.model.Order.OrderStatus;
 import com.tathang.example304.payload.request.PaymentRequest;
+import com.tathang.example304.payload.response.ProductPageResponse;
+import com.tathang.example304.payload.response.ProductSearchHit;
+import com.tathang.example304.payload.response.Suggestion;
 import com.tathang.example304.repository.BillRepository;
 import com.tathang.example304.repository.OrderRepository;
 import com.tathang.example304.security.services.*;
@@ -16,8 +23,10 @@ import com.tathang.example304.security.services.*;
 import java.math.BigDecimal;
 import java.time.LocalDateTime;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
@@ -39,6 +48,21 @@ public class CustomerController {
     @Autowired
     private OrderRepository orderRepository;
 
+    @Autowired
+    private CatalogSnapshotService catalogSnapshotService;
+
+    @Autowired
+    private ProductSearchService productSearchService;
+
+    @Autowired
+    private ProductSuggestService productSuggestService;
+
+    @Autowired
+    private CatalogChangeLogService catalogChangeLogService;
+
+    @Autowired
+    private StockReservationService stockReservationService;
+
     public CustomerController(OrderService orderService, ProductService productService,
             BillService billService, UserService userService) {
         this.orderService = orderService;
@@ -48,43 +72,184 @@ public class CustomerController {
     }
 
     // === MENU ===
+    // Các GET catalog trả ETag theo catalog version, client gửi If-None-Match
+    // sẽ nhận 304 mà không cần load entity nào.
+    // ?fields=id,name,price,imageUrl để chỉ lấy những field màn hình cần
     @GetMapping("/menu")
-    public ResponseEntity<List<Product>> getMenu() {
-        List<Product> products = productService.getAvailableProducts();
-        return ResponseEntity.ok(products);
+    public ResponseEntity<?> getMenu(@RequestParam(required = false) String fields, WebRequest request) {
+        // Snapshot đã dựng sẵn nên lấy trước, ETag theo đúng version tồn kho của nó
+        CatalogSnapshotService.Snapshot snapshot = catalogSnapshotService.getSnapshot();
+        if (request.checkNotModified(catalogSnapshotService.etag("menu", snapshot))) {
+            return null;
+        }
+        Set<String> selected;
+        try {
+            selected = ProductSummary.parseFields(fields);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+        ResponseEntity.BodyBuilder builder = ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .eTag(catalogSnapshotService.etag("menu", snapshot))
+                .cacheControl(CacheControl.noCache().cachePrivate())
+                .header("X-Catalog-Version", String.valueOf(snapshot.getVersion()))
+                .header("X-Sync-Version", String.valueOf(snapshot.getSyncVersion()));
+        if (selected == null) {
+            return builder.body(snapshot.getMenuJson());
+        }
+        return builder.body(snapshot.getMenuItems().stream().map(p -> p.toMap(selected)).toList());
+    }
+
+    // Toàn bộ menu nhóm theo danh mục trong 1 request, thay cho /categories + N lần /products/by-category/{id}
+    @GetMapping("/menu/grouped")
+    public ResponseEntity<byte[]> getGroupedMenu(WebRequest request) {
+        CatalogSnapshotService.Snapshot snapshot = catalogSnapshotService.getSnapshot();
+        if (request.checkNotModified(catalogSnapshotService.etag("menu-grouped", snapshot))) {
+            return null;
+        }
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .eTag(catalogSnapshotService.etag("menu-grouped", snapshot))
+                .cacheControl(CacheControl.noCache().cachePrivate())
+                .header("X-Catalog-Version", String.valueOf(snapshot.getVersion()))
+                .header("X-Sync-Version", String.valueOf(snapshot.getSyncVersion()))
+                .body(snapshot.getGroupedMenuJson());
+    }
+
+    // Delta sync: chỉ trả các product/category đã đổi sau version client đang giữ.
+    // Lần đầu (since=0) hoặc client quá cũ thì trả bản đầy đủ (full=true)
+    @GetMapping("/menu/changes")
+    public ResponseEntity<?> getMenuChanges(@RequestParam(defaultValue = "0") long since) {
+        try {
+            return ResponseEntity.ok(catalogChangeLogService.getChangesSince(since));
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body("Error: " + e.getMessage());
+        }
     }
 
     @GetMapping("/categories")
-    public ResponseEntity<List<Category>> getCategories() {
-        List<Category> categories = productService.getAllCategories();
-        return ResponseEntity.ok(categories);
+    public ResponseEntity<byte[]> getCategories(WebRequest request) {
+        if (request.checkNotModified(catalogSnapshotService.catalogEtag("categories"))) {
+            return null;
+        }
+        CatalogSnapshotService.Snapshot snapshot = catalogSnapshotService.getSnapshot();
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .eTag(catalogSnapshotService.catalogEtag("categories", snapshot.getVersion()))
+                .cacheControl(CacheControl.noCache().cachePrivate())
+                .header("X-Catalog-Version", String.valueOf(snapshot.getVersion()))
+                .body(snapshot.getCategoriesJson());
     }
 
     // === GET PRODUCTS ===
     @GetMapping("/products")
-    public ResponseEntity<List<Product>> getAllProducts() {
+    public ResponseEntity<?> getAllProducts(@RequestParam(required = false) String fields, WebRequest request) {
+        String etag = catalogSnapshotService.etag("products");
+        if (request.checkNotModified(etag)) {
+            return null;
+        }
+        try {
+            Set<String> selected = ProductSummary.parseFields(fields);
+            List<ProductSummary> products = productService.getProductSummaries();
+            return ResponseEntity.ok()
+                    .eTag(etag)
+                    .cacheControl(CacheControl.noCache().cachePrivate())
+                    .body(selected == null ? products : products.stream().map(p -> p.toMap(selected)).toList());
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    @GetMapping("/products/page")
+    public ResponseEntity<?> getProductPage(
+            @RequestParam(defaultValue = "20") int size,
+            @RequestParam(defaultValue = "name") String sort,
+            @RequestParam(defaultValue = "asc") String direction,
+            @RequestParam(required = false) Long categoryId,
+            @RequestParam(required = false) BigDecimal minPrice,
+            @RequestParam(required = false) BigDecimal maxPrice,
+            @RequestParam(required = false) String cursor,
+            WebRequest request) {
+        String etag = catalogSnapshotService.etag("products-page");
+        if (request.checkNotModified(etag)) {
+            return null;
+        }
         try {
-            List<Product> products = productService.getAllProducts();
-            return ResponseEntity.ok(products);
+            // Khách chỉ thấy sản phẩm đang hiện trên menu, đọc từ catalog_view
+            ProductPageResponse<ProductSummary> page = productService.getCatalogPage(
+                    size, sort, direction, categoryId, minPrice, maxPrice, cursor);
+            return ResponseEntity.ok()
+                    .eTag(etag)
+                    .cacheControl(CacheControl.noCache().cachePrivate())
+                    .body(page);
         } catch (Exception e) {
-            return ResponseEntity.badRequest().build();
+            return ResponseEntity.badRequest().body("Không thể tải danh sách sản phẩm: " + e.getMessage());
         }
     }
 
+    // === SEARCH ===
+    // Tìm trên inverted index trong bộ nhớ, không dấu vẫn khớp ("ca phe" -> "Cà phê")
+    @GetMapping("/products/search")
+    public ResponseEntity<?> searchProducts(
+            @RequestParam String q,
+            @RequestParam(defaultValue = "20") int limit) {
+        long start = System.nanoTime();
+        List<ProductSearchHit> results = productSearchService.search(q, Math.min(Math.max(limit, 1), 100));
+        long tookMicros = (System.nanoTime() - start) / 1_000;
+
+        Map<String, Object> response = new HashMap<>();
+        response.put("query", q);
+        response.put("results", results);
+        response.put("total", results.size());
+        response.put("tookMicros", tookMicros);
+        return ResponseEntity.ok(response);
+    }
+
+    // Gợi ý khi đang gõ, top-K theo độ phổ biến
+    @GetMapping("/products/suggest")
+    public ResponseEntity<List<Suggestion>> suggestProducts(
+            @RequestParam String q,
+            @RequestParam(defaultValue = "8") int limit) {
+        return ResponseEntity.ok(productSuggestService.suggest(q, Math.min(Math.max(limit, 1), 10)));
+    }
+
     @GetMapping("/products/{id}")
-    public ResponseEntity<Product> getProductById(@PathVariable Long id) {
+    public ResponseEntity<ProductSummary> getProductById(@PathVariable Long id, WebRequest request) {
+        String etag = catalogSnapshotService.etag("product-" + id);
+        if (request.checkNotModified(etag)) {
+            return null;
+        }
         try {
-            Product product = productService.getProductById(id);
-            return product != null ? ResponseEntity.ok(product) : ResponseEntity.notFound().build();
+            ProductSummary product = productService.getProductSummary(id);
+            return product != null
+                    ? ResponseEntity.ok()
+                            .eTag(etag)
+                            .cacheControl(CacheControl.noCache().cachePrivate())
+                            .body(product)
+                    : ResponseEntity.notFound().build();
         } catch (Exception e) {
             return ResponseEntity.notFound().build();
         }
     }
 
     @GetMapping("/products/by-category/{categoryId}")
-    public ResponseEntity<List<Product>> getProductsByCategory(@PathVariable Long categoryId) {
-        List<Product> products = productService.getProductsByCategory(categoryId);
-        return ResponseEntity.ok(products);
+    public ResponseEntity<?> getProductsByCategory(@PathVariable Long categoryId,
+            @RequestParam(required = false) String fields, WebRequest request) {
+        String etag = catalogSnapshotService.etag("category-products-" + categoryId);
+        if (request.checkNotModified(etag)) {
+            return null;
+        }
+        Set<String> selected;
+        try {
+            selected = ProductSummary.parseFields(fields);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+        List<ProductSummary> products = productService.getProductSummariesByCategory(categoryId);
+        return ResponseEntity.ok()
+                .eTag(etag)
+                .cacheControl(CacheControl.noCache().cachePrivate())
+                .body(selected == null ? products : products.stream().map(p -> p.toMap(selected)).toList());
     }
 
     // === ORDER MANAGEMENT ===
@@ -156,21 +321,13 @@ public class CustomerController {
                 return ResponseEntity.badRequest().body("Insufficient stock");
             }
 
-            // Thêm sản phẩm vào order
+            // Thêm sản phẩm vào order (tổng tiền được tính lại trong cùng transaction)
             Order updatedOrder = orderService.addItemToOrder(
                     orderId, itemRequest.getProductId(), itemRequest.getQuantity());
 
             // Lấy thông tin order items
             List<OrderItem> orderItems = orderService.getOrderItemsByOrderId(orderId);
-
-            // Tính tổng tiền
-            BigDecimal totalAmount = orderItems.stream()
-                    .map(OrderItem::getSubtotal)
-                    .reduce(BigDecimal.ZERO, BigDecimal::add);
-
-            // Cập nhật tổng tiền
-            updatedOrder.setTotalAmount(totalAmount);
-            orderService.saveOrder(updatedOrder);
+            BigDecimal totalAmount = updatedOrder.getTotalAmount();
 
             Map<String, Object> response = new HashMap<>();
             response.put("message", "Item added successfully");
@@ -240,17 +397,9 @@ public class CustomerController {
                 return ResponseEntity.status(403).body("Order not found or access denied");
             }
 
-            // Xóa sản phẩm khỏi order
+            // Xóa sản phẩm khỏi order (tổng tiền được tính lại trong cùng transaction)
             Order updatedOrder = orderService.removeItemFromOrder(orderId, productId);
-
-            // Cập nhật tổng tiền
-            List<OrderItem> orderItems = orderService.getOrderItemsByOrderId(orderId);
-            BigDecimal totalAmount = orderItems.stream()
-                    .map(OrderItem::getSubtotal)
-                    .reduce(BigDecimal.ZERO, BigDecimal::add);
-
-            updatedOrder.setTotalAmount(totalAmount);
-            orderService.saveOrder(updatedOrder);
+            BigDecimal totalAmount = updatedOrder.getTotalAmount();
 
             Map<String, Object> response = new HashMap<>();
             response.put("message", "Item removed successfully");
@@ -297,18 +446,9 @@ public class CustomerController {
                 return ResponseEntity.badRequest().body("Insufficient stock");
             }
 
-            // Cập nhật số lượng
+            // Cập nhật số lượng (tổng tiền được tính lại trong cùng transaction)
             Order updatedOrder = orderService.updateOrderItemQuantity(orderId, productId, quantity);
-
-            // Cập nhật tổng tiền
-            List<OrderItem> orderItems = orderService.getOrderItemsByOrderId(orderId);
-            BigDecimal totalAmount = orderItems.stream()
-                    .map(OrderItem::getSubtotal)
-                    .filter(java.util.Objects::nonNull) // 🔥
-                    .reduce(BigDecimal.ZERO, BigDecimal::add);
-
-            updatedOrder.setTotalAmount(totalAmount);
-            orderService.saveOrder(updatedOrder);
+            BigDecimal totalAmount = updatedOrder.getTotalAmount();
 
             Map<String, Object> response = new HashMap<>();
             response.put("message", "Quantity updated successfully");
@@ -335,16 +475,13 @@ public class CustomerController {
         try {
             System.out.println("❌ Cancelling order: " + orderId);
 
-            // Kiểm tra order thuộc về user
-            Order order = orderService.getOrderById(orderId);
-            if (order == null || !order.getUser().getId().equals(userDetails.getId())) {
-                return ResponseEntity.status(403).body("Order not found or access denied");
+            // Khóa đơn, kiểm tra chủ đơn và trạng thái, hủy và trả tồn kho trong một transaction
+            try {
+                orderService.cancelOrder(orderId, userDetails.getId());
+            } catch (SecurityException e) {
+                return ResponseEntity.status(403).body(e.getMessage());
             }
 
-            // Cập nhật trạng thái
-            order.setStatus(Order.OrderStatus.CANCELLED);
-            orderService.saveOrder(order);
-
             Map<String, Object> response = new HashMap<>();
             response.put("message", "Order cancelled successfully");
             response.put("orderId", orderId);
@@ -359,6 +496,35 @@ public class CustomerController {
         }
     }
 
+    /**
+     * Đặt lại toàn bộ sản phẩm trong order bằng một request (thay cho nhiều lần POST/PUT/DELETE từng item).
+     * Sản phẩm không có trong danh sách bị bỏ khỏi order; quantity = 0 cũng là bỏ.
+     */
+    @PutMapping("/orders/{orderId}/items")
+    public ResponseEntity<?> replaceOrderItems(
+            @PathVariable Long orderId,
+            @RequestBody List<OrderItemRequest> items,
+            @AuthenticationPrincipal UserDetailsImpl userDetails) {
+
+        try {
+            // Cùng một sản phẩm xuất hiện nhiều lần thì cộng dồn số lượng
+            Map<Long, Integer> desired = new LinkedHashMap<>();
+            for (OrderItemRequest item : items) {
+                if (item.getProductId() == null || item.getQuantity() == null) {
+                    return ResponseEntity.badRequest().body("productId và quantity là bắt buộc");
+                }
+                desired.merge(item.getProductId(), item.getQuantity(), Integer::sum);
+            }
+            return ResponseEntity.ok(orderService.replaceOrderItems(orderId, userDetails.getId(), desired));
+
+        } catch (SecurityException e) {
+            return ResponseEntity.status(403).body(e.getMessage());
+        } catch (Exception e) {
+            System.out.println("❌ Error replacing order items: " + e.getMessage());
+            return ResponseEntity.badRequest().body("Failed to update items: " + e.getMessage());
+        }
+    }
+
     /**
      * Xem tất cả orders của user
      */
@@ -410,6 +576,9 @@ public class CustomerController {
             // ❌ KHÔNG set PENDING ở đây
             // ❌ KHÔNG tạo bill ở đây
 
+            // Giữ hàng trong lúc khách thanh toán trên PayOS
+            stockReservationService.extendForPayment(orderId);
+
             String checkoutUrl = payOSService.createPaymentLink(
                     orderId,
                     order.getTotalAmount());
@@ -549,6 +718,7 @@ public class CustomerController {
             bill.setPaymentStatus(Bill.PaymentStatus.COMPLETED);
 
             Order order = bill.getOrder();
+            stockReservationService.convert(order.getId());
             order.setStatus(Order.OrderStatus.PAID);
             order.setUpdatedAt(LocalDateTime.now());
 
@@ -0,0 +1,239 @@
+package com.tathang.example304.controllers;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.tathang.example304.security.services.UploadCache;
+import com.tathang.example304.security.services.UploadServingService;
+import com.tathang.example304.security.services.UploadServingService.ResolvedUpload;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Phục vụ file trong thư mục upload: Cache-Control immutable cho tên theo hash nội dung,
+ * trả 304 cho request có điều kiện, hỗ trợ Range (một đoạn) và gửi file bằng sendfile
+ * của Tomcat hoặc FileChannel.transferTo. Với store S3 thì chuyển hướng tới URL của object.
+ * File nhỏ được truy cập nhiều được phục vụ từ UploadCache, không chạm tới đĩa.
+ */
+@RestController
+@RequestMapping("/uploads")
+public class UploadController {
+
+    private static final long ONE_YEAR_SECONDS = 365L * 24 * 60 * 60;
+    private static final long MUTABLE_MAX_AGE_SECONDS = 60 * 60;
+    // File nhỏ hơn ngưỡng này copy thẳng rẻ hơn chuyển sang sendfile
+    private static final long SENDFILE_MIN_BYTES = 48 * 1024;
+
+    private final UploadServingService uploadServingService;
+    private final UploadCache uploadCache;
+
+    public UploadController(UploadServingService uploadServingService, UploadCache uploadCache) {
+        this.uploadServingService = uploadServingService;
+        this.uploadCache = uploadCache;
+    }
+
+    @RequestMapping(value = "/{fileName:.+}", method = { RequestMethod.GET, RequestMethod.HEAD })
+    public void serve(@PathVariable String fileName, HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        UploadCache.Entry cached = uploadCache.get(fileName);
+        long generation = uploadCache.generation();
+        ResolvedUpload upload = cached != null ? cached.upload() : uploadServingService.resolve(fileName);
+        if (upload == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        if (upload.redirectUrl() != null) {
+            // URL /uploads/... trong DB giữ nguyên, nội dung tải thẳng từ bucket/CDN
+            response.setHeader(HttpHeaders.CACHE_CONTROL, upload.immutable()
+                    ? "public, max-age=" + ONE_YEAR_SECONDS + ", immutable"
+                    : "public, max-age=" + MUTABLE_MAX_AGE_SECONDS);
+            response.setHeader(HttpHeaders.LOCATION, upload.redirectUrl());
+            response.setStatus(HttpServletResponse.SC_FOUND);
+            return;
+        }
+
+        response.setHeader(HttpHeaders.ETAG, upload.etag());
+        response.setDateHeader(HttpHeaders.LAST_MODIFIED, upload.lastModified());
+        response.setHeader(HttpHeaders.CACHE_CONTROL, upload.immutable()
+                ? "public, max-age=" + ONE_YEAR_SECONDS + ", immutable"
+                : "public, max-age=" + MUTABLE_MAX_AGE_SECONDS);
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        response.setHeader("X-Content-Type-Options", "nosniff");
+        boolean inline = isInlineSafe(upload.contentType());
+        if (!inline) {
+            // File cũ có đuôi html/svg/js...: tải về, không để trình duyệt hiển thị trên origin của app
+            response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment");
+        }
+
+        if (notModified(request, upload)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        long length = upload.length();
+        long start = 0;
+        long end = length - 1;
+        String range = request.getHeader(HttpHeaders.RANGE);
+        if (range != null && rangeApplies(request, upload)) {
+            long[] bounds = parseRange(range, length);
+            if (bounds == null) {
+                response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+                response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            }
+            if (bounds.length == 2) {
+                start = bounds[0];
+                end = bounds[1];
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+            }
+        }
+
+        long count = end - start + 1;
+        response.setContentType(inline ? upload.contentType().toString() : MediaType.APPLICATION_OCTET_STREAM_VALUE);
+        response.setContentLengthLong(count);
+        if ("HEAD".equals(request.getMethod()) || count == 0) {
+            return;
+        }
+        if (cached == null) {
+            cached = uploadCache.load(fileName, upload, generation);
+        }
+        if (cached != null) {
+            ByteBuffer body = cached.data().duplicate();
+            body.position((int) start).limit((int) (start + count));
+            WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+            while (body.hasRemaining()) {
+                out.write(body);
+            }
+            return;
+        }
+        send(upload, start, count, request, response);
+    }
+
+    // Ảnh raster, audio, video: trình duyệt không chạy script trong đó
+    static boolean isInlineSafe(MediaType type) {
+        String main = type.getType();
+        return ("image".equals(main) && !type.getSubtype().contains("svg"))
+                || "audio".equals(main) || "video".equals(main);
+    }
+
+    // If-None-Match được ưu tiên hơn If-Modified-Since (RFC 9110)
+    private boolean notModified(HttpServletRequest request, ResolvedUpload upload) {
+        String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                String candidate = tag.trim();
+                if (candidate.startsWith("W/")) {
+                    candidate = candidate.substring(2);
+                }
+                if (candidate.equals("*") || candidate.equals(upload.etag())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        long ifModifiedSince = dateHeader(request, HttpHeaders.IF_MODIFIED_SINCE);
+        return ifModifiedSince >= 0 && upload.lastModified() / 1000 <= ifModifiedSince / 1000;
+    }
+
+    // If-Range không khớp thì bỏ qua Range và trả cả file
+    private boolean rangeApplies(HttpServletRequest request, ResolvedUpload upload) {
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"")) {
+            return ifRange.equals(upload.etag());
+        }
+        long date = dateHeader(request, HttpHeaders.IF_RANGE);
+        return date >= 0 && upload.lastModified() / 1000 <= date / 1000;
+    }
+
+    private long dateHeader(HttpServletRequest request, String name) {
+        try {
+            return request.getDateHeader(name);
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * {start, end} cho một đoạn hợp lệ, mảng rỗng nếu nên bỏ qua Range (nhiều đoạn, sai cú pháp),
+     * null nếu đoạn nằm ngoài file (416).
+     */
+    static long[] parseRange(String header, long length) {
+        if (!header.startsWith("bytes=") || header.indexOf(',') >= 0) {
+            return new long[0];
+        }
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return new long[0];
+        }
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            long start;
+            long end;
+            if (first.isEmpty()) {
+                // bytes=-N: N byte cuối
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0 || length == 0) {
+                    return null;
+                }
+                start = Math.max(0, length - suffix);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(first);
+                if (start >= length) {
+                    return null;
+                }
+                end = last.isEmpty() ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+                if (end < start) {
+                    return new long[0];
+                }
+            }
+            return new long[] { start, end };
+        } catch (NumberFormatException e) {
+            return new long[0];
+        }
+    }
+
+    private void send(ResolvedUpload upload, long start, long count, HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
+        // Tomcat NIO: giao file cho connector, kernel tự copy từ page cache ra socket
+        if (count >= SENDFILE_MIN_BYTES
+                && Boolean.TRUE.equals(request.getAttribute("org.apache.tomcat.sendfile.support"))) {
+            request.setAttribute("org.apache.tomcat.sendfile.filename", upload.path().toString());
+            request.setAttribute("org.apache.tomcat.sendfile.start", start);
+            request.setAttribute("org.apache.tomcat.sendfile.end", start + count);
+            return;
+        }
+        try (FileChannel file = FileChannel.open(upload.path(), StandardOpenOption.READ)) {
+            WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+            long position = start;
+            long remaining = count;
+            while (remaining > 0) {
+                long sent = file.transferTo(position, remaining, out);
+                if (sent <= 0) {
+                    break;
+                }
+                position += sent;
+                remaining -= sent;
+            }
+        }
+    }
+}
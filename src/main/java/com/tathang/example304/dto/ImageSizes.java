@@ -0,0 +1,53 @@
+package com.tathang.example304.dto;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * URL theo kích thước của một ảnh upload. Danh sách biến thể đã sinh được lưu gọn dạng
+ * "jpg:96,256,768" (định dạng file biến thể : các chiều rộng), file biến thể tên là
+ * {@code <sha256>_<width>.<format>} nằm cạnh file gốc.
+ */
+public final class ImageSizes {
+
+    public static final int[] WIDTHS = { 96, 256, 768 };
+
+    private ImageSizes() {
+    }
+
+    /**
+     * Map chiều rộng -> URL, chỉ gồm các biến thể đã có. Rỗng nếu ảnh chưa xử lý xong,
+     * không phải ảnh upload, hoặc nhỏ hơn mọi kích thước.
+     */
+    public static Map<String, String> of(String imageUrl, String variants) {
+        if (imageUrl == null || variants == null || variants.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        int colon = variants.indexOf(':');
+        int slash = imageUrl.lastIndexOf('/');
+        int dot = imageUrl.lastIndexOf('.');
+        if (colon <= 0 || colon == variants.length() - 1) {
+            return Collections.emptyMap();
+        }
+        String base = imageUrl.substring(0, dot > slash ? dot : imageUrl.length());
+        String format = variants.substring(0, colon);
+        Map<String, String> urls = new LinkedHashMap<>();
+        for (String width : variants.substring(colon + 1).split(",")) {
+            urls.put(width, base + "_" + width + "." + format);
+        }
+        return urls;
+    }
+
+    public static String encode(String format, Iterable<Integer> widths) {
+        StringBuilder encoded = new StringBuilder();
+        for (Integer width : widths) {
+            encoded.append(encoded.length() == 0 ? format + ":" : ",").append(width);
+        }
+        return encoded.toString();
+    }
+
+    public static String variantFileName(String hash, int width, String format) {
+        return hash + "_" + width + "." + format;
+    }
+}
@@ -0,0 +1,85 @@
+package com.tathang.example304.dto;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bản rút gọn của Product cho màn danh sách, lấy thẳng từ bảng catalog_view
+ * (không hydrate entity, không kéo theo cả object Category).
+ */
+public record ProductSummary(
+        Long id,
+        String name,
+        String description,
+        BigDecimal price,
+        String imageUrl,
+        Integer stockQuantity,
+        Long categoryId,
+        String categoryName,
+        LocalDateTime updatedAt,
+        BigDecimal effectivePrice,
+        Long promotionId,
+        Boolean available,
+        Map<String, String> imageSizes) {
+
+    public static final Set<String> FIELDS = Set.of(
+            "id", "name", "description", "price", "imageUrl",
+            "stockQuantity", "categoryId", "categoryName", "updatedAt",
+            "effectivePrice", "promotionId", "available", "imageSizes");
+
+    // Dùng bởi query catalog_view: imageVariants dạng "jpg:96,256,768" được đổi thành map URL
+    public ProductSummary(Long id, String name, String description, BigDecimal price, String imageUrl,
+            Integer stockQuantity, Long categoryId, String categoryName, LocalDateTime updatedAt,
+            BigDecimal effectivePrice, Long promotionId, Boolean available, String imageVariants) {
+        this(id, name, description, price, imageUrl, stockQuantity, categoryId, categoryName, updatedAt,
+                effectivePrice, promotionId, available, ImageSizes.of(imageUrl, imageVariants));
+    }
+
+    /**
+     * Parse tham số ?fields=id,name,price. Trả về null nếu không truyền (lấy đủ field).
+     */
+    public static Set<String> parseFields(String fields) {
+        if (fields == null || fields.isBlank()) {
+            return null;
+        }
+        Set<String> selected = new LinkedHashSet<>();
+        for (String field : Arrays.asList(fields.split(","))) {
+            String name = field.trim();
+            if (name.isEmpty()) {
+                continue;
+            }
+            if (!FIELDS.contains(name)) {
+                throw new IllegalArgumentException("Field không hợp lệ: " + name);
+            }
+            selected.add(name);
+        }
+        return selected;
+    }
+
+    public Map<String, Object> toMap(Set<String> fields) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        for (String field : fields) {
+            map.put(field, switch (field) {
+                case "id" -> id;
+                case "name" -> name;
+                case "description" -> description;
+                case "price" -> price;
+                case "imageUrl" -> imageUrl;
+                case "stockQuantity" -> stockQuantity;
+                case "categoryId" -> categoryId;
+                case "categoryName" -> categoryName;
+                case "effectivePrice" -> effectivePrice;
+                case "promotionId" -> promotionId;
+                case "available" -> available;
+                case "imageSizes" -> imageSizes;
+                default -> updatedAt;
+            });
+        }
+        return map;
+    }
+}
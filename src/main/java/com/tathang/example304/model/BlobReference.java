@@ -0,0 +1,79 @@
+package com.tathang.example304.model;
+
+import jakarta.persistence.*;
+
+/**
+ * Bản ghi nào đang dùng blob nào. Mỗi owner (product/category/user) có tối đa một ảnh
+ * nên (owner_type, owner_id) là duy nhất.
+ */
+@Entity
+@Table(name = "blob_references", uniqueConstraints = {
+        @UniqueConstraint(name = "uk_blob_references_owner", columnNames = { "owner_type", "owner_id" })
+}, indexes = {
+        @Index(name = "idx_blob_references_hash", columnList = "blob_hash")
+})
+public class BlobReference {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(name = "blob_hash", length = 64, nullable = false)
+    private String blobHash;
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "owner_type", length = 20, nullable = false)
+    private OwnerType ownerType;
+
+    @Column(name = "owner_id", nullable = false)
+    private Long ownerId;
+
+    public enum OwnerType {
+        PRODUCT,
+        CATEGORY,
+        USER
+    }
+
+    // Constructors
+    public BlobReference() {
+    }
+
+    public BlobReference(String blobHash, OwnerType ownerType, Long ownerId) {
+        this.blobHash = blobHash;
+        this.ownerType = ownerType;
+        this.ownerId = ownerId;
+    }
+
+    // Getters and Setters
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public String getBlobHash() {
+        return blobHash;
+    }
+
+    public void setBlobHash(String blobHash) {
+        this.blobHash = blobHash;
+    }
+
+    public OwnerType getOwnerType() {
+        return ownerType;
+    }
+
+    public void setOwnerType(OwnerType ownerType) {
+        this.ownerType = ownerType;
+    }
+
+    public Long getOwnerId() {
+        return ownerId;
+    }
+
+    public void setOwnerId(Long ownerId) {
+        this.ownerId = ownerId;
+    }
+}
@@ -0,0 +1,112 @@
+package com.tathang.example304.model;
+
+import jakarta.persistence.*;
+import java.time.LocalDateTime;
+
+/**
+ * Nhật ký thay đổi catalog. Cột version (lấy từ CatalogVersion, tăng theo thứ tự commit)
+ * là "version" cho delta sync: client gửi lại version lớn nhất đã biết để lấy những gì
+ * thay đổi sau đó. Không dùng id vì id IDENTITY được cấp lúc insert, không phải lúc commit.
+ */
+@Entity
+@Table(name = "catalog_changes", indexes = {
+        @Index(name = "idx_catalog_changes_changed_at", columnList = "changed_at"),
+        @Index(name = "idx_catalog_changes_version", columnList = "version")
+})
+public class CatalogChange {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "entity_type", length = 20, nullable = false)
+    private EntityType entityType;
+
+    @Column(name = "entity_id", nullable = false)
+    private Long entityId;
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "change_type", length = 20, nullable = false)
+    private ChangeType changeType;
+
+    @Column(name = "changed_at", nullable = false)
+    private LocalDateTime changedAt;
+
+    // Dòng ghi trước khi có cột này được điền version = id lúc khởi động (DataInitializer)
+    @Column(name = "version")
+    private Long version;
+
+    public enum EntityType {
+        PRODUCT,
+        CATEGORY
+    }
+
+    public enum ChangeType {
+        CREATED,
+        UPDATED,
+        ARCHIVED,
+        DELETED
+    }
+
+    // Constructors
+    public CatalogChange() {
+    }
+
+    public CatalogChange(EntityType entityType, Long entityId, ChangeType changeType, Long version) {
+        this.entityType = entityType;
+        this.entityId = entityId;
+        this.changeType = changeType;
+        this.version = version;
+        this.changedAt = LocalDateTime.now();
+    }
+
+    // Getters and Setters
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public EntityType getEntityType() {
+        return entityType;
+    }
+
+    public void setEntityType(EntityType entityType) {
+        this.entityType = entityType;
+    }
+
+    public Long getEntityId() {
+        return entityId;
+    }
+
+    public void setEntityId(Long entityId) {
+        this.entityId = entityId;
+    }
+
+    public ChangeType getChangeType() {
+        return changeType;
+    }
+
+    public void setChangeType(ChangeType changeType) {
+        this.changeType = changeType;
+    }
+
+    public LocalDateTime getChangedAt() {
+        return changedAt;
+    }
+
+    public void setChangedAt(LocalDateTime changedAt) {
+        this.changedAt = changedAt;
+    }
+
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+}
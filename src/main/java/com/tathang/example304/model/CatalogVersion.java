@@ -0,0 +1,39 @@
+package com.tathang.example304.model;
+
+import jakarta.persistence.*;
+
+/**
+ * Bộ đếm version duy nhất (một dòng, id = 1) cho delta sync. Transaction ghi catalog tăng
+ * bộ đếm và giữ khóa dòng đến lúc commit, nên version được cấp đúng theo thứ tự commit.
+ */
+@Entity
+@Table(name = "catalog_versions")
+public class CatalogVersion {
+
+    @Id
+    private Long id;
+
+    @Column(name = "version", nullable = false)
+    private Long version;
+
+    // Constructors
+    public CatalogVersion() {
+    }
+
+    // Getters and Setters
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+}
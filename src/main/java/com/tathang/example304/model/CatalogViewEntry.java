@@ -0,0 +1,208 @@
+package com.tathang.example304.model;
+
+import jakarta.persistence.*;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+
+/**
+ * Bảng đọc phi chuẩn hóa cho catalog phía khách: mỗi sản phẩm một dòng, đã gộp sẵn
+ * tên/trạng thái danh mục và giá sau khuyến mãi. Chỉ được ghi bởi CatalogViewService,
+ * trong cùng transaction với thao tác ghi product/category/promotion.
+ */
+@Entity
+@Table(name = "catalog_view", indexes = {
+        @Index(name = "idx_catalog_view_visible_id", columnList = "visible, product_id"),
+        @Index(name = "idx_catalog_view_visible_category_id", columnList = "visible, category_id, product_id"),
+        // Keyset pagination phía khách theo từng cột sắp xếp
+        @Index(name = "idx_catalog_view_visible_name_id", columnList = "visible, name, product_id"),
+        @Index(name = "idx_catalog_view_visible_price_id", columnList = "visible, price, product_id"),
+        @Index(name = "idx_catalog_view_visible_updated_at_id", columnList = "visible, updated_at, product_id")
+})
+public class CatalogViewEntry {
+
+    @Id
+    @Column(name = "product_id")
+    private Long productId;
+
+    @Column(name = "name", length = 100, nullable = false)
+    private String name;
+
+    @Column(name = "description", columnDefinition = "TEXT")
+    private String description;
+
+    @Column(name = "price", precision = 10, scale = 2, nullable = false)
+    private BigDecimal price;
+
+    @Column(name = "effective_price", precision = 10, scale = 2, nullable = false)
+    private BigDecimal effectivePrice;
+
+    @Column(name = "promotion_id")
+    private Long promotionId;
+
+    @Column(name = "image_url", length = 255)
+    private String imageUrl;
+
+    // Biến thể kích thước của ảnh, sao từ stored_blobs.variants
+    @Column(name = "image_variants", length = 50)
+    private String imageVariants;
+
+    @Column(name = "stock_quantity")
+    private Integer stockQuantity;
+
+    @Column(name = "category_id")
+    private Long categoryId;
+
+    @Column(name = "category_name", length = 50)
+    private String categoryName;
+
+    @Column(name = "category_active", nullable = false)
+    private boolean categoryActive;
+
+    @Column(name = "archived", nullable = false)
+    private boolean archived;
+
+    // Hiện trên menu: chưa archive và danh mục (nếu có) đang active
+    @Column(name = "visible", nullable = false)
+    private boolean visible;
+
+    // Đặt được ngay: hiện trên menu và còn hàng
+    @Column(name = "available", nullable = false)
+    private boolean available;
+
+    @Column(name = "updated_at")
+    private LocalDateTime updatedAt;
+
+    // Constructors
+    public CatalogViewEntry() {
+    }
+
+    // Getters and Setters
+    public Long getProductId() {
+        return productId;
+    }
+
+    public void setProductId(Long productId) {
+        this.productId = productId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public void setDescription(String description) {
+        this.description = description;
+    }
+
+    public BigDecimal getPrice() {
+        return price;
+    }
+
+    public void setPrice(BigDecimal price) {
+        this.price = price;
+    }
+
+    public BigDecimal getEffectivePrice() {
+        return effectivePrice;
+    }
+
+    public void setEffectivePrice(BigDecimal effectivePrice) {
+        this.effectivePrice = effectivePrice;
+    }
+
+    public Long getPromotionId() {
+        return promotionId;
+    }
+
+    public void setPromotionId(Long promotionId) {
+        this.promotionId = promotionId;
+    }
+
+    public String getImageUrl() {
+        return imageUrl;
+    }
+
+    public void setImageUrl(String imageUrl) {
+        this.imageUrl = imageUrl;
+    }
+
+    public String getImageVariants() {
+        return imageVariants;
+    }
+
+    public void setImageVariants(String imageVariants) {
+        this.imageVariants = imageVariants;
+    }
+
+    public Integer getStockQuantity() {
+        return stockQuantity;
+    }
+
+    public void setStockQuantity(Integer stockQuantity) {
+        this.stockQuantity = stockQuantity;
+    }
+
+    public Long getCategoryId() {
+        return categoryId;
+    }
+
+    public void setCategoryId(Long categoryId) {
+        this.categoryId = categoryId;
+    }
+
+    public String getCategoryName() {
+        return categoryName;
+    }
+
+    public void setCategoryName(String categoryName) {
+        this.categoryName = categoryName;
+    }
+
+    public boolean isCategoryActive() {
+        return categoryActive;
+    }
+
+    public void setCategoryActive(boolean categoryActive) {
+        this.categoryActive = categoryActive;
+    }
+
+    public boolean isArchived() {
+        return archived;
+    }
+
+    public void setArchived(boolean archived) {
+        this.archived = archived;
+    }
+
+    public boolean isVisible() {
+        return visible;
+    }
+
+    public void setVisible(boolean visible) {
+        this.visible = visible;
+    }
+
+    public boolean isAvailable() {
+        return available;
+    }
+
+    public void setAvailable(boolean available) {
+        this.available = available;
+    }
+
+    public LocalDateTime getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public void setUpdatedAt(LocalDateTime updatedAt) {
+        this.updatedAt = updatedAt;
+    }
+}
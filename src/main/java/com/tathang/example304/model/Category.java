@@ -4,6 +4,7 @@ import jakarta.persistence.*;
 import org.hibernate.annotations.CreationTimestamp;
 import org.hibernate.annotations.UpdateTimestamp;
 import java.time.LocalDateTime;
+import java.util.Map;
 
 @Entity
 @Table(name = "categories")
@@ -21,6 +22,15 @@ public class Category {
     @Column(name = "image_url", length = 255)
     private String imageUrl;
 
+    @Column(name = "image_width", insertable = false, updatable = false)
+    private Integer imageWidth;
+
+    @Column(name = "image_height", insertable = false, updatable = false)
+    private Integer imageHeight;
+
+    @Column(name = "image_bytes", insertable = false, updatable = false)
+    private Long imageBytes;
+
     @Column(name = "is_active")
     private Boolean isActive = true; // ✅ THÊM FIELD NÀY
 
@@ -32,6 +42,10 @@ public class Category {
     @Column(name = "updated_at")
     private LocalDateTime updatedAt;
 
+    // URL ảnh theo chiều rộng, điền khi build snapshot catalog (không lưu DB)
+    @Transient
+    private Map<String, String> imageSizes;
+
     // Constructors
     public Category() {}
     
@@ -60,6 +74,10 @@ public class Category {
     
     public String getImageUrl() { return imageUrl; }
     public void setImageUrl(String imageUrl) { this.imageUrl = imageUrl; }
+
+    public Integer getImageWidth() { return imageWidth; }
+    public Integer getImageHeight() { return imageHeight; }
+    public Long getImageBytes() { return imageBytes; }
     
     public Boolean getIsActive() { return isActive; } // ✅ THÊM GETTER
     public void setIsActive(Boolean isActive) { this.isActive = isActive; } // ✅ THÊM SETTER
@@ -69,6 +87,9 @@ public class Category {
     
     public LocalDateTime getUpdatedAt() { return updatedAt; }
     public void setUpdatedAt(LocalDateTime updatedAt) { this.updatedAt = updatedAt; }
+
+    public Map<String, String> getImageSizes() { return imageSizes; }
+    public void setImageSizes(Map<String, String> imageSizes) { this.imageSizes = imageSizes; }
     
     // toString method
     @Override
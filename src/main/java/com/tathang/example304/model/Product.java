@@ -11,7 +11,13 @@ import java.time.LocalDateTime;
 import java.util.List; // ✅ BẮT BUỘC
 
 @Entity
-@Table(name = "products")
+@Table(name = "products", indexes = {
+        // Index (key, id) cho keyset pagination theo từng cột sắp xếp
+        @Index(name = "idx_products_name_id", columnList = "name, id"),
+        @Index(name = "idx_products_price_id", columnList = "price, id"),
+        @Index(name = "idx_products_updated_at_id", columnList = "updated_at, id"),
+        @Index(name = "idx_products_category_id", columnList = "category_id, id")
+})
 public class Product {
 
     @Id
@@ -19,7 +25,8 @@ public class Product {
     private Long id;
 
     // 1 Product có nhiều OrderItem
-    @OneToMany(mappedBy = "product", cascade = CascadeType.ALL)
+    // Không cascade: lịch sử order không được đi theo vòng đời sản phẩm (sản phẩm chỉ bị archive)
+    @OneToMany(mappedBy = "product")
     @JsonIgnore
     private List<OrderItem> orderItems;
 
@@ -40,12 +47,25 @@ public class Product {
     @Column(name = "image_url", length = 255)
     private String imageUrl;
 
+    @Column(name = "image_width", insertable = false, updatable = false)
+    private Integer imageWidth;
+
+    @Column(name = "image_height", insertable = false, updatable = false)
+    private Integer imageHeight;
+
+    @Column(name = "image_bytes", insertable = false, updatable = false)
+    private Long imageBytes;
+
     @Column(name = "stock_quantity")
     private Integer stockQuantity;
 
     @Column(name = "archive")
     private Boolean archive = false;
 
+    // Tồn kho đã đổi do order nhưng chưa ghi catalog_changes; chỉ CatalogChangeLogService ghi cột này
+    @Column(name = "stock_change_pending", insertable = false, updatable = false)
+    private Boolean stockChangePending;
+
     @CreationTimestamp
     @Column(name = "created_at", updatable = false)
     private LocalDateTime createdAt;
@@ -113,6 +133,18 @@ public class Product {
         this.imageUrl = imageUrl;
     }
 
+    public Integer getImageWidth() {
+        return imageWidth;
+    }
+
+    public Integer getImageHeight() {
+        return imageHeight;
+    }
+
+    public Long getImageBytes() {
+        return imageBytes;
+    }
+
     public Integer getStockQuantity() {
         return stockQuantity;
     }
@@ -0,0 +1,101 @@
+package com.tathang.example304.model;
+
+import jakarta.persistence.*;
+import java.time.LocalDateTime;
+
+/**
+ * Phần tồn kho đang được giữ cho một dòng của đơn hàng chưa thanh toán. Tồn kho đã bị trừ khi
+ * đặt; thanh toán thì xóa bản ghi (trừ hẳn), hết hạn hoặc hủy đơn thì cộng trả lại.
+ */
+@Entity
+@Table(name = "stock_reservations", uniqueConstraints = {
+        @UniqueConstraint(name = "uk_stock_reservations_order_product", columnNames = { "order_id", "product_id" })
+}, indexes = {
+        @Index(name = "idx_stock_reservations_expires_at", columnList = "expires_at")
+})
+public class StockReservation {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(name = "order_id", nullable = false)
+    private Long orderId;
+
+    @Column(name = "product_id", nullable = false)
+    private Long productId;
+
+    @Column(name = "quantity", nullable = false)
+    private Integer quantity;
+
+    @Column(name = "expires_at", nullable = false)
+    private LocalDateTime expiresAt;
+
+    @Column(name = "created_at", nullable = false)
+    private LocalDateTime createdAt;
+
+    // Giữ hàng cho thanh toán không quá mốc này, null khi chưa bắt đầu thanh toán
+    @Column(name = "hold_until")
+    private LocalDateTime holdUntil;
+
+    // Constructors
+    public StockReservation() {
+    }
+
+    // Getters and Setters
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public Long getOrderId() {
+        return orderId;
+    }
+
+    public void setOrderId(Long orderId) {
+        this.orderId = orderId;
+    }
+
+    public Long getProductId() {
+        return productId;
+    }
+
+    public void setProductId(Long productId) {
+        this.productId = productId;
+    }
+
+    public Integer getQuantity() {
+        return quantity;
+    }
+
+    public void setQuantity(Integer quantity) {
+        this.quantity = quantity;
+    }
+
+    public LocalDateTime getExpiresAt() {
+        return expiresAt;
+    }
+
+    public void setExpiresAt(LocalDateTime expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    public LocalDateTime getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(LocalDateTime createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    public LocalDateTime getHoldUntil() {
+        return holdUntil;
+    }
+
+    public void setHoldUntil(LocalDateTime holdUntil) {
+        this.holdUntil = holdUntil;
+    }
+}
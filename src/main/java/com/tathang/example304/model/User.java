@@ -44,6 +44,15 @@ public class User {
     @Column(name = "image_url", length = 500)
     private String imageUrl;
 
+    @Column(name = "image_width", insertable = false, updatable = false)
+    private Integer imageWidth;
+
+    @Column(name = "image_height", insertable = false, updatable = false)
+    private Integer imageHeight;
+
+    @Column(name = "image_bytes", insertable = false, updatable = false)
+    private Long imageBytes;
+
     @Column(name = "is_active")
     private Boolean isActive = true;
 
@@ -146,6 +155,18 @@ public class User {
         this.imageUrl = imageUrl;
     }
 
+    public Integer getImageWidth() {
+        return imageWidth;
+    }
+
+    public Integer getImageHeight() {
+        return imageHeight;
+    }
+
+    public Long getImageBytes() {
+        return imageBytes;
+    }
+
     public Boolean getActive() {
         return isActive;
     }
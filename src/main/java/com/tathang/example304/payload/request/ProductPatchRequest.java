@@ -0,0 +1,43 @@
+package com.tathang.example304.payload.request;
+
+import java.math.BigDecimal;
+
+// Một dòng trong PATCH /api/admin/products/bulk; field null nghĩa là giữ nguyên
+public class ProductPatchRequest {
+    private Long id;
+    private BigDecimal price;
+    private Integer stockQuantity;
+    private Boolean archive;
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public BigDecimal getPrice() {
+        return price;
+    }
+
+    public void setPrice(BigDecimal price) {
+        this.price = price;
+    }
+
+    public Integer getStockQuantity() {
+        return stockQuantity;
+    }
+
+    public void setStockQuantity(Integer stockQuantity) {
+        this.stockQuantity = stockQuantity;
+    }
+
+    public Boolean getArchive() {
+        return archive;
+    }
+
+    public void setArchive(Boolean archive) {
+        this.archive = archive;
+    }
+}
@@ -0,0 +1,22 @@
+package com.tathang.example304.payload.response;
+
+import com.tathang.example304.dto.ProductSummary;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+import java.util.Map;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class MenuCategoryGroup {
+    private Long categoryId;
+    private String name;
+    private String description;
+    private String imageUrl;
+    private Map<String, String> imageSizes;
+    private List<ProductSummary> products;
+}
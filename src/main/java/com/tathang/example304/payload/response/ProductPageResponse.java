@@ -0,0 +1,19 @@
+package com.tathang.example304.payload.response;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ProductPageResponse<T> {
+    // Product cho trang admin, ProductSummary (catalog_view) cho khách
+    private List<T> items;
+    private int size;
+    private boolean hasMore;
+    // Truyền lại qua ?cursor= để lấy trang kế tiếp, null khi đã hết
+    private String nextCursor;
+}
@@ -0,0 +1,20 @@
+package com.tathang.example304.payload.response;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ProductSearchHit {
+    private Long id;
+    private String name;
+    private BigDecimal price;
+    private String imageUrl;
+    private Long categoryId;
+    private String categoryName;
+    private double score;
+}
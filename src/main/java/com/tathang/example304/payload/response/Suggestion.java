@@ -0,0 +1,16 @@
+package com.tathang.example304.payload.response;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class Suggestion {
+    // PRODUCT hoặc CATEGORY
+    private String type;
+    private Long id;
+    private String text;
+    private long popularity;
+}
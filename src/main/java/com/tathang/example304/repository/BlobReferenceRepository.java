@@ -0,0 +1,17 @@
+package com.tathang.example304.repository;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import com.tathang.example304.model.BlobReference;
+
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface BlobReferenceRepository extends JpaRepository<BlobReference, Long> {
+
+    Optional<BlobReference> findByOwnerTypeAndOwnerId(BlobReference.OwnerType ownerType, Long ownerId);
+
+    List<BlobReference> findByBlobHash(String blobHash);
+}
@@ -0,0 +1,71 @@
+package com.tathang.example304.repository;
+
+import org.springframework.data.domain.Limit;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import com.tathang.example304.model.CatalogChange;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+
+@Repository
+public interface CatalogChangeRepository extends JpaRepository<CatalogChange, Long> {
+
+    List<CatalogChange> findByVersionGreaterThanOrderByVersionAscIdAsc(Long version, Limit limit);
+
+    @Query("SELECT MIN(c.version) FROM CatalogChange c")
+    Long findMinVersion();
+
+    // === VERSION ===
+    // Version đã commit mới nhất
+    @Query(value = "SELECT version FROM catalog_versions WHERE id = 1", nativeQuery = true)
+    Long findCurrentVersion();
+
+    // Khóa dòng bộ đếm đến hết transaction: transaction ghi sau phải chờ commit nên nhận version lớn hơn
+    @Modifying
+    @Query(value = "UPDATE catalog_versions SET version = version + 1 WHERE id = 1", nativeQuery = true)
+    int incrementVersion();
+
+    // Ghi log cho mọi sản phẩm vừa được ghi hàng loạt (import CSV) với cùng updated_at
+    @Modifying
+    @Query(value = """
+            INSERT INTO catalog_changes (entity_type, entity_id, change_type, changed_at, version)
+            SELECT 'PRODUCT', p.id, 'UPDATED', :changedAt, :version FROM products p WHERE p.updated_at = :updatedAt
+            ORDER BY p.id""", nativeQuery = true)
+    int recordProductsUpdatedAt(@Param("updatedAt") LocalDateTime updatedAt,
+            @Param("changedAt") LocalDateTime changedAt, @Param("version") long version);
+
+    @Modifying
+    @Query(value = """
+            INSERT INTO catalog_changes (entity_type, entity_id, change_type, changed_at, version)
+            SELECT 'PRODUCT', p.id, 'UPDATED', :changedAt, :version FROM products p WHERE p.id IN (:ids)
+            ORDER BY p.id""", nativeQuery = true)
+    int recordProductsUpdated(@Param("ids") Collection<Long> ids, @Param("changedAt") LocalDateTime changedAt,
+            @Param("version") long version);
+
+    // === STOCK CHANGES ===
+    // Đánh dấu trên chính dòng products mà transaction đổi tồn kho đã khóa: không thêm tranh chấp khóa nào
+    @Modifying
+    @Query(value = """
+            UPDATE products SET stock_change_pending = true
+            WHERE id IN (:ids) AND stock_change_pending IS NOT TRUE""", nativeQuery = true)
+    int markStockChangePending(@Param("ids") Collection<Long> ids);
+
+    // Khóa theo thứ tự id, trước khi lấy version, như mọi transaction ghi sản phẩm khác
+    @Query(value = "SELECT id FROM products WHERE stock_change_pending = true ORDER BY id FOR UPDATE",
+            nativeQuery = true)
+    List<Long> lockStockChangePending();
+
+    @Modifying
+    @Query(value = "UPDATE products SET stock_change_pending = false WHERE id IN (:ids)", nativeQuery = true)
+    int clearStockChangePending(@Param("ids") Collection<Long> ids);
+
+    @Modifying
+    @Query("DELETE FROM CatalogChange c WHERE c.changedAt < :before")
+    int deleteByChangedAtBefore(@Param("before") LocalDateTime before);
+}
@@ -0,0 +1,41 @@
+package com.tathang.example304.repository;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.JpaSpecificationExecutor;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import com.tathang.example304.dto.ProductSummary;
+import com.tathang.example304.model.CatalogViewEntry;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+// Đọc catalog phía khách: một bảng, không JOIN
+@Repository
+public interface CatalogViewRepository extends JpaRepository<CatalogViewEntry, Long>,
+        JpaSpecificationExecutor<CatalogViewEntry> {
+
+    String SUMMARY = """
+            SELECT new com.tathang.example304.dto.ProductSummary(
+                v.productId, v.name, v.description, v.price, v.imageUrl, v.stockQuantity,
+                v.categoryId, v.categoryName, v.updatedAt, v.effectivePrice, v.promotionId, v.available,
+                v.imageVariants)
+            FROM CatalogViewEntry v
+            """;
+
+    @Query(SUMMARY + "WHERE v.visible = true ORDER BY v.productId")
+    List<ProductSummary> findVisibleSummaries();
+
+    // Trang chi tiết: cả sản phẩm đã ẩn (khách mở lại từ đơn cũ), available cho biết còn đặt được không
+    @Query(SUMMARY + "WHERE v.productId = :id")
+    Optional<ProductSummary> findSummaryById(@Param("id") Long id);
+
+    @Query(SUMMARY + "WHERE v.visible = true AND v.productId IN :ids ORDER BY v.productId")
+    List<ProductSummary> findVisibleSummariesByIdIn(@Param("ids") Collection<Long> ids);
+
+    @Query(SUMMARY + "WHERE v.visible = true AND v.categoryId = :categoryId ORDER BY v.productId")
+    List<ProductSummary> findVisibleSummariesByCategoryId(@Param("categoryId") Long categoryId);
+}
@@ -2,10 +2,13 @@ package com.tathang.example304.repository;
 
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import com.tathang.example304.model.Order;
 import com.tathang.example304.model.OrderItem;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -29,4 +32,11 @@ public interface OrderItemRepository extends JpaRepository<OrderItem, Long> {
             WHERE oi.order.id = :orderId""")
     List<OrderItem> findByOrderIdWithProduct(Long orderId);
 
+    // Tổng số lượng đã bán theo sản phẩm (order ở các trạng thái cho trước), dùng làm độ phổ biến cho gợi ý tìm kiếm
+    @Query("""
+            SELECT oi.product.id, SUM(oi.quantity) FROM OrderItem oi
+            WHERE oi.order.status IN :statuses
+            GROUP BY oi.product.id""")
+    List<Object[]> sumQuantityGroupByProduct(@Param("statuses") Collection<Order.OrderStatus> statuses);
+
 }
\ No newline at end of file
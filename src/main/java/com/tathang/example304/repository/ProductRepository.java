@@ -1,14 +1,19 @@
 package com.tathang.example304.repository;
 
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.JpaSpecificationExecutor;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import com.tathang.example304.model.Product;
 
+import java.time.LocalDateTime;
 import java.util.List;
 
 @Repository
-public interface ProductRepository extends JpaRepository<Product, Long> {
+public interface ProductRepository extends JpaRepository<Product, Long>, JpaSpecificationExecutor<Product> {
     List<Product> findByCategoryId(Long categoryId);
 
     List<Product> findByArchiveFalse();
@@ -16,4 +21,18 @@ public interface ProductRepository extends JpaRepository<Product, Long> {
     List<Product> findByNameContainingIgnoreCase(String name);
 
     List<Product> findByStockQuantityLessThan(Integer quantity);
-}
\ No newline at end of file
+
+    // Trừ tồn kho nguyên tử: kiểm tra và trừ trong cùng một câu lệnh, trả về 0 nếu không đủ hàng.
+    // Chỉ ghi cột tồn kho, không ghi lại cả dòng như save(product)
+    @Modifying(flushAutomatically = true)
+    @Query("""
+            UPDATE Product p SET p.stockQuantity = p.stockQuantity - :quantity, p.updatedAt = :now
+            WHERE p.id = :id AND p.stockQuantity >= :quantity""")
+    int decrementStock(@Param("id") Long id, @Param("quantity") int quantity, @Param("now") LocalDateTime now);
+
+    @Modifying(flushAutomatically = true)
+    @Query("""
+            UPDATE Product p SET p.stockQuantity = p.stockQuantity + :quantity, p.updatedAt = :now
+            WHERE p.id = :id""")
+    int incrementStock(@Param("id") Long id, @Param("quantity") int quantity, @Param("now") LocalDateTime now);
+}
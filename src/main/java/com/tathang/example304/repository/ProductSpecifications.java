@@ -0,0 +1,114 @@
+package com.tathang.example304.repository;
+
+import org.springframework.data.jpa.domain.Specification;
+
+import com.tathang.example304.model.CatalogViewEntry;
+import com.tathang.example304.model.Product;
+
+import jakarta.persistence.criteria.CriteriaBuilder;
+import jakarta.persistence.criteria.Path;
+import jakarta.persistence.criteria.Predicate;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+
+/**
+ * Điều kiện lọc + keyset cho danh sách sản phẩm, trên bảng products (admin) hoặc catalog_view
+ * (khách). Hai entity dùng chung tên thuộc tính name/price/updatedAt nên phần giá + keyset dùng chung.
+ * Mỗi hàm trả về null khi không có giá trị, Specification sẽ tự bỏ qua.
+ */
+public final class ProductSpecifications {
+
+    private ProductSpecifications() {
+    }
+
+    public static Specification<Product> inCategory(Long categoryId) {
+        if (categoryId == null) {
+            return null;
+        }
+        return (root, query, cb) -> cb.equal(root.get("category").get("id"), categoryId);
+    }
+
+    public static Specification<Product> archived(Boolean archive) {
+        if (archive == null) {
+            return null;
+        }
+        return (root, query, cb) -> archive
+                ? cb.isTrue(root.get("archive"))
+                : cb.or(cb.isFalse(root.get("archive")), cb.isNull(root.get("archive")));
+    }
+
+    // catalog_view: danh mục là cột phẳng category_id
+    public static Specification<CatalogViewEntry> inViewCategory(Long categoryId) {
+        if (categoryId == null) {
+            return null;
+        }
+        return (root, query, cb) -> cb.equal(root.get("categoryId"), categoryId);
+    }
+
+    // catalog_view: chỉ sản phẩm đang hiện trên menu
+    public static Specification<CatalogViewEntry> visible() {
+        return (root, query, cb) -> cb.isTrue(root.get("visible"));
+    }
+
+    public static <T> Specification<T> priceBetween(BigDecimal minPrice, BigDecimal maxPrice) {
+        if (minPrice == null && maxPrice == null) {
+            return null;
+        }
+        return (root, query, cb) -> {
+            if (minPrice == null) {
+                return cb.lessThanOrEqualTo(root.get("price"), maxPrice);
+            }
+            if (maxPrice == null) {
+                return cb.greaterThanOrEqualTo(root.get("price"), minPrice);
+            }
+            return cb.between(root.get("price"), minPrice, maxPrice);
+        };
+    }
+
+    // Keyset không so sánh được NULL: dòng thiếu khóa sắp xếp bị loại ở mọi trang, kể cả trang đầu,
+    // để không có dòng nào hiện ở trang này mà không phân trang tiếp được. DataInitializer điền
+    // updated_at cho dữ liệu cũ nên thực tế không dòng nào bị loại.
+    public static <T> Specification<T> hasSortKey(String sortField) {
+        if (!"updatedAt".equals(sortField)) {
+            return null;
+        }
+        return (root, query, cb) -> cb.isNotNull(root.get("updatedAt"));
+    }
+
+    /**
+     * Keyset: (key, id) đứng sau cặp (lastValue, lastId) theo chiều sắp xếp.
+     * Dùng index (key, id) thay vì OFFSET. idField là "id" với Product, "productId" với catalog_view.
+     */
+    public static <T> Specification<T> after(String idField, String sortField, boolean ascending, Object lastValue,
+            Long lastId) {
+        if (lastId == null) {
+            return null;
+        }
+        return (root, query, cb) -> switch (sortField) {
+            case "name" -> {
+                var key = root.<String>get("name");
+                String value = (String) lastValue;
+                yield cb.or(ascending ? cb.greaterThan(key, value) : cb.lessThan(key, value),
+                        cb.and(cb.equal(key, value), idAfter(cb, root.get(idField), ascending, lastId)));
+            }
+            case "price" -> {
+                var key = root.<BigDecimal>get("price");
+                BigDecimal value = (BigDecimal) lastValue;
+                yield cb.or(ascending ? cb.greaterThan(key, value) : cb.lessThan(key, value),
+                        cb.and(cb.equal(key, value), idAfter(cb, root.get(idField), ascending, lastId)));
+            }
+            case "updatedAt" -> {
+                var key = root.<LocalDateTime>get("updatedAt");
+                LocalDateTime value = (LocalDateTime) lastValue;
+                yield cb.or(ascending ? cb.greaterThan(key, value) : cb.lessThan(key, value),
+                        cb.and(cb.equal(key, value), idAfter(cb, root.get(idField), ascending, lastId)));
+            }
+            default -> idAfter(cb, root.get(idField), ascending, lastId);
+        };
+    }
+
+    private static Predicate idAfter(CriteriaBuilder cb, Path<Long> id, boolean ascending, Long lastId) {
+        return ascending ? cb.greaterThan(id, lastId) : cb.lessThan(id, lastId);
+    }
+}
@@ -9,6 +9,7 @@ import org.springframework.transaction.annotation.Transactional; // THÊM IMPORT
 
 import com.tathang.example304.model.PromotionProduct;
 
+import java.util.Collection;
 import java.util.List;
 
 @Repository
@@ -21,6 +22,10 @@ public interface PromotionProductRepository extends JpaRepository<PromotionProdu
     @Query("SELECT pp FROM PromotionProduct pp WHERE pp.promotion.id = :promotionId")
     List<PromotionProduct> findProductsByPromotionId(@Param("promotionId") Long promotionId);
 
+    // [promotionId, productId], không hydrate entity
+    @Query("SELECT pp.promotion.id, pp.product.id FROM PromotionProduct pp WHERE pp.promotion.id IN :promotionIds")
+    List<Object[]> findProductIdsByPromotionIdIn(@Param("promotionIds") Collection<Long> promotionIds);
+
     @Modifying
     @Transactional // THÊM DÒNG NÀY
     @Query("DELETE FROM PromotionProduct pp WHERE pp.promotion.id = :promotionId AND pp.product.id = :productId")
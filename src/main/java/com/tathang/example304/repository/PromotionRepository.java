@@ -16,6 +16,10 @@ public interface PromotionRepository extends JpaRepository<Promotion, Long> {
     
     @Query("SELECT p FROM Promotion p WHERE p.isActive = true AND p.startDate <= :currentDate AND p.endDate >= :currentDate")
     List<Promotion> findActivePromotions(@Param("currentDate") LocalDate currentDate);
+
+    // Ngày bắt đầu gần nhất của các khuyến mãi chưa tới hạn
+    @Query("SELECT MIN(p.startDate) FROM Promotion p WHERE p.isActive = true AND p.startDate > :currentDate")
+    LocalDate findNextStartDate(@Param("currentDate") LocalDate currentDate);
     
     List<Promotion> findByNameContainingIgnoreCase(String name);
 }
\ No newline at end of file
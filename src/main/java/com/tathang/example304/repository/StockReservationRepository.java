@@ -0,0 +1,18 @@
+package com.tathang.example304.repository;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.stereotype.Repository;
+
+import com.tathang.example304.model.StockReservation;
+
+import java.util.List;
+
+@Repository
+public interface StockReservationRepository extends JpaRepository<StockReservation, Long> {
+
+    List<StockReservation> findByOrderId(Long orderId);
+
+    @Query("SELECT COALESCE(SUM(r.quantity), 0) FROM StockReservation r")
+    long sumQuantity();
+}
@@ -0,0 +1,28 @@
+package com.tathang.example304.repository;
+
+import org.springframework.data.domain.Limit;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import com.tathang.example304.model.StoredBlob;
+
+import java.util.List;
+
+@Repository
+public interface StoredBlobRepository extends JpaRepository<StoredBlob, String> {
+
+    // Tăng/giảm trực tiếp trong DB để hai request song song không ghi đè số đếm của nhau
+    @Modifying
+    @Query("UPDATE StoredBlob b SET b.refCount = b.refCount + :delta WHERE b.hash = :hash")
+    int adjustRefCount(@Param("hash") String hash, @Param("delta") int delta);
+
+    // Blob chưa được sinh biến thể (upload lúc hàng đợi đầy, hoặc app restart giữa chừng)
+    List<StoredBlob> findByVariantsIsNullOrderByCreatedAtAsc(Limit limit);
+
+    @Modifying
+    @Query("UPDATE StoredBlob b SET b.variants = :variants WHERE b.hash = :hash")
+    int updateVariants(@Param("hash") String hash, @Param("variants") String variants);
+}
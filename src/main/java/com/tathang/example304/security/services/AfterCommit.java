@@ -0,0 +1,28 @@
+package com.tathang.example304.security.services;
+
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Chạy một tác vụ sau khi transaction hiện tại commit (hoặc chạy ngay nếu
+ * không có transaction). Dùng cho cache/index trong bộ nhớ để không bao giờ
+ * chứa dữ liệu bị rollback.
+ */
+public final class AfterCommit {
+
+    private AfterCommit() {
+    }
+
+    public static void run(Runnable action) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+            });
+        } else {
+            action.run();
+        }
+    }
+}
@@ -16,10 +16,13 @@ public class BillService {
 
     private final BillRepository billRepository;
     private final OrderRepository orderRepository;
+    private final StockReservationService stockReservationService;
 
-    public BillService(BillRepository billRepository, OrderRepository orderRepository) {
+    public BillService(BillRepository billRepository, OrderRepository orderRepository,
+            StockReservationService stockReservationService) {
         this.billRepository = billRepository;
         this.orderRepository = orderRepository;
+        this.stockReservationService = stockReservationService;
     }
 
     // ✅ CASH / MOMO
@@ -42,6 +45,7 @@ public class BillService {
             bill.setPaymentStatus(Bill.PaymentStatus.PENDING); // ⏳ chờ webhook
         } else {
             bill.setPaymentStatus(Bill.PaymentStatus.COMPLETED); // CASH / MOMO
+            stockReservationService.convert(orderId);
             order.setStatus(Order.OrderStatus.PAID);
             orderRepository.save(order);
         }
@@ -0,0 +1,174 @@
+package com.tathang.example304.security.services;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import com.tathang.example304.model.BlobReference;
+import com.tathang.example304.repository.BlobReferenceRepository;
+import com.tathang.example304.repository.StoredBlobRepository;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Theo dõi Product/Category/User nào đang dùng blob nào và giữ ref_count của blob.
+ * Gọi trong cùng transaction với thao tác ghi image_url của owner.
+ */
+@Slf4j
+@Service
+public class BlobReferenceService {
+
+    private static final int BATCH_SIZE = 500;
+
+    private final BlobReferenceRepository blobReferenceRepository;
+    private final StoredBlobRepository storedBlobRepository;
+    private final JdbcTemplate jdbcTemplate;
+
+    public BlobReferenceService(BlobReferenceRepository blobReferenceRepository,
+            StoredBlobRepository storedBlobRepository,
+            JdbcTemplate jdbcTemplate) {
+        this.blobReferenceRepository = blobReferenceRepository;
+        this.storedBlobRepository = storedBlobRepository;
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    // === WRITE ===
+
+    /**
+     * Owner đang dùng imageUrl. URL không phải content-addressed (ảnh cũ, URL ngoài)
+     * thì chỉ bỏ tham chiếu cũ.
+     */
+    public void track(BlobReference.OwnerType ownerType, Long ownerId, String imageUrl) {
+        String hash = FileStorageService.hashOf(imageUrl);
+        Optional<BlobReference> existing = blobReferenceRepository.findByOwnerTypeAndOwnerId(ownerType, ownerId);
+        if (existing.isPresent() && existing.get().getBlobHash().equals(hash)) {
+            return;
+        }
+        if (hash == null || !storedBlobRepository.existsById(hash)) {
+            existing.ifPresent(this::drop);
+            recordImageSize(ownerType, ownerId, null);
+            return;
+        }
+        // Đổi ảnh: sửa tại chỗ dòng tham chiếu của owner (unique theo owner)
+        BlobReference reference = existing.orElseGet(() -> new BlobReference(null, ownerType, ownerId));
+        if (reference.getBlobHash() != null) {
+            storedBlobRepository.adjustRefCount(reference.getBlobHash(), -1);
+        }
+        reference.setBlobHash(hash);
+        blobReferenceRepository.save(reference);
+        storedBlobRepository.adjustRefCount(hash, 1);
+        recordImageSize(ownerType, ownerId, hash);
+    }
+
+    /**
+     * Chép width/height/bytes của blob sang image_width/image_height/image_bytes của owner
+     * (products, categories, users). Chỉ chỗ này ghi các cột đó; entity khai báo chúng
+     * insertable/updatable = false nên JPA flush entity không ghi đè.
+     */
+    private void recordImageSize(BlobReference.OwnerType ownerType, Long ownerId, String hash) {
+        jdbcTemplate.update("UPDATE " + tableOf(ownerType) + """
+                 SET image_width = (SELECT width FROM stored_blobs WHERE hash = ?),
+                     image_height = (SELECT height FROM stored_blobs WHERE hash = ?),
+                     image_bytes = (SELECT size_bytes FROM stored_blobs WHERE hash = ?)
+                WHERE id = ?""", hash, hash, hash, ownerId);
+    }
+
+    private static String tableOf(BlobReference.OwnerType ownerType) {
+        return switch (ownerType) {
+            case PRODUCT -> "products";
+            case CATEGORY -> "categories";
+            case USER -> "users";
+        };
+    }
+
+    // Owner bị xóa hẳn
+    public void release(BlobReference.OwnerType ownerType, Long ownerId) {
+        blobReferenceRepository.findByOwnerTypeAndOwnerId(ownerType, ownerId).ifPresent(this::drop);
+    }
+
+    // Xóa hàng loạt (purge): trừ ref_count theo số tham chiếu bị bỏ của từng blob
+    public void releaseAll(BlobReference.OwnerType ownerType, Collection<Long> ownerIds) {
+        if (ownerIds.isEmpty()) {
+            return;
+        }
+        adjustRefCounts(ownerType, ownerIds, -1);
+        jdbcTemplate.update("DELETE FROM blob_references WHERE owner_type = ? AND owner_id IN (" + placeholders(ownerIds)
+                + ")", ownerArgs(ownerType, ownerIds));
+    }
+
+    /**
+     * Ghi hàng loạt image_url (import CSV): cập nhật tham chiếu theo image_url hiện tại của đúng
+     * các owner vừa ghi, theo lô. Chỉ owner có blob khác với tham chiếu đang lưu mới bị bỏ và
+     * ghi lại tham chiếu, mỗi lô vài câu set-based.
+     */
+    public void trackAll(BlobReference.OwnerType ownerType, List<Long> ownerIds) {
+        String table = tableOf(ownerType);
+        for (int from = 0; from < ownerIds.size(); from += BATCH_SIZE) {
+            List<Long> batch = ownerIds.subList(from, Math.min(from + BATCH_SIZE, ownerIds.size()));
+            List<Long> changed = jdbcTemplate.queryForList("""
+                    SELECT o.id FROM %s o
+                    LEFT JOIN stored_blobs b ON o.image_url = CONCAT('/uploads/', b.file_name)
+                    LEFT JOIN blob_references r ON r.owner_type = ? AND r.owner_id = o.id
+                    WHERE o.id IN (%s) AND COALESCE(b.hash, '') <> COALESCE(r.blob_hash, '')"""
+                    .formatted(table, placeholders(batch)), Long.class, ownerArgs(ownerType, batch));
+            if (changed.isEmpty()) {
+                continue;
+            }
+            releaseAll(ownerType, changed);
+            String placeholders = placeholders(changed);
+            jdbcTemplate.update("""
+                    INSERT INTO blob_references (blob_hash, owner_type, owner_id)
+                    SELECT b.hash, ?, o.id FROM %s o
+                    JOIN stored_blobs b ON o.image_url = CONCAT('/uploads/', b.file_name)
+                    WHERE o.id IN (%s)""".formatted(table, placeholders), ownerArgs(ownerType, changed));
+            adjustRefCounts(ownerType, changed, 1);
+            jdbcTemplate.update("""
+                    UPDATE %1$s SET
+                        image_width = (SELECT b.width FROM stored_blobs b WHERE %1$s.image_url = CONCAT('/uploads/', b.file_name)),
+                        image_height = (SELECT b.height FROM stored_blobs b WHERE %1$s.image_url = CONCAT('/uploads/', b.file_name)),
+                        image_bytes = (SELECT b.size_bytes FROM stored_blobs b WHERE %1$s.image_url = CONCAT('/uploads/', b.file_name))
+                    WHERE id IN (%2$s)""".formatted(table, placeholders), changed.toArray());
+            log.debug("🔗 Blob references updated for {} {} rows", changed.size(), table);
+        }
+    }
+
+    // Cộng (+1) hoặc trừ (-1) ref_count theo số tham chiếu của các owner này tới từng blob
+    private void adjustRefCounts(BlobReference.OwnerType ownerType, Collection<Long> ownerIds, int sign) {
+        String placeholders = placeholders(ownerIds);
+        Object[] ownerArgs = ownerArgs(ownerType, ownerIds);
+        Object[] args = new Object[ownerArgs.length * 2];
+        System.arraycopy(ownerArgs, 0, args, 0, ownerArgs.length);
+        System.arraycopy(ownerArgs, 0, args, ownerArgs.length, ownerArgs.length);
+        jdbcTemplate.update("""
+                UPDATE stored_blobs SET ref_count = ref_count %s (
+                    SELECT COUNT(*) FROM blob_references r
+                    WHERE r.blob_hash = stored_blobs.hash AND r.owner_type = ? AND r.owner_id IN (%s))
+                WHERE hash IN (SELECT r.blob_hash FROM blob_references r
+                    WHERE r.owner_type = ? AND r.owner_id IN (%s))"""
+                .formatted(sign < 0 ? "-" : "+", placeholders, placeholders), args);
+    }
+
+    private static String placeholders(Collection<Long> ids) {
+        return String.join(",", Collections.nCopies(ids.size(), "?"));
+    }
+
+    // owner_type rồi tới các owner_id, theo thứ tự placeholder "owner_type = ? AND owner_id IN (...)"
+    private static Object[] ownerArgs(BlobReference.OwnerType ownerType, Collection<Long> ownerIds) {
+        Object[] args = new Object[ownerIds.size() + 1];
+        args[0] = ownerType.name();
+        int i = 1;
+        for (Long id : ownerIds) {
+            args[i++] = id;
+        }
+        return args;
+    }
+
+    private void drop(BlobReference reference) {
+        blobReferenceRepository.delete(reference);
+        storedBlobRepository.adjustRefCount(reference.getBlobHash(), -1);
+    }
+}
@@ -0,0 +1,50 @@
+package com.tathang.example304.security.services;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.time.Instant;
+
+/**
+ * Nơi lưu nội dung file upload, chọn bằng file.storage.type (local | s3).
+ * Key là tên file phẳng (vd. "&lt;sha256&gt;.jpg"), có thể kèm một tiền tố thư mục như ".orphans/".
+ * URL lưu trong DB luôn là /uploads/&lt;key&gt; dù dùng backend nào, nên đổi backend không phải sửa dữ liệu.
+ */
+public interface BlobStore {
+
+    /** Đưa file tạm (nằm trong thư mục upload) lên store. File nguồn có thể bị chuyển đi; caller xóa phần còn lại. */
+    void put(String key, Path source, String contentType) throws IOException;
+
+    /** Kích thước và thời gian sửa của key, null nếu không có. */
+    StoredObject stat(String key) throws IOException;
+
+    /** Làm mới thời gian sửa (để tính thời gian ân hạn khi dọn file); false nếu không có key. */
+    boolean touch(String key);
+
+    InputStream open(String key) throws IOException;
+
+    void delete(String key) throws IOException;
+
+    void move(String fromKey, String toKey) throws IOException;
+
+    /** Duyệt lần lượt các object có tiền tố prefix ("" hoặc "thư-mục/"), không gom hết vào bộ nhớ. */
+    void list(String prefix, ObjectVisitor visitor) throws IOException;
+
+    /**
+     * URL client tải trực tiếp nội dung (bucket/CDN), null nếu app tự phục vụ qua UploadController.
+     */
+    String publicUrl(String key);
+
+    /** File trên đĩa cục bộ của key, null nếu store không phải local. */
+    default Path localPath(String key) {
+        return null;
+    }
+
+    record StoredObject(String key, long size, Instant lastModified) {
+    }
+
+    @FunctionalInterface
+    interface ObjectVisitor {
+        void visit(StoredObject object) throws IOException;
+    }
+}
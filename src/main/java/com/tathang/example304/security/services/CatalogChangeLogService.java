@@ -0,0 +1,234 @@
+package com.tathang.example304.security.services;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Limit;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.tathang.example304.dto.ProductSummary;
+import com.tathang.example304.model.CatalogChange;
+import com.tathang.example304.model.Category;
+import com.tathang.example304.repository.CatalogChangeRepository;
+import com.tathang.example304.repository.CatalogViewRepository;
+import com.tathang.example304.repository.CategoryRepository;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Ghi nhật ký thay đổi catalog và trả về delta cho client
+ * ("những gì đã đổi sau version N").
+ * Version lấy từ bộ đếm catalog_versions, tăng một lần cho mỗi transaction ghi và bị khóa
+ * đến lúc commit, nên client đã thấy version N thì mọi thay đổi có version <= N đều đã commit.
+ * Tồn kho đổi theo từng order nên không ghi ngay mà đánh dấu trên dòng products, định kỳ ghi một
+ * dòng mỗi sản phẩm.
+ */
+@Slf4j
+@Service
+public class CatalogChangeLogService {
+
+    // Quá số thay đổi này thì gửi luôn bản đầy đủ cho nhẹ hơn
+    private static final int MAX_DELTA_CHANGES = 500;
+    // Khóa resource gắn với transaction, giữ version đã cấp để cả transaction dùng chung một version
+    private static final Object VERSION_RESOURCE = new Object();
+
+    private final CatalogChangeRepository catalogChangeRepository;
+    private final CatalogViewRepository catalogViewRepository;
+    private final CategoryRepository categoryRepository;
+    private final CatalogSnapshotService catalogSnapshotService;
+    private final TransactionTemplate transactionTemplate;
+
+    @Value("${catalog.changelog.retention-days:30}")
+    private int retentionDays;
+
+    public CatalogChangeLogService(CatalogChangeRepository catalogChangeRepository,
+            CatalogViewRepository catalogViewRepository,
+            CategoryRepository categoryRepository,
+            CatalogSnapshotService catalogSnapshotService,
+            TransactionTemplate transactionTemplate) {
+        this.catalogChangeRepository = catalogChangeRepository;
+        this.catalogViewRepository = catalogViewRepository;
+        this.categoryRepository = categoryRepository;
+        this.catalogSnapshotService = catalogSnapshotService;
+        this.transactionTemplate = transactionTemplate;
+    }
+
+    // === WRITE ===
+    // Gọi trong cùng transaction với thao tác ghi product/category
+    public void record(CatalogChange.EntityType entityType, Long entityId, CatalogChange.ChangeType changeType) {
+        catalogChangeRepository.save(new CatalogChange(entityType, entityId, changeType, nextVersion()));
+    }
+
+    public void recordProduct(Long productId, CatalogChange.ChangeType changeType) {
+        record(CatalogChange.EntityType.PRODUCT, productId, changeType);
+    }
+
+    // Một câu INSERT ... SELECT cho cả danh sách
+    public void recordProductsUpdated(Collection<Long> productIds) {
+        if (!productIds.isEmpty()) {
+            catalogChangeRepository.recordProductsUpdated(productIds, LocalDateTime.now(), nextVersion());
+        }
+    }
+
+    // Mọi sản phẩm ghi hàng loạt với cùng updated_at (import CSV)
+    public void recordProductsUpdatedAt(LocalDateTime updatedAt) {
+        catalogChangeRepository.recordProductsUpdatedAt(updatedAt, LocalDateTime.now(), nextVersion());
+    }
+
+    /**
+     * Tồn kho đổi do order (thêm/sửa/xóa món, hết hạn giữ hàng). Gọi trong transaction đổi tồn kho:
+     * chỉ bật stock_change_pending trên dòng products (không lấy version, không khóa bộ đếm), nên
+     * đánh dấu commit/rollback cùng thay đổi và không mất khi app chết trước lần ghi log.
+     * flushStockChanges ghi một dòng cho mỗi sản phẩm, nên giờ cao điểm không làm đầy cửa sổ delta.
+     */
+    public void recordStockChanged(Collection<Long> productIds) {
+        if (!productIds.isEmpty()) {
+            catalogChangeRepository.markStockChangePending(productIds);
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${catalog.changelog.stock-flush-ms:30000}")
+    public void flushStockChanges() {
+        try {
+            transactionTemplate.executeWithoutResult(status -> {
+                List<Long> ids = catalogChangeRepository.lockStockChangePending();
+                if (!ids.isEmpty()) {
+                    catalogChangeRepository.clearStockChangePending(ids);
+                    recordProductsUpdated(ids);
+                }
+            });
+        } catch (RuntimeException e) {
+            // Đánh dấu vẫn còn trong DB, lần sau ghi tiếp
+            log.warn("⚠️ Could not log stock changes: {}", e.getMessage());
+        }
+    }
+
+    public void recordCategory(Long categoryId, CatalogChange.ChangeType changeType) {
+        record(CatalogChange.EntityType.CATEGORY, categoryId, changeType);
+    }
+
+    // Tăng bộ đếm lần đầu trong transaction rồi dùng lại; dòng bộ đếm bị khóa đến khi commit
+    private long nextVersion() {
+        if (!TransactionSynchronizationManager.isActualTransactionActive()) {
+            throw new IllegalStateException("Catalog change phải được ghi trong transaction");
+        }
+        Long version = (Long) TransactionSynchronizationManager.getResource(VERSION_RESOURCE);
+        if (version == null) {
+            if (catalogChangeRepository.incrementVersion() == 0) {
+                throw new IllegalStateException("Chưa khởi tạo bảng catalog_versions");
+            }
+            version = catalogChangeRepository.findCurrentVersion();
+            TransactionSynchronizationManager.bindResource(VERSION_RESOURCE, version);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    TransactionSynchronizationManager.unbindResourceIfPossible(VERSION_RESOURCE);
+                }
+            });
+        }
+        return version;
+    }
+
+    // Version đã commit mới nhất, 0 nếu chưa có
+    public long currentVersion() {
+        Long version = catalogChangeRepository.findCurrentVersion();
+        return version == null ? 0 : version;
+    }
+
+    // === READ ===
+    @Transactional(readOnly = true)
+    public Map<String, Object> getChangesSince(long since) {
+        long latest = currentVersion();
+        // Chưa từng sync hoặc version lạ (không do server này cấp)
+        if (since <= 0 || since > latest) {
+            return fullSnapshot();
+        }
+        if (since == latest) {
+            return delta(latest, List.of(), List.of(), Set.of(), Set.of());
+        }
+        // Client quá cũ, phần log cần thiết đã bị dọn
+        Long oldest = catalogChangeRepository.findMinVersion();
+        if (oldest != null && since < oldest - 1) {
+            return fullSnapshot();
+        }
+
+        List<CatalogChange> changes = catalogChangeRepository.findByVersionGreaterThanOrderByVersionAscIdAsc(
+                since, Limit.of(MAX_DELTA_CHANGES + 1));
+        if (changes.size() > MAX_DELTA_CHANGES) {
+            return fullSnapshot();
+        }
+
+        // Version cấp theo thứ tự commit: đã thấy một dòng version V thì mọi dòng <= V đều đã thấy
+        long version = latest;
+        Set<Long> productIds = new LinkedHashSet<>();
+        Set<Long> categoryIds = new LinkedHashSet<>();
+        for (CatalogChange change : changes) {
+            version = Math.max(version, change.getVersion());
+            if (change.getEntityType() == CatalogChange.EntityType.PRODUCT) {
+                productIds.add(change.getEntityId());
+            } else {
+                categoryIds.add(change.getEntityId());
+            }
+        }
+
+        // Trạng thái hiện tại của các bản ghi đã đổi; không còn (xóa/archive) thì báo removed
+        List<ProductSummary> products = productIds.isEmpty()
+                ? List.of()
+                : catalogViewRepository.findVisibleSummariesByIdIn(productIds);
+        List<Category> categories = categoryIds.isEmpty()
+                ? List.of()
+                : categoryRepository.findAllById(categoryIds);
+
+        Set<Long> removedProductIds = new LinkedHashSet<>(productIds);
+        products.forEach(p -> removedProductIds.remove(p.id()));
+        Set<Long> removedCategoryIds = new LinkedHashSet<>(categoryIds);
+        categories.forEach(c -> removedCategoryIds.remove(c.getId()));
+
+        return delta(version, products, categories, removedProductIds, removedCategoryIds);
+    }
+
+    private Map<String, Object> delta(long version, List<ProductSummary> products, List<Category> categories,
+            Set<Long> removedProductIds, Set<Long> removedCategoryIds) {
+        Map<String, Object> response = new HashMap<>();
+        response.put("full", false);
+        response.put("version", version);
+        response.put("products", products);
+        response.put("categories", categories);
+        response.put("removedProductIds", removedProductIds);
+        response.put("removedCategoryIds", removedCategoryIds);
+        return response;
+    }
+
+    private Map<String, Object> fullSnapshot() {
+        CatalogSnapshotService.Snapshot snapshot = catalogSnapshotService.getSnapshot();
+        Map<String, Object> response = new HashMap<>();
+        response.put("full", true);
+        response.put("version", snapshot.getSyncVersion());
+        response.put("products", snapshot.getMenuItems());
+        response.put("categories", snapshot.getCategories());
+        response.put("removedProductIds", List.of());
+        response.put("removedCategoryIds", List.of());
+        return response;
+    }
+
+    // === RETENTION ===
+    @Scheduled(cron = "${catalog.changelog.trim-cron:0 30 3 * * *}")
+    @Transactional
+    public void trimOldChanges() {
+        int deleted = catalogChangeRepository.deleteByChangedAtBefore(LocalDateTime.now().minusDays(retentionDays));
+        if (deleted > 0) {
+            log.info("🧹 Trimmed {} catalog changes older than {} days", deleted, retentionDays);
+        }
+    }
+}
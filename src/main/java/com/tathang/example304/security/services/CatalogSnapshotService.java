@@ -0,0 +1,325 @@
+package com.tathang.example304.security.services;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.tathang.example304.dto.ImageSizes;
+import com.tathang.example304.dto.ProductSummary;
+import com.tathang.example304.model.Category;
+import com.tathang.example304.payload.response.MenuCategoryGroup;
+import com.tathang.example304.repository.CatalogChangeRepository;
+import com.tathang.example304.repository.CatalogViewRepository;
+import com.tathang.example304.repository.CategoryRepository;
+import com.tathang.example304.repository.StoredBlobRepository;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Giữ menu + danh mục dưới dạng JSON đã serialize sẵn trong bộ nhớ.
+ * Snapshot là bất biến và được thay thế nguyên khối mỗi khi catalog thay đổi,
+ * nên request đọc không bao giờ chạm tới DB.
+ * Tồn kho có version riêng (stockVersion): đổi theo từng order nên chỉ làm mất hiệu lực
+ * ETag của tài nguyên có hiển thị tồn kho, và snapshot chỉ dựng lại vì tồn kho tối đa
+ * mỗi catalog.snapshot.stock-refresh-ms.
+ */
+@Slf4j
+@Service
+public class CatalogSnapshotService {
+
+    private final CatalogViewRepository catalogViewRepository;
+    private final CategoryRepository categoryRepository;
+    private final CatalogChangeRepository catalogChangeRepository;
+    private final StoredBlobRepository storedBlobRepository;
+    private final ObjectMapper objectMapper;
+
+    private final AtomicReference<Snapshot> current = new AtomicReference<>();
+    private final AtomicLong catalogVersion = new AtomicLong(1);
+    private final AtomicLong stockVersion = new AtomicLong(1);
+    private final AtomicLong rebuildCount = new AtomicLong();
+    // Một luồng dựng lại vì tồn kho, các luồng khác vẫn trả snapshot hiện tại
+    private final AtomicBoolean stockRefreshing = new AtomicBoolean();
+
+    @Value("${catalog.snapshot.stock-refresh-ms:2000}")
+    private long stockRefreshMs;
+
+    // Version chỉ sống trong bộ nhớ, ghép thêm thời điểm khởi động để ETag không trùng sau restart
+    private final String epoch = Long.toString(System.currentTimeMillis(), 36);
+
+    public CatalogSnapshotService(CatalogViewRepository catalogViewRepository,
+            CategoryRepository categoryRepository,
+            CatalogChangeRepository catalogChangeRepository,
+            StoredBlobRepository storedBlobRepository,
+            ObjectMapper objectMapper) {
+        this.catalogViewRepository = catalogViewRepository;
+        this.categoryRepository = categoryRepository;
+        this.catalogChangeRepository = catalogChangeRepository;
+        this.storedBlobRepository = storedBlobRepository;
+        this.objectMapper = objectMapper;
+    }
+
+    // === READ ===
+    public Snapshot getSnapshot() {
+        Snapshot snapshot = current.get();
+        if (snapshot == null || snapshot.getVersion() != catalogVersion.get()) {
+            synchronized (this) {
+                snapshot = current.get();
+                if (snapshot != null && snapshot.getVersion() == catalogVersion.get()) {
+                    return snapshot;
+                }
+                return rebuild();
+            }
+        }
+        if (snapshot.getStockVersion() == stockVersion.get()
+                || snapshot.getBuiltAt().plusNanos(stockRefreshMs * 1_000_000).isAfter(LocalDateTime.now())
+                || !stockRefreshing.compareAndSet(false, true)) {
+            return snapshot;
+        }
+        try {
+            return rebuild();
+        } catch (RuntimeException e) {
+            log.error("❌ Catalog snapshot stock refresh failed", e);
+            return snapshot;
+        } finally {
+            stockRefreshing.set(false);
+        }
+    }
+
+    public long getCurrentVersion() {
+        return catalogVersion.get();
+    }
+
+    /**
+     * Strong ETag cho tài nguyên có hiển thị tồn kho (sản phẩm). Không cần load entity:
+     * mọi thay đổi catalog hoặc tồn kho đều tăng version nên ETag cũ tự mất hiệu lực.
+     */
+    public String etag(String resource) {
+        return etag(resource, catalogVersion.get(), stockVersion.get());
+    }
+
+    public String etag(String resource, Snapshot snapshot) {
+        return etag(resource, snapshot.getVersion(), snapshot.getStockVersion());
+    }
+
+    private String etag(String resource, long version, long stock) {
+        return "\"" + resource + "-" + epoch + "-" + version + "." + stock + "\"";
+    }
+
+    // ETag cho tài nguyên không có tồn kho (danh mục): order không làm đổi
+    public String catalogEtag(String resource) {
+        return catalogEtag(resource, catalogVersion.get());
+    }
+
+    public String catalogEtag(String resource, long version) {
+        return "\"" + resource + "-" + epoch + "-" + version + "\"";
+    }
+
+    // === REBUILD ===
+    public synchronized Snapshot rebuild() {
+        // Đọc version trước khi query, thay đổi xảy ra giữa chừng sẽ làm snapshot stale
+        long version = catalogVersion.get();
+        long stock = stockVersion.get();
+        // Version change log tại thời điểm build, client dùng làm ?since= cho delta sync
+        Long syncVersion = catalogChangeRepository.findCurrentVersion();
+        // Đọc thẳng bảng catalog_view: không JOIN, giá khuyến mãi đã được ghi sẵn
+        List<ProductSummary> products = catalogViewRepository.findVisibleSummaries();
+        List<Category> categories = categoryRepository.findAll();
+        fillImageSizes(categories);
+
+        try {
+            Snapshot snapshot = new Snapshot(
+                    version,
+                    stock,
+                    syncVersion == null ? 0 : syncVersion,
+                    LocalDateTime.now(),
+                    List.copyOf(products),
+                    List.copyOf(categories),
+                    objectMapper.writeValueAsBytes(products),
+                    objectMapper.writeValueAsBytes(categories),
+                    objectMapper.writeValueAsBytes(groupByCategory(products, categories)),
+                    products.size(),
+                    categories.size());
+
+            current.set(snapshot);
+            rebuildCount.incrementAndGet();
+            log.info("📦 Catalog snapshot v{} built ({} products, {} categories)",
+                    snapshot.getVersion(), snapshot.getProductCount(), snapshot.getCategoryCount());
+            return snapshot;
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException("Không thể serialize catalog: " + e.getMessage(), e);
+        }
+    }
+
+    // Một query cho biến thể ảnh của mọi danh mục
+    private void fillImageSizes(List<Category> categories) {
+        Set<String> hashes = new HashSet<>();
+        for (Category category : categories) {
+            String hash = FileStorageService.hashOf(category.getImageUrl());
+            if (hash != null) {
+                hashes.add(hash);
+            }
+        }
+        Map<String, String> variants = new HashMap<>();
+        if (!hashes.isEmpty()) {
+            storedBlobRepository.findAllById(hashes).forEach(blob -> {
+                if (blob.getVariants() != null) {
+                    variants.put(blob.getHash(), blob.getVariants());
+                }
+            });
+        }
+        for (Category category : categories) {
+            category.setImageSizes(ImageSizes.of(category.getImageUrl(),
+                    variants.get(FileStorageService.hashOf(category.getImageUrl()))));
+        }
+    }
+
+    /**
+     * Menu nhóm theo danh mục, dựng từ chính dữ liệu của snapshot (không query thêm).
+     * Bỏ danh mục isActive = false cùng sản phẩm của nó; danh mục xếp theo tên rồi id,
+     * sản phẩm trong nhóm xếp theo tên rồi id để thứ tự ổn định giữa các lần build.
+     */
+    private List<MenuCategoryGroup> groupByCategory(List<ProductSummary> products, List<Category> categories) {
+        Map<Long, List<ProductSummary>> byCategory = new HashMap<>();
+        for (ProductSummary product : products) {
+            if (product.categoryId() != null) {
+                byCategory.computeIfAbsent(product.categoryId(), id -> new ArrayList<>()).add(product);
+            }
+        }
+
+        Comparator<String> byName = Comparator.nullsLast(String.CASE_INSENSITIVE_ORDER);
+        List<MenuCategoryGroup> groups = new ArrayList<>();
+        categories.stream()
+                .filter(category -> !Boolean.FALSE.equals(category.getIsActive()))
+                .sorted(Comparator.comparing(Category::getName, byName).thenComparing(Category::getId))
+                .forEach(category -> {
+                    List<ProductSummary> items = byCategory.getOrDefault(category.getId(), new ArrayList<>());
+                    items.sort(Comparator.comparing(ProductSummary::name, byName).thenComparing(ProductSummary::id));
+                    groups.add(new MenuCategoryGroup(category.getId(), category.getName(),
+                            category.getDescription(), category.getImageUrl(), category.getImageSizes(), items));
+                });
+        return groups;
+    }
+
+    /**
+     * Gọi sau mỗi lần ghi product/category. Nếu đang trong transaction thì
+     * chỉ rebuild sau khi commit để snapshot không chứa dữ liệu bị rollback.
+     */
+    public void catalogChanged() {
+        AfterCommit.run(() -> {
+            catalogVersion.incrementAndGet();
+            safeRebuild();
+        });
+    }
+
+    /**
+     * Tồn kho thay đổi theo từng order nên chỉ tăng stockVersion; snapshot được build lại
+     * ở lần đọc kế tiếp khi đã cũ hơn stock-refresh-ms.
+     */
+    public void stockChanged() {
+        AfterCommit.run(stockVersion::incrementAndGet);
+    }
+
+    private void safeRebuild() {
+        try {
+            rebuild();
+        } catch (Exception e) {
+            // Bỏ snapshot cũ, request đọc tiếp theo sẽ tự build lại
+            log.error("❌ Catalog snapshot rebuild failed", e);
+            current.set(null);
+        }
+    }
+
+    // === METRICS ===
+    public long getRebuildCount() {
+        return rebuildCount.get();
+    }
+
+    public static final class Snapshot {
+        private final long version;
+        private final long stockVersion;
+        private final long syncVersion;
+        private final LocalDateTime builtAt;
+        private final List<ProductSummary> menuItems;
+        private final List<Category> categories;
+        private final byte[] menuJson;
+        private final byte[] categoriesJson;
+        private final byte[] groupedMenuJson;
+        private final int productCount;
+        private final int categoryCount;
+
+        Snapshot(long version, long stockVersion, long syncVersion, LocalDateTime builtAt,
+                List<ProductSummary> menuItems, List<Category> categories, byte[] menuJson, byte[] categoriesJson,
+                byte[] groupedMenuJson, int productCount, int categoryCount) {
+            this.version = version;
+            this.stockVersion = stockVersion;
+            this.syncVersion = syncVersion;
+            this.builtAt = builtAt;
+            this.menuItems = menuItems;
+            this.categories = categories;
+            this.menuJson = menuJson;
+            this.categoriesJson = categoriesJson;
+            this.groupedMenuJson = groupedMenuJson;
+            this.productCount = productCount;
+            this.categoryCount = categoryCount;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public long getStockVersion() {
+            return stockVersion;
+        }
+
+        public long getSyncVersion() {
+            return syncVersion;
+        }
+
+        public LocalDateTime getBuiltAt() {
+            return builtAt;
+        }
+
+        // Dùng cho ?fields=, tránh phải parse lại JSON
+        public List<ProductSummary> getMenuItems() {
+            return menuItems;
+        }
+
+        public List<Category> getCategories() {
+            return categories;
+        }
+
+        // Mảng byte được chia sẻ giữa các request, không được sửa
+        public byte[] getMenuJson() {
+            return menuJson;
+        }
+
+        public byte[] getCategoriesJson() {
+            return categoriesJson;
+        }
+
+        public byte[] getGroupedMenuJson() {
+            return groupedMenuJson;
+        }
+
+        public int getProductCount() {
+            return productCount;
+        }
+
+        public int getCategoryCount() {
+            return categoryCount;
+        }
+    }
+}
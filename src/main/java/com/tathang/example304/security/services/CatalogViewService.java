@@ -0,0 +1,230 @@
+package com.tathang.example304.security.services;
+
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import lombok.extern.slf4j.Slf4j;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Duy trì bảng catalog_view (mỗi sản phẩm một dòng, đã gộp danh mục và giá khuyến mãi).
+ * Mọi hàm ghi đều chạy trong transaction của thao tác ghi gốc, nên bảng đọc
+ * không bao giờ lệch với products/categories/promotions sau commit.
+ */
+@Slf4j
+@Service
+public class CatalogViewService {
+
+    private static final int BATCH_SIZE = 500;
+    // Tăng khi đổi cấu trúc/cách tính catalog_view: node khởi động sẽ dựng lại bảng một lần
+    private static final int SCHEMA_VERSION = 1;
+
+    private static final String SELECT_SOURCE_SQL = """
+            SELECT p.id, p.name, p.description, p.price, p.image_url, p.stock_quantity,
+                   p.archive, p.updated_at, c.id AS category_id, c.name AS category_name, c.is_active,
+                   b.variants
+            FROM products p
+            LEFT JOIN categories c ON c.id = p.category_id
+            LEFT JOIN stored_blobs b ON p.image_url = CONCAT('/uploads/', b.file_name)
+            """;
+
+    private static final String INSERT_SQL = """
+            INSERT INTO catalog_view (product_id, name, description, price, effective_price, promotion_id,
+                image_url, image_variants, stock_quantity, category_id, category_name, category_active,
+                archived, visible, available, updated_at)
+            VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)""";
+
+    private static final int[] INSERT_TYPES = {
+            Types.BIGINT, Types.VARCHAR, Types.VARCHAR, Types.DECIMAL, Types.DECIMAL, Types.BIGINT,
+            Types.VARCHAR, Types.VARCHAR, Types.INTEGER, Types.BIGINT, Types.VARCHAR, Types.BOOLEAN,
+            Types.BOOLEAN, Types.BOOLEAN, Types.BOOLEAN, Types.TIMESTAMP };
+
+    private final JdbcTemplate jdbcTemplate;
+    private final PromotionPriceService promotionPriceService;
+    private final TransactionTemplate transactionTemplate;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    public CatalogViewService(JdbcTemplate jdbcTemplate, PromotionPriceService promotionPriceService,
+            TransactionTemplate transactionTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.promotionPriceService = promotionPriceService;
+        this.transactionTemplate = transactionTemplate;
+    }
+
+    // === WRITE ===
+
+    /**
+     * Dựng lại các dòng của những sản phẩm vừa tạo/sửa/archive/đổi khuyến mãi.
+     * Xóa rồi chèn lại thay vì upsert để chạy được trên cả PostgreSQL lẫn H2.
+     */
+    public void refreshProducts(Collection<Long> productIds) {
+        if (productIds == null || productIds.isEmpty()) {
+            return;
+        }
+        // Đẩy thay đổi JPA xuống DB trước khi đọc lại bằng JDBC
+        entityManager.flush();
+        PromotionPriceService.PriceTable prices = promotionPriceService.currentTable();
+        List<Long> ids = new ArrayList<>(new LinkedHashSet<>(productIds));
+        for (int from = 0; from < ids.size(); from += BATCH_SIZE) {
+            List<Long> chunk = ids.subList(from, Math.min(from + BATCH_SIZE, ids.size()));
+            String placeholders = String.join(",", Collections.nCopies(chunk.size(), "?"));
+            Object[] args = chunk.toArray();
+            jdbcTemplate.update("DELETE FROM catalog_view WHERE product_id IN (" + placeholders + ")", args);
+            insertRows(SELECT_SOURCE_SQL + "WHERE p.id IN (" + placeholders + ")", args, prices);
+        }
+    }
+
+    // Đổi tên / bật tắt danh mục: cập nhật mọi dòng của danh mục bằng một câu lệnh
+    public void refreshCategory(Long categoryId) {
+        entityManager.flush();
+        jdbcTemplate.update("""
+                UPDATE catalog_view SET
+                    category_name = (SELECT c.name FROM categories c WHERE c.id = catalog_view.category_id),
+                    category_active = COALESCE((SELECT c.is_active FROM categories c
+                        WHERE c.id = catalog_view.category_id), true)
+                WHERE category_id = ?""", categoryId);
+        jdbcTemplate.update("""
+                UPDATE catalog_view SET
+                    visible = (category_active AND NOT archived),
+                    available = (category_active AND NOT archived AND COALESCE(stock_quantity, 0) > 0)
+                WHERE category_id = ?""", categoryId);
+    }
+
+    // Đường nóng khi đặt hàng: chỉ đổi tồn kho, không đọc lại sản phẩm
+    public void updateStock(Long productId, Integer stockQuantity) {
+        jdbcTemplate.update("UPDATE catalog_view SET stock_quantity = ?, available = (visible AND ?), updated_at = ?"
+                + " WHERE product_id = ?", stockQuantity, stockQuantity != null && stockQuantity > 0,
+                Timestamp.valueOf(LocalDateTime.now()), productId);
+    }
+
+    // Nhiều sản phẩm cùng lúc (sửa cả giỏ hàng): một batch thay vì mỗi sản phẩm một câu lệnh
+    public void updateStocks(Map<Long, Integer> stockByProduct) {
+        if (stockByProduct.isEmpty()) {
+            return;
+        }
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+        List<Object[]> batch = new ArrayList<>(stockByProduct.size());
+        stockByProduct.forEach((productId, stock) -> batch.add(
+                new Object[] { stock, stock != null && stock > 0, now, productId }));
+        jdbcTemplate.batchUpdate("UPDATE catalog_view SET stock_quantity = ?, available = (visible AND ?),"
+                + " updated_at = ? WHERE product_id = ?", batch,
+                new int[] { Types.INTEGER, Types.BOOLEAN, Types.TIMESTAMP, Types.BIGINT });
+    }
+
+    // Biến thể ảnh vừa sinh xong: cập nhật mọi sản phẩm dùng ảnh đó
+    public int imageVariantsChanged(String imageUrl, String variants) {
+        return jdbcTemplate.update("UPDATE catalog_view SET image_variants = ? WHERE image_url = ?",
+                variants, imageUrl);
+    }
+
+    public void removeProducts(Collection<Long> productIds) {
+        if (productIds == null || productIds.isEmpty()) {
+            return;
+        }
+        String placeholders = String.join(",", Collections.nCopies(productIds.size(), "?"));
+        jdbcTemplate.update("DELETE FROM catalog_view WHERE product_id IN (" + placeholders + ")",
+                productIds.toArray());
+    }
+
+    // Dựng lại toàn bộ: khi khởi động
+    @Transactional
+    public int rebuildAll() {
+        entityManager.flush();
+        long start = System.currentTimeMillis();
+        jdbcTemplate.update("DELETE FROM catalog_view");
+        int rows = insertRows(SELECT_SOURCE_SQL, new Object[0], promotionPriceService.currentTable());
+        log.info("🗂️ catalog_view rebuilt: {} rows in {} ms", rows, System.currentTimeMillis() - start);
+        return rows;
+    }
+
+    /**
+     * Chỉ dựng lại khi bảng còn trống (DB mới) hoặc SCHEMA_VERSION đổi. Dòng đánh dấu trong
+     * catalog_view_state được khóa FOR UPDATE suốt transaction, nên các node khởi động cùng lúc
+     * lần lượt chạy và node sau thấy bảng đã dựng xong. Lỗi chỉ ghi log, không chặn khởi động:
+     * bảng vẫn được cập nhật theo từng lần ghi.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void rebuildOnStartup() {
+        try {
+            jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS catalog_view_state"
+                    + " (id INT PRIMARY KEY, schema_version INT NOT NULL)");
+            try {
+                jdbcTemplate.update("INSERT INTO catalog_view_state (id, schema_version) SELECT 1, 0"
+                        + " WHERE NOT EXISTS (SELECT 1 FROM catalog_view_state WHERE id = 1)");
+            } catch (DuplicateKeyException e) {
+                // Node khác vừa tạo
+            }
+            transactionTemplate.executeWithoutResult(status -> {
+                Integer schemaVersion = jdbcTemplate.queryForObject(
+                        "SELECT schema_version FROM catalog_view_state WHERE id = 1 FOR UPDATE", Integer.class);
+                boolean empty = jdbcTemplate.queryForList("SELECT product_id FROM catalog_view LIMIT 1").isEmpty();
+                boolean hasProducts = !jdbcTemplate.queryForList("SELECT id FROM products LIMIT 1").isEmpty();
+                if (schemaVersion != null && schemaVersion == SCHEMA_VERSION && !(empty && hasProducts)) {
+                    log.info("🗂️ catalog_view up to date (schema {}), skip rebuild", schemaVersion);
+                    return;
+                }
+                rebuildAll();
+                jdbcTemplate.update("UPDATE catalog_view_state SET schema_version = ? WHERE id = 1", SCHEMA_VERSION);
+            });
+        } catch (Exception e) {
+            log.error("❌ catalog_view startup rebuild failed", e);
+        }
+    }
+
+    private int insertRows(String selectSql, Object[] args, PromotionPriceService.PriceTable prices) {
+        List<Object[]> batch = new ArrayList<>(BATCH_SIZE);
+        int[] total = { 0 };
+        jdbcTemplate.query(selectSql, rs -> {
+            Long id = rs.getLong("id");
+            BigDecimal price = rs.getBigDecimal("price");
+            Integer stock = rs.getObject("stock_quantity", Integer.class);
+            boolean archived = rs.getBoolean("archive");
+            Long categoryId = rs.getObject("category_id", Long.class);
+            Boolean isActive = rs.getObject("is_active", Boolean.class);
+            boolean categoryActive = categoryId == null || !Boolean.FALSE.equals(isActive);
+            boolean visible = !archived && categoryActive;
+            PromotionPriceService.Applied applied = prices.priceOf(id, price);
+            Timestamp updatedAt = rs.getTimestamp("updated_at");
+
+            batch.add(new Object[] { id, rs.getString("name"), rs.getString("description"), price,
+                    applied.price(), applied.promotionId(), rs.getString("image_url"), rs.getString("variants"),
+                    stock, categoryId,
+                    rs.getString("category_name"), categoryActive, archived, visible,
+                    visible && stock != null && stock > 0, updatedAt });
+            if (batch.size() == BATCH_SIZE) {
+                total[0] += flush(batch);
+            }
+        }, args);
+        total[0] += flush(batch);
+        return total[0];
+    }
+
+    private int flush(List<Object[]> batch) {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        jdbcTemplate.batchUpdate(INSERT_SQL, batch, INSERT_TYPES);
+        int size = batch.size();
+        batch.clear();
+        return size;
+    }
+}
@@ -1,7 +1,10 @@
 package com.tathang.example304.security.services;
 
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
+import com.tathang.example304.model.BlobReference;
+import com.tathang.example304.model.CatalogChange;
 import com.tathang.example304.model.Category;
 import com.tathang.example304.repository.CategoryRepository;
 
@@ -12,20 +15,45 @@ import java.util.Optional;
 public class CategoryService {
 
     private final CategoryRepository categoryRepository;
+    private final CatalogSnapshotService catalogSnapshotService;
+    private final ProductSearchService productSearchService;
+    private final ProductSuggestService productSuggestService;
+    private final CatalogChangeLogService catalogChangeLogService;
+    private final CatalogViewService catalogViewService;
+    private final BlobReferenceService blobReferenceService;
 
-    public CategoryService(CategoryRepository categoryRepository) {
+    public CategoryService(CategoryRepository categoryRepository,
+            CatalogSnapshotService catalogSnapshotService,
+            ProductSearchService productSearchService,
+            ProductSuggestService productSuggestService,
+            CatalogChangeLogService catalogChangeLogService,
+            CatalogViewService catalogViewService,
+            BlobReferenceService blobReferenceService) {
         this.categoryRepository = categoryRepository;
+        this.catalogSnapshotService = catalogSnapshotService;
+        this.productSearchService = productSearchService;
+        this.productSuggestService = productSuggestService;
+        this.catalogChangeLogService = catalogChangeLogService;
+        this.catalogViewService = catalogViewService;
+        this.blobReferenceService = blobReferenceService;
     }
 
+    @Transactional
     public Category createCategory(String name, String description, String imageUrl) {
         Category category = new Category();
         category.setName(name);
         category.setDescription(description);
         category.setImageUrl(imageUrl);
 
-        return categoryRepository.save(category);
+        Category saved = categoryRepository.save(category);
+        blobReferenceService.track(BlobReference.OwnerType.CATEGORY, saved.getId(), imageUrl);
+        catalogSnapshotService.catalogChanged();
+        catalogChangeLogService.recordCategory(saved.getId(), CatalogChange.ChangeType.CREATED);
+        productSuggestService.indexCategory(saved);
+        return saved;
     }
 
+    @Transactional
     public Category updateCategory(Long id, String name, String description, String imageUrl) {
         Category category = categoryRepository.findById(id)
                 .orElseThrow(() -> new RuntimeException("Category not found"));
@@ -36,12 +64,28 @@ public class CategoryService {
             category.setImageUrl(imageUrl);
         }
 
-        return categoryRepository.save(category);
+        Category saved = categoryRepository.save(category);
+        if (imageUrl != null) {
+            blobReferenceService.track(BlobReference.OwnerType.CATEGORY, id, imageUrl);
+        }
+        catalogViewService.refreshCategory(id);
+        catalogSnapshotService.catalogChanged();
+        catalogChangeLogService.recordCategory(id, CatalogChange.ChangeType.UPDATED);
+        productSearchService.reindexCategory(id);
+        productSuggestService.indexCategory(saved);
+        return saved;
     }
 
+    @Transactional
     public boolean deleteCategory(Long id) {
         if (categoryRepository.existsById(id)) {
             categoryRepository.deleteById(id);
+            blobReferenceService.release(BlobReference.OwnerType.CATEGORY, id);
+            catalogViewService.refreshCategory(id);
+            catalogSnapshotService.catalogChanged();
+            catalogChangeLogService.recordCategory(id, CatalogChange.ChangeType.DELETED);
+            productSearchService.reindexCategory(id);
+            productSuggestService.removeCategory(id);
             return true;
         }
         return false;
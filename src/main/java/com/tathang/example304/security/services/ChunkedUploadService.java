@@ -0,0 +1,399 @@
+package com.tathang.example304.security.services;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.DirectoryStream;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Upload file lớn theo phiên: init -> PUT từng chunk tại offset -> complete.
+ * Chunk được ghi thẳng vào file tạm bằng FileChannel qua một buffer cố định, SHA-256 được
+ * cập nhật ngay trong lúc ghi, nên bộ nhớ không phụ thuộc kích thước file và lúc complete
+ * không phải đọc lại file. Mất kết nối giữa chừng thì client hỏi offset rồi gửi tiếp.
+ *
+ * Trạng thái phiên nằm trên đĩa cạnh file tạm: {@code .sessions/<id>.properties} giữ tên file,
+ * kích thước, checksum mong đợi; offset chính là kích thước file {@code .part}. Map trong bộ nhớ
+ * chỉ là cache: phiên không có trong map (sau restart, hoặc node khác dùng chung thư mục upload)
+ * được nạp lại từ đĩa và băm lại phần đã nhận, nên upload vẫn gửi tiếp được.
+ */
+@Slf4j
+@Service
+public class ChunkedUploadService {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String SESSION_DIR = ".sessions";
+    private static final String PART_SUFFIX = ".part";
+    private static final String META_SUFFIX = ".properties";
+
+    private final FileStorageService fileStorageService;
+    private final Map<String, UploadSession> sessions = new ConcurrentHashMap<>();
+
+    @Value("${file.chunked.max-size:524288000}")
+    private long maxSize;
+
+    @Value("${file.chunked.session-ttl-hours:24}")
+    private long sessionTtlHours;
+
+    public ChunkedUploadService(FileStorageService fileStorageService) {
+        this.fileStorageService = fileStorageService;
+    }
+
+    // === INIT ===
+    public UploadSession init(String fileName, long totalSize, String sha256) throws IOException {
+        if (fileName == null || fileName.isBlank()) {
+            throw new IllegalArgumentException("Thiếu fileName");
+        }
+        if (totalSize <= 0 || totalSize > maxSize) {
+            throw new IllegalArgumentException("totalSize phải trong khoảng 1.." + maxSize);
+        }
+        String expected = sha256 != null && !sha256.isBlank() ? sha256.trim().toLowerCase(Locale.ROOT) : null;
+        if (expected != null && !expected.matches("[0-9a-f]{64}")) {
+            throw new IllegalArgumentException("sha256 phải là 64 ký tự hex");
+        }
+
+        Path dir = sessionDir();
+        Files.createDirectories(dir);
+        String id = UUID.randomUUID().toString();
+        Path part = dir.resolve(id + PART_SUFFIX);
+        Files.createFile(part);
+
+        UploadSession session = new UploadSession(id, fileName, totalSize, expected, part, Instant.now());
+        writeMeta(session);
+        sessions.put(id, session);
+        log.info("📤 Upload session {} started: {} ({} bytes)", id, fileName, totalSize);
+        return session;
+    }
+
+    // === CHUNK ===
+
+    /**
+     * Ghi một chunk bắt đầu tại offset. Offset phải bằng số byte đã nhận (chunk tuần tự);
+     * chunk ghi dở vì lỗi được cắt bỏ để file và hash luôn khớp với offset đã báo.
+     */
+    public UploadSession appendChunk(String id, long offset, InputStream body) throws IOException {
+        UploadSession session = get(id);
+        synchronized (session) {
+            if (session.completed) {
+                throw new IllegalStateException("Upload đã hoàn tất");
+            }
+            syncWithDisk(session);
+            if (offset != session.received) {
+                throw new OffsetMismatchException(session.received);
+            }
+
+            MessageDigest chunkDigest = cloneDigest(session.digest);
+            long limit = session.totalSize - offset;
+            long written = 0;
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            try (FileChannel file = FileChannel.open(session.part, StandardOpenOption.WRITE);
+                    ReadableByteChannel in = Channels.newChannel(body)) {
+                while (in.read(buffer) != -1) {
+                    buffer.flip();
+                    if (written + buffer.remaining() > limit) {
+                        throw new IllegalArgumentException("Chunk vượt quá totalSize");
+                    }
+                    chunkDigest.update(buffer.duplicate());
+                    while (buffer.hasRemaining()) {
+                        written += file.write(buffer, offset + written);
+                    }
+                    buffer.clear();
+                }
+            } catch (IOException | RuntimeException e) {
+                truncate(session.part, offset);
+                throw e;
+            }
+
+            session.digest = chunkDigest;
+            session.received = offset + written;
+            return session;
+        }
+    }
+
+    // === COMPLETE ===
+    public String complete(String id) throws IOException {
+        UploadSession session = get(id);
+        synchronized (session) {
+            syncWithDisk(session);
+            if (session.received != session.totalSize) {
+                throw new IllegalStateException("Mới nhận " + session.received + "/" + session.totalSize + " bytes");
+            }
+            String actual = HexFormat.of().formatHex(session.digest.digest());
+            if (session.expectedSha256 != null && !session.expectedSha256.equals(actual)) {
+                abort(id);
+                throw new IllegalArgumentException("Checksum không khớp: " + actual);
+            }
+            session.completed = true;
+            sessions.remove(id);
+            Files.deleteIfExists(metaPath(id));
+            String url = fileStorageService.storeLocalFile(session.part, actual, session.fileName);
+            log.info("📥 Upload session {} completed: {}", id, url);
+            return url;
+        }
+    }
+
+    public void abort(String id) throws IOException {
+        if (!isSessionId(id)) {
+            return;
+        }
+        sessions.remove(id);
+        Files.deleteIfExists(partPath(id));
+        Files.deleteIfExists(metaPath(id));
+    }
+
+    public UploadSession get(String id) {
+        if (!isSessionId(id)) {
+            throw new IllegalArgumentException("Không tìm thấy upload session: " + id);
+        }
+        UploadSession session = sessions.get(id);
+        if (session == null) {
+            // Nạp ngoài computeIfAbsent: băm lại file lớn không được giữ lock của map
+            UploadSession loaded = load(id);
+            if (loaded != null) {
+                UploadSession existing = sessions.putIfAbsent(id, loaded);
+                session = existing != null ? existing : loaded;
+            }
+        }
+        if (session == null || !Files.exists(session.part)) {
+            // Đã complete/abort/hết hạn ở node khác
+            sessions.remove(id);
+            throw new IllegalArgumentException("Không tìm thấy upload session: " + id);
+        }
+        return session;
+    }
+
+    // === CLEANUP ===
+
+    /**
+     * Dọn phiên bị bỏ dở quá hạn theo mtime của file trên đĩa, không theo map trong bộ nhớ,
+     * để cả file .part còn sót lại sau restart cũng bị xóa.
+     */
+    @Scheduled(fixedDelayString = "${file.chunked.cleanup-ms:3600000}")
+    public void expireSessions() {
+        Path dir = sessionDir();
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+        Instant cutoff = Instant.now().minus(Duration.ofHours(sessionTtlHours));
+        int expired = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    if (name.endsWith(PART_SUFFIX)) {
+                        if (Files.getLastModifiedTime(file).toInstant().isBefore(cutoff)) {
+                            String id = name.substring(0, name.length() - PART_SUFFIX.length());
+                            sessions.remove(id);
+                            Files.deleteIfExists(file);
+                            Files.deleteIfExists(dir.resolve(id + META_SUFFIX));
+                            expired++;
+                        }
+                    } else if (name.endsWith(META_SUFFIX)) {
+                        // Metadata mồ côi (file .part đã mất)
+                        String id = name.substring(0, name.length() - META_SUFFIX.length());
+                        if (!Files.exists(dir.resolve(id + PART_SUFFIX))
+                                && Files.getLastModifiedTime(file).toInstant().isBefore(cutoff)) {
+                            Files.deleteIfExists(file);
+                        }
+                    }
+                } catch (NoSuchFileException e) {
+                    // Phiên vừa complete/abort
+                } catch (IOException e) {
+                    log.warn("Could not expire upload session file {}", file, e);
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Could not list upload sessions in {}", dir, e);
+        }
+        // Phiên trong bộ nhớ mà file đã bị node khác xóa
+        sessions.values().removeIf(session -> !Files.exists(session.part));
+        if (expired > 0) {
+            log.info("🧹 Expired {} upload sessions", expired);
+        }
+    }
+
+    // === PERSISTENCE ===
+
+    private Path sessionDir() {
+        return fileStorageService.getUploadPath().resolve(SESSION_DIR);
+    }
+
+    private Path partPath(String id) {
+        return sessionDir().resolve(id + PART_SUFFIX);
+    }
+
+    private Path metaPath(String id) {
+        return sessionDir().resolve(id + META_SUFFIX);
+    }
+
+    // Id đi thẳng vào đường dẫn file nên chỉ nhận đúng dạng UUID
+    private static boolean isSessionId(String id) {
+        try {
+            return id != null && UUID.fromString(id).toString().equals(id);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private void writeMeta(UploadSession session) throws IOException {
+        Properties meta = new Properties();
+        meta.setProperty("fileName", session.fileName);
+        meta.setProperty("totalSize", Long.toString(session.totalSize));
+        if (session.expectedSha256 != null) {
+            meta.setProperty("sha256", session.expectedSha256);
+        }
+        meta.setProperty("createdAt", session.createdAt.toString());
+        Path target = metaPath(session.id);
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            meta.store(out, null);
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Trả null nếu không có phiên trên đĩa
+    private UploadSession load(String id) {
+        Path metaFile = metaPath(id);
+        Path part = partPath(id);
+        if (!Files.exists(metaFile) || !Files.exists(part)) {
+            return null;
+        }
+        try {
+            Properties meta = new Properties();
+            try (InputStream in = Files.newInputStream(metaFile)) {
+                meta.load(in);
+            }
+            UploadSession session = new UploadSession(id, meta.getProperty("fileName"),
+                    Long.parseLong(meta.getProperty("totalSize")), meta.getProperty("sha256"), part,
+                    Instant.parse(meta.getProperty("createdAt")));
+            rehash(session);
+            log.info("📤 Upload session {} restored at offset {}", id, session.received);
+            return session;
+        } catch (IOException | RuntimeException e) {
+            log.warn("Could not restore upload session {}", id, e);
+            return null;
+        }
+    }
+
+    // Node khác (dùng chung thư mục upload) đã ghi thêm: offset và hash trong bộ nhớ đã cũ
+    private void syncWithDisk(UploadSession session) throws IOException {
+        if (Files.size(session.part) != session.received) {
+            rehash(session);
+        }
+    }
+
+    /**
+     * MessageDigest không lưu ra đĩa được, nên khi khôi phục thì băm lại phần đã nhận.
+     * Phần vượt quá totalSize (không thể có nếu file không bị sửa tay) bị cắt bỏ.
+     */
+    private static void rehash(UploadSession session) throws IOException {
+        MessageDigest digest = FileStorageService.sha256();
+        long size;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        try (FileChannel file = FileChannel.open(session.part, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            if (file.size() > session.totalSize) {
+                file.truncate(session.totalSize);
+            }
+            size = file.size();
+            long position = 0;
+            while (position < size) {
+                int read = file.read(buffer, position);
+                if (read < 0) {
+                    break;
+                }
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+                position += read;
+            }
+        }
+        session.digest = digest;
+        session.received = size;
+    }
+
+    private static void truncate(Path part, long size) throws IOException {
+        try (FileChannel file = FileChannel.open(part, StandardOpenOption.WRITE)) {
+            file.truncate(size);
+        }
+    }
+
+    private static MessageDigest cloneDigest(MessageDigest digest) {
+        try {
+            return (MessageDigest) digest.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException("SHA-256 digest is not cloneable", e);
+        }
+    }
+
+    public static final class UploadSession {
+        private final String id;
+        private final String fileName;
+        private final long totalSize;
+        private final String expectedSha256;
+        private final Path part;
+        private final Instant createdAt;
+        private volatile long received;
+        private volatile boolean completed;
+        private MessageDigest digest = FileStorageService.sha256();
+
+        UploadSession(String id, String fileName, long totalSize, String expectedSha256, Path part,
+                Instant createdAt) {
+            this.id = id;
+            this.fileName = fileName;
+            this.totalSize = totalSize;
+            this.expectedSha256 = expectedSha256;
+            this.part = part;
+            this.createdAt = createdAt;
+        }
+
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("uploadId", id);
+            map.put("fileName", fileName);
+            map.put("totalSize", totalSize);
+            map.put("offset", received);
+            map.put("complete", received == totalSize);
+            map.put("createdAt", createdAt.toString());
+            return map;
+        }
+    }
+
+    // Client gửi chunk sai offset (thường do request trước bị đứt): báo offset đúng để gửi tiếp
+    public static class OffsetMismatchException extends RuntimeException {
+        private final long expectedOffset;
+
+        public OffsetMismatchException(long expectedOffset) {
+            super("Offset không khớp, server đã nhận " + expectedOffset + " bytes");
+            this.expectedOffset = expectedOffset;
+        }
+
+        public long getExpectedOffset() {
+            return expectedOffset;
+        }
+    }
+}
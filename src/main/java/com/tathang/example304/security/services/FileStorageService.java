@@ -1,80 +1,199 @@
 package com.tathang.example304.security.services;
 
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
+
+import com.tathang.example304.model.StoredBlob;
+import com.tathang.example304.repository.StoredBlobRepository;
+import com.tathang.example304.security.services.ImageProcessingService.ProcessedImage;
+
+import lombok.extern.slf4j.Slf4j;
+
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.UUID;
-
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Lưu file upload theo địa chỉ nội dung: tên file là SHA-256 của nội dung + phần mở rộng.
+ * Upload lại cùng một ảnh (sửa product nhiều lần, cùng ảnh cho nhiều product) chỉ trả về
+ * URL đã có, không ghi thêm file nào. Ảnh mới được ImageVariantService thu nhỏ ở nền.
+ * Nội dung nằm trong BlobStore (đĩa cục bộ hoặc S3), URL trả về luôn là /uploads/&lt;tên file&gt;.
+ */
+@Slf4j
 @Service
 public class FileStorageService {
 
+    public static final String URL_PREFIX = "/uploads/";
+
+    // URL do service này sinh ra: /uploads/<sha256>.<ext>
+    private static final Pattern CONTENT_URL = Pattern.compile("^/uploads/([0-9a-f]{64})(\\.[a-z0-9]{1,5})?$");
+    private static final Pattern SAFE_EXTENSION = Pattern.compile("^[a-z0-9]{1,5}$");
+    // File không phải ảnh chỉ giữ các phần mở rộng audio/video này. Loại khác (html, svg, js...)
+    // được lưu không đuôi để /uploads trả application/octet-stream, không chạy được trên origin của app
+    private static final Set<String> MEDIA_EXTENSIONS = Set.of(
+            "mp4", "m4v", "mov", "webm", "mp3", "m4a", "aac", "wav", "ogg");
+
+    private final StoredBlobRepository storedBlobRepository;
+    private final ImageVariantService imageVariantService;
+    private final BlobStore blobStore;
+    private final ImageProcessingService imageProcessingService;
+    private final UploadCache uploadCache;
+
     @Value("${file.upload-dir}")
     private String uploadDir;
 
+    public FileStorageService(StoredBlobRepository storedBlobRepository, ImageVariantService imageVariantService,
+            BlobStore blobStore, ImageProcessingService imageProcessingService, UploadCache uploadCache) {
+        this.storedBlobRepository = storedBlobRepository;
+        this.imageVariantService = imageVariantService;
+        this.blobStore = blobStore;
+        this.imageProcessingService = imageProcessingService;
+        this.uploadCache = uploadCache;
+    }
+
     public void init() {
-        System.out.println("📁 FileStorageService initialized");
-        System.out.println("📁 Upload directory set to: " + uploadDir);
+        log.info("📁 FileStorageService initialized");
+        log.info("📁 Upload directory set to: {}", uploadDir);
     }
 
     public String storeFile(MultipartFile file) throws IOException {
-        System.out.println("=== 💾 FILE STORAGE SERVICE: storeFile ===");
-
         if (file.isEmpty()) {
-            System.out.println("⚠️ File is empty, returning null");
+            log.warn("⚠️ File is empty, returning null");
             return null;
         }
+        Path uploadPath = getUploadPath();
+        Files.createDirectories(uploadPath);
+        Path temp = Files.createTempFile(uploadPath, ".upload-", ".tmp");
+        try {
+            try (InputStream in = file.getInputStream()) {
+                Files.copy(in, temp, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return storeImage(temp);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
 
-        System.out.println("📄 File details:");
-        System.out.println("  Original filename: " + file.getOriginalFilename());
-        System.out.println("  Content type: " + file.getContentType());
-        System.out.println("  Size: " + file.getSize() + " bytes");
-
-        // Tạo thư mục nếu chưa tồn tại
-        Path uploadPath = Paths.get(uploadDir);
-        System.out.println("📁 Upload path: " + uploadPath.toAbsolutePath());
-
-        if (!Files.exists(uploadPath)) {
-            System.out.println("📁 Creating upload directory...");
-            Files.createDirectories(uploadPath);
-            System.out.println("✅ Directory created");
-        } else {
-            System.out.println("✅ Directory already exists");
+    /**
+     * Ảnh upload qua ImageProcessingService trước khi lưu: định dạng và phần mở rộng lấy từ
+     * magic bytes, metadata bị bỏ, hash tính trên nội dung đã làm sạch.
+     */
+    private String storeImage(Path source) throws IOException {
+        ProcessedImage image = imageProcessingService.process(source);
+        try {
+            return place(image.file(), image.sha256(), image.size(), "image." + image.format().getExtension(),
+                    image.format().getContentType(), image.width(), image.height());
+        } finally {
+            Files.deleteIfExists(image.file());
         }
+    }
 
-        // Tạo tên file unique
-        String originalFilename = file.getOriginalFilename();
-        String fileExtension = "";
+    /**
+     * Nhận một file đã ghi sẵn trong thư mục upload (upload theo chunk) cùng hash đã tính
+     * trong lúc ghi: không phải băm lại nội dung. File nguồn luôn bị chuyển đi hoặc xóa.
+     */
+    public String storeLocalFile(Path file, String sha256Hex, String originalFilename) throws IOException {
+        try {
+            // File ảnh đi qua cùng bước kiểm tra/làm sạch như upload thường
+            if (ImageProcessingService.sniff(file) != null) {
+                return storeImage(file);
+            }
+            return placeMedia(file, sha256Hex, Files.size(file), originalFilename);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
 
-        if (originalFilename != null && originalFilename.contains(".")) {
-            fileExtension = originalFilename.substring(originalFilename.lastIndexOf("."));
-            System.out.println("📝 File extension: " + fileExtension);
+    // Kiểu nội dung suy ra từ phần mở rộng đã lọc, không dùng Content-Type client gửi
+    private String placeMedia(Path temp, String hash, long size, String originalFilename) throws IOException {
+        String extension = extensionOf(originalFilename);
+        if (!extension.isEmpty() && !MEDIA_EXTENSIONS.contains(extension.substring(1))) {
+            extension = "";
         }
+        String contentType = MediaTypeFactory.getMediaType("media" + extension)
+                .orElse(MediaType.APPLICATION_OCTET_STREAM).toString();
+        return place(temp, hash, size, "media" + extension, contentType, null, null);
+    }
 
-        String fileName = UUID.randomUUID().toString() + fileExtension;
-        Path filePath = uploadPath.resolve(fileName);
+    private String place(Path temp, String hash, long size, String originalFilename, String contentType,
+            Integer width, Integer height) throws IOException {
+        // Cùng nội dung nhưng khác phần mở rộng vẫn dùng lại file đã lưu.
+        // touch làm mới thời gian sửa để UploadGarbageCollector tính lại thời gian ân hạn
+        Optional<StoredBlob> existing = storedBlobRepository.findById(hash);
+        if (existing.isPresent() && blobStore.touch(existing.get().getFileName())) {
+            log.info("♻️ Duplicate upload, reusing {}", existing.get().getFileName());
+            return URL_PREFIX + existing.get().getFileName();
+        }
 
-        System.out.println("💾 Saving file as: " + fileName);
-        System.out.println("📁 Full path: " + filePath.toAbsolutePath());
+        String fileName = existing.map(StoredBlob::getFileName).orElse(hash + extensionOf(originalFilename));
+        blobStore.put(fileName, temp, contentType);
+        uploadCache.invalidate(fileName);
+        if (existing.isEmpty()) {
+            StoredBlob blob = new StoredBlob(hash, fileName, contentType, size);
+            blob.setWidth(width);
+            blob.setHeight(height);
+            register(blob);
+        }
+        // Sinh ảnh thu nhỏ ở nền, request upload trả về ngay
+        imageVariantService.submit(hash);
+        log.info("✅ File saved as {} ({} bytes)", fileName, size);
+        return URL_PREFIX + fileName;
+    }
 
+    private void register(StoredBlob blob) {
         try {
-            // Lưu file
-            Files.copy(file.getInputStream(), filePath);
-            System.out.println("✅ File saved successfully");
+            storedBlobRepository.save(blob);
+        } catch (DataIntegrityViolationException e) {
+            // Request khác vừa đăng ký cùng hash
+        }
+    }
 
-            String fileUrl = "/uploads/" + fileName;
-            System.out.println("🔗 File URL: " + fileUrl);
-            System.out.println("=========================================");
+    // === URL HELPERS ===
 
-            return fileUrl;
+    // Hash của URL content-addressed, null với URL cũ (UUID) hoặc URL ngoài
+    public static String hashOf(String url) {
+        if (url == null) {
+            return null;
+        }
+        Matcher matcher = CONTENT_URL.matcher(url);
+        return matcher.matches() ? matcher.group(1) : null;
+    }
+
+    // Thư mục cục bộ cho file tạm/upload dở; với store local cũng là nơi lưu file
+    public Path getUploadPath() {
+        return Paths.get(uploadDir).toAbsolutePath().normalize();
+    }
+
+    private static String extensionOf(String originalFilename) {
+        if (originalFilename == null || !originalFilename.contains(".")) {
+            return "";
+        }
+        String extension = originalFilename.substring(originalFilename.lastIndexOf('.') + 1).toLowerCase(Locale.ROOT);
+        if (extension.equals("jpeg")) {
+            extension = "jpg";
+        }
+        return SAFE_EXTENSION.matcher(extension).matches() ? "." + extension : "";
+    }
 
-        } catch (IOException e) {
-            System.out.println("❌ File save failed: " + e.getMessage());
-            e.printStackTrace();
-            throw e;
+    public static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
         }
     }
-}
\ No newline at end of file
+}
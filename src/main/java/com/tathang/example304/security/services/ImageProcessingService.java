@@ -0,0 +1,682 @@
+package com.tathang.example304.security.services;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Kiểm tra và làm sạch ảnh upload trước khi lưu:
+ * <ul>
+ * <li>Nhận dạng định dạng thật từ magic bytes, không tin phần mở rộng/Content-Type của client.</li>
+ * <li>Đọc kích thước từ header (không giải nén ảnh) và từ chối ảnh quá lớn (decompression bomb).</li>
+ * <li>Bỏ metadata ở mức byte, không nén lại: JPEG bỏ EXIF/XMP/IPTC/comment (chỉ giữ Orientation),
+ * PNG bỏ chunk text/thời gian, WebP bỏ chunk XMP và EXIF (chỉ giữ Orientation), GIF bỏ comment,
+ * application extension (trừ khối lặp animation) và dữ liệu thừa sau trailer.</li>
+ * </ul>
+ * Chạy trên executor riêng, giới hạn số luồng và hàng đợi: đợt upload dồn dập chỉ dùng tối đa
+ * số luồng cấu hình, hàng đợi đầy thì từ chối ngay thay vì giữ luồng API chờ lâu.
+ */
+@Slf4j
+@Service
+public class ImageProcessingService {
+
+    // Segment JPEG giữ lại: APP0 (JFIF), APP2 (ICC profile), APP14 (Adobe, cần để giải mã màu đúng)
+    private static final Set<Integer> KEPT_JPEG_APP_MARKERS = Set.of(0xE0, 0xE2, 0xEE);
+    private static final Set<String> DROPPED_PNG_CHUNKS = Set.of("tEXt", "zTXt", "iTXt", "eXIf", "tIME");
+    private static final byte[] PNG_SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+    // Application extension GIF giữ lại: số lần lặp animation
+    private static final Set<String> KEPT_GIF_APPLICATIONS = Set.of("NETSCAPE2.0", "ANIMEXTS1.0");
+    // Cờ trong byte đầu của chunk VP8X
+    private static final int VP8X_EXIF_FLAG = 0x08;
+    private static final int VP8X_XMP_FLAG = 0x04;
+    private static final int COPY_BUFFER = 64 * 1024;
+
+    private final ThreadPoolExecutor executor;
+    private final int queueCapacity;
+    private final long maxPixels;
+    private final int maxDimension;
+    private final long timeoutSeconds;
+
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong rejectedBusy = new AtomicLong();
+    private final AtomicLong rejectedInvalid = new AtomicLong();
+    private final AtomicLong rejectedTooLarge = new AtomicLong();
+    private final AtomicLong bytesRemoved = new AtomicLong();
+
+    public ImageProcessingService(@Value("${catalog.images.process-threads:2}") int threads,
+            @Value("${catalog.images.process-queue:16}") int queueCapacity,
+            @Value("${catalog.images.max-pixels:40000000}") long maxPixels,
+            @Value("${catalog.images.max-dimension:12000}") int maxDimension,
+            @Value("${catalog.images.process-timeout-seconds:30}") long timeoutSeconds) {
+        this.queueCapacity = queueCapacity;
+        this.maxPixels = maxPixels;
+        this.maxDimension = maxDimension;
+        this.timeoutSeconds = timeoutSeconds;
+        AtomicInteger sequence = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+                    Thread thread = new Thread(runnable, "image-process-" + sequence.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    public enum ImageFormat {
+        JPEG("jpg", "image/jpeg"),
+        PNG("png", "image/png"),
+        GIF("gif", "image/gif"),
+        WEBP("webp", "image/webp");
+
+        private final String extension;
+        private final String contentType;
+
+        ImageFormat(String extension, String contentType) {
+            this.extension = extension;
+            this.contentType = contentType;
+        }
+
+        public String getExtension() {
+            return extension;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+    }
+
+    /** Ảnh đã làm sạch: file mới (caller xóa sau khi dùng), SHA-256 và kích thước của nội dung mới. */
+    public record ProcessedImage(Path file, String sha256, long size, ImageFormat format, int width, int height) {
+    }
+
+    // === PROCESS ===
+
+    /**
+     * Xử lý file ảnh nguồn trên executor riêng và chờ kết quả. File nguồn giữ nguyên.
+     * IllegalArgumentException: không phải ảnh hợp lệ hoặc quá lớn; IllegalStateException: đang quá tải.
+     */
+    public ProcessedImage process(Path source) throws IOException {
+        Future<ProcessedImage> future;
+        try {
+            future = executor.submit(() -> clean(source));
+        } catch (RejectedExecutionException e) {
+            rejectedBusy.incrementAndGet();
+            throw new IllegalStateException("Đang xử lý quá nhiều ảnh, vui lòng thử lại sau");
+        }
+        try {
+            return future.get(timeoutSeconds, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw new IllegalStateException("Xử lý ảnh quá thời gian cho phép");
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IOException("Xử lý ảnh bị ngắt", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException io) {
+                throw io;
+            }
+            if (cause instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            throw new IllegalStateException("Xử lý ảnh thất bại", cause);
+        }
+    }
+
+    private ProcessedImage clean(Path source) throws IOException {
+        ImageFormat format = sniff(source);
+        if (format == null) {
+            rejectedInvalid.incrementAndGet();
+            throw new IllegalArgumentException("File không phải ảnh JPEG/PNG/GIF/WebP");
+        }
+        int[] size = readDimensions(format, source);
+        if (size == null || size[0] <= 0 || size[1] <= 0) {
+            rejectedInvalid.incrementAndGet();
+            throw new IllegalArgumentException("Không đọc được kích thước ảnh");
+        }
+        if (size[0] > maxDimension || size[1] > maxDimension || (long) size[0] * size[1] > maxPixels) {
+            rejectedTooLarge.incrementAndGet();
+            throw new IllegalArgumentException("Ảnh quá lớn: " + size[0] + "x" + size[1]);
+        }
+
+        // Cùng tên dạng file tạm của FileStorageService để UploadGarbageCollector dọn nếu sót
+        Path cleaned = source.resolveSibling(".upload-" + UUID.randomUUID() + ".tmp");
+        MessageDigest digest = FileStorageService.sha256();
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(source), COPY_BUFFER);
+                OutputStream out = new DigestOutputStream(
+                        new BufferedOutputStream(Files.newOutputStream(cleaned), COPY_BUFFER), digest)) {
+            switch (format) {
+                case JPEG -> stripJpeg(in, out);
+                case PNG -> stripPng(in, out);
+                case GIF -> stripGif(in, out);
+                case WEBP -> stripWebp(source, out);
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(cleaned);
+            if (e instanceof EOFException) {
+                rejectedInvalid.incrementAndGet();
+                throw new IllegalArgumentException("File ảnh bị cắt cụt");
+            }
+            throw e;
+        }
+
+        long cleanedSize = Files.size(cleaned);
+        processed.incrementAndGet();
+        bytesRemoved.addAndGet(Math.max(0, Files.size(source) - cleanedSize));
+        return new ProcessedImage(cleaned, HexFormat.of().formatHex(digest.digest()), cleanedSize, format,
+                size[0], size[1]);
+    }
+
+    // === SNIFF ===
+
+    /** Định dạng theo magic bytes, null nếu không phải ảnh hỗ trợ. */
+    public static ImageFormat sniff(Path file) throws IOException {
+        byte[] head = new byte[12];
+        int read;
+        try (InputStream in = Files.newInputStream(file)) {
+            read = in.readNBytes(head, 0, head.length);
+        }
+        if (read >= 3 && (head[0] & 0xFF) == 0xFF && (head[1] & 0xFF) == 0xD8 && (head[2] & 0xFF) == 0xFF) {
+            return ImageFormat.JPEG;
+        }
+        if (read >= 8 && startsWith(head, PNG_SIGNATURE)) {
+            return ImageFormat.PNG;
+        }
+        if (read >= 6 && (ascii(head, 0, 6).equals("GIF87a") || ascii(head, 0, 6).equals("GIF89a"))) {
+            return ImageFormat.GIF;
+        }
+        if (read >= 12 && ascii(head, 0, 4).equals("RIFF") && ascii(head, 8, 4).equals("WEBP")) {
+            return ImageFormat.WEBP;
+        }
+        return null;
+    }
+
+    // === DIMENSIONS (chỉ đọc header) ===
+    static int[] readDimensions(ImageFormat format, Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            return switch (format) {
+                case PNG -> {
+                    in.skipNBytes(8);
+                    in.readInt();
+                    byte[] type = in.readNBytes(4);
+                    yield ascii(type, 0, 4).equals("IHDR") ? new int[] { in.readInt(), in.readInt() } : null;
+                }
+                case GIF -> {
+                    in.skipNBytes(6);
+                    yield new int[] { readShortLe(in), readShortLe(in) };
+                }
+                case WEBP -> webpDimensions(in);
+                case JPEG -> jpegDimensions(in);
+            };
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private static int[] jpegDimensions(DataInputStream in) throws IOException {
+        in.skipNBytes(2);
+        while (true) {
+            int marker = nextJpegMarker(in);
+            if (isStandaloneJpegMarker(marker)) {
+                continue;
+            }
+            if (marker == 0xDA || marker == 0xD9) {
+                return null;
+            }
+            int length = in.readUnsignedShort();
+            // SOF0..SOF15 trừ DHT (C4), JPG (C8), DAC (CC)
+            if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+                in.readUnsignedByte();
+                int height = in.readUnsignedShort();
+                int width = in.readUnsignedShort();
+                return new int[] { width, height };
+            }
+            in.skipNBytes(length - 2);
+        }
+    }
+
+    private static int[] webpDimensions(DataInputStream in) throws IOException {
+        in.skipNBytes(12);
+        String chunk = ascii(in.readNBytes(4), 0, 4);
+        in.skipNBytes(4);
+        switch (chunk) {
+            case "VP8 " -> {
+                // frame tag (3) + start code 9d 01 2a (3), rồi width/height 14 bit
+                in.skipNBytes(6);
+                return new int[] { readShortLe(in) & 0x3FFF, readShortLe(in) & 0x3FFF };
+            }
+            case "VP8L" -> {
+                if (in.readUnsignedByte() != 0x2F) {
+                    return null;
+                }
+                long bits = readShortLe(in) | ((long) readShortLe(in) << 16);
+                return new int[] { (int) (bits & 0x3FFF) + 1, (int) ((bits >> 14) & 0x3FFF) + 1 };
+            }
+            case "VP8X" -> {
+                in.skipNBytes(4);
+                return new int[] { readInt24Le(in) + 1, readInt24Le(in) + 1 };
+            }
+            default -> {
+                return null;
+            }
+        }
+    }
+
+    // === STRIP METADATA ===
+
+    // Chép từng segment trước SOS, bỏ APPn/COM chứa metadata; dữ liệu ảnh sau SOS chép nguyên vẹn
+    private static void stripJpeg(InputStream source, OutputStream out) throws IOException {
+        DataInputStream in = new DataInputStream(source);
+        in.skipNBytes(2);
+        out.write(0xFF);
+        out.write(0xD8);
+        while (true) {
+            int marker = nextJpegMarker(in);
+            if (isStandaloneJpegMarker(marker)) {
+                out.write(0xFF);
+                out.write(marker);
+                continue;
+            }
+            if (marker == 0xDA || marker == 0xD9) {
+                out.write(0xFF);
+                out.write(marker);
+                in.transferTo(out);
+                return;
+            }
+            int length = in.readUnsignedShort();
+            byte[] payload = in.readNBytes(length - 2);
+            if (payload.length != length - 2) {
+                throw new EOFException();
+            }
+            if (marker == 0xE1 && ascii(payload, 0, Math.min(6, payload.length)).equals("Exif\0\0")) {
+                // Bỏ EXIF (GPS, máy ảnh, thumbnail...) nhưng giữ hướng xoay để ảnh không bị hiển thị nghiêng
+                int orientation = exifOrientation(payload, 6);
+                if (orientation > 1 && orientation <= 8) {
+                    writeOrientationOnlyExif(out, orientation);
+                }
+                continue;
+            }
+            if ((marker >= 0xE0 && marker <= 0xEF && !KEPT_JPEG_APP_MARKERS.contains(marker)) || marker == 0xFE) {
+                continue;
+            }
+            out.write(0xFF);
+            out.write(marker);
+            out.write(length >> 8);
+            out.write(length & 0xFF);
+            out.write(payload);
+        }
+    }
+
+    private static void stripPng(InputStream source, OutputStream out) throws IOException {
+        DataInputStream in = new DataInputStream(source);
+        in.skipNBytes(8);
+        out.write(PNG_SIGNATURE);
+        byte[] buffer = new byte[COPY_BUFFER];
+        while (true) {
+            int length = in.readInt();
+            byte[] type = in.readNBytes(4);
+            String name = ascii(type, 0, 4);
+            long remaining = (length & 0xFFFFFFFFL) + 4; // dữ liệu + CRC
+            if (DROPPED_PNG_CHUNKS.contains(name)) {
+                in.skipNBytes(remaining);
+                continue;
+            }
+            out.write(length >>> 24);
+            out.write(length >>> 16);
+            out.write(length >>> 8);
+            out.write(length);
+            out.write(type);
+            while (remaining > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    throw new EOFException();
+                }
+                out.write(buffer, 0, read);
+                remaining -= read;
+            }
+            if (name.equals("IEND")) {
+                return;
+            }
+        }
+    }
+
+    // Tag Orientation (0x0112) trong IFD0 của EXIF (header TIFF bắt đầu tại tiff), 1 nếu không có hoặc không đọc được
+    private static int exifOrientation(byte[] payload, int tiff) {
+        if (payload.length < tiff + 8) {
+            return 1;
+        }
+        boolean little = payload[tiff] == 'I';
+        int ifd = tiff + (int) readUnsigned(payload, tiff + 4, 4, little);
+        if (ifd < tiff || ifd + 2 > payload.length) {
+            return 1;
+        }
+        int entries = (int) readUnsigned(payload, ifd, 2, little);
+        for (int i = 0; i < entries; i++) {
+            int entry = ifd + 2 + i * 12;
+            if (entry + 12 > payload.length) {
+                return 1;
+            }
+            if (readUnsigned(payload, entry, 2, little) == 0x0112) {
+                return (int) readUnsigned(payload, entry + 8, 2, little);
+            }
+        }
+        return 1;
+    }
+
+    // APP1 tối thiểu: "Exif\0\0" + orientationOnlyTiff
+    private static void writeOrientationOnlyExif(OutputStream out, int orientation) throws IOException {
+        byte[] tiff = orientationOnlyTiff(orientation);
+        int length = 6 + tiff.length + 2;
+        out.write(0xFF);
+        out.write(0xE1);
+        out.write(length >> 8);
+        out.write(length & 0xFF);
+        out.write(new byte[] { 'E', 'x', 'i', 'f', 0, 0 });
+        out.write(tiff);
+    }
+
+    // Header TIFF big-endian, IFD0 một entry Orientation (SHORT)
+    private static byte[] orientationOnlyTiff(int orientation) {
+        return new byte[] {
+                'M', 'M', 0, 0x2A, 0, 0, 0, 8,
+                0, 1,
+                0x01, 0x12, 0, 3, 0, 0, 0, 1, 0, (byte) orientation, 0, 0,
+                0, 0, 0, 0 };
+    }
+
+    /**
+     * Chép các block GIF, bỏ comment extension và application extension chứa metadata (XMP...).
+     * Dừng ở trailer nên dữ liệu nối thêm sau ảnh cũng bị bỏ.
+     */
+    private static void stripGif(InputStream source, OutputStream out) throws IOException {
+        DataInputStream in = new DataInputStream(source);
+        // Header (6) + logical screen descriptor (7)
+        byte[] header = readFully(in, 13);
+        out.write(header);
+        copyColorTable(in, out, header[10]);
+        while (true) {
+            int block = in.readUnsignedByte();
+            switch (block) {
+                case 0x3B -> {
+                    out.write(block);
+                    return;
+                }
+                case 0x2C -> {
+                    byte[] descriptor = readFully(in, 9);
+                    out.write(block);
+                    out.write(descriptor);
+                    copyColorTable(in, out, descriptor[8]);
+                    out.write(in.readUnsignedByte()); // LZW minimum code size
+                    copySubBlocks(in, out);
+                }
+                case 0x21 -> {
+                    int label = in.readUnsignedByte();
+                    if (label == 0xFE) {
+                        skipSubBlocks(in);
+                        continue;
+                    }
+                    if (label == 0xFF) {
+                        int size = in.readUnsignedByte();
+                        byte[] identifier = readFully(in, size);
+                        if (!KEPT_GIF_APPLICATIONS.contains(ascii(identifier, 0, 11))) {
+                            skipSubBlocks(in);
+                            continue;
+                        }
+                        out.write(block);
+                        out.write(label);
+                        out.write(size);
+                        out.write(identifier);
+                    } else {
+                        out.write(block);
+                        out.write(label);
+                    }
+                    copySubBlocks(in, out);
+                }
+                default -> throw new IllegalArgumentException("Cấu trúc GIF không hợp lệ");
+            }
+        }
+    }
+
+    // Bảng màu có khi bit cao của byte packed bật, kích thước 3 * 2^(N+1)
+    private static void copyColorTable(DataInputStream in, OutputStream out, byte packed) throws IOException {
+        if ((packed & 0x80) != 0) {
+            out.write(readFully(in, 3 * (1 << ((packed & 0x07) + 1))));
+        }
+    }
+
+    private static void copySubBlocks(DataInputStream in, OutputStream out) throws IOException {
+        int size;
+        do {
+            size = in.readUnsignedByte();
+            out.write(size);
+            out.write(readFully(in, size));
+        } while (size != 0);
+    }
+
+    private static void skipSubBlocks(DataInputStream in) throws IOException {
+        int size;
+        while ((size = in.readUnsignedByte()) != 0) {
+            in.skipNBytes(size);
+        }
+    }
+
+    /** Chunk WebP sẽ ghi ra: payload null thì chép nguyên từ file nguồn, khác null thì ghi payload này. */
+    private record WebpChunk(String type, long offset, long size, byte[] payload) {
+        long length() {
+            return payload != null ? payload.length : size;
+        }
+    }
+
+    /**
+     * WebP: bỏ chunk XMP, thay chunk EXIF bằng EXIF chỉ còn Orientation (hoặc bỏ hẳn), sửa cờ VP8X
+     * cho khớp. Kích thước RIFF nằm ở đầu file nên lượt đầu chỉ đọc header chunk để lập danh sách,
+     * lượt sau mới chép dữ liệu ảnh.
+     */
+    private static void stripWebp(Path source, OutputStream out) throws IOException {
+        List<WebpChunk> chunks = new ArrayList<>();
+        int vp8x = -1;
+        boolean exifKept = false;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(source)))) {
+            byte[] header = readFully(in, 12);
+            long end = Math.min(Files.size(source), 8 + readUnsigned(header, 4, 4, true));
+            long position = 12;
+            while (position + 8 <= end) {
+                byte[] chunkHeader = readFully(in, 8);
+                String type = ascii(chunkHeader, 0, 4);
+                long size = readUnsigned(chunkHeader, 4, 4, true);
+                long padded = size + (size & 1);
+                long offset = position + 8;
+                position = offset + padded;
+                if (position > end) {
+                    throw new EOFException();
+                }
+                switch (type) {
+                    case "XMP " -> in.skipNBytes(padded);
+                    case "EXIF" -> {
+                        byte[] exif = readFully(in, (int) size);
+                        in.skipNBytes(padded - size);
+                        // Một số encoder ghi cả tiền tố "Exif\0\0" như JPEG
+                        int tiff = ascii(exif, 0, 6).equals("Exif\0\0") ? 6 : 0;
+                        int orientation = exifOrientation(exif, tiff);
+                        if (orientation > 1 && orientation <= 8) {
+                            chunks.add(new WebpChunk(type, offset, size, orientationOnlyTiff(orientation)));
+                            exifKept = true;
+                        }
+                    }
+                    case "VP8X" -> {
+                        byte[] payload = readFully(in, (int) size);
+                        in.skipNBytes(padded - size);
+                        vp8x = chunks.size();
+                        chunks.add(new WebpChunk(type, offset, size, payload));
+                    }
+                    default -> {
+                        in.skipNBytes(padded);
+                        chunks.add(new WebpChunk(type, offset, size, null));
+                    }
+                }
+            }
+        }
+        if (vp8x >= 0 && chunks.get(vp8x).payload().length > 0) {
+            byte[] flags = chunks.get(vp8x).payload();
+            flags[0] = (byte) ((flags[0] & ~(VP8X_EXIF_FLAG | VP8X_XMP_FLAG)) | (exifKept ? VP8X_EXIF_FLAG : 0));
+        }
+
+        long riffSize = 4;
+        for (WebpChunk chunk : chunks) {
+            riffSize += 8 + chunk.length() + (chunk.length() & 1);
+        }
+        out.write(new byte[] { 'R', 'I', 'F', 'F' });
+        writeIntLe(out, riffSize);
+        out.write(new byte[] { 'W', 'E', 'B', 'P' });
+        byte[] buffer = new byte[COPY_BUFFER];
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(source), COPY_BUFFER)) {
+            long position = 0;
+            for (WebpChunk chunk : chunks) {
+                long length = chunk.length();
+                out.write(chunk.type().getBytes(StandardCharsets.ISO_8859_1));
+                writeIntLe(out, length);
+                if (chunk.payload() != null) {
+                    out.write(chunk.payload());
+                } else {
+                    in.skipNBytes(chunk.offset() - position);
+                    long remaining = length;
+                    while (remaining > 0) {
+                        int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                        if (read < 0) {
+                            throw new EOFException();
+                        }
+                        out.write(buffer, 0, read);
+                        remaining -= read;
+                    }
+                    position = chunk.offset() + length;
+                }
+                if ((length & 1) != 0) {
+                    out.write(0);
+                }
+            }
+        }
+    }
+
+    // === HELPERS ===
+    private static int nextJpegMarker(DataInputStream in) throws IOException {
+        if (in.readUnsignedByte() != 0xFF) {
+            throw new IllegalArgumentException("Cấu trúc JPEG không hợp lệ");
+        }
+        int marker;
+        do {
+            marker = in.readUnsignedByte();
+        } while (marker == 0xFF);
+        return marker;
+    }
+
+    private static boolean isStandaloneJpegMarker(int marker) {
+        return marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7);
+    }
+
+    private static int readShortLe(DataInputStream in) throws IOException {
+        return in.readUnsignedByte() | (in.readUnsignedByte() << 8);
+    }
+
+    private static byte[] readFully(DataInputStream in, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeIntLe(OutputStream out, long value) throws IOException {
+        out.write((int) value);
+        out.write((int) (value >>> 8));
+        out.write((int) (value >>> 16));
+        out.write((int) (value >>> 24));
+    }
+
+    private static int readInt24Le(DataInputStream in) throws IOException {
+        return in.readUnsignedByte() | (in.readUnsignedByte() << 8) | (in.readUnsignedByte() << 16);
+    }
+
+    private static long readUnsigned(byte[] bytes, int offset, int length, boolean little) {
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            int b = bytes[offset + (little ? length - 1 - i : i)] & 0xFF;
+            value = (value << 8) | b;
+        }
+        return value;
+    }
+
+    private static boolean startsWith(byte[] bytes, byte[] prefix) {
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String ascii(byte[] bytes, int offset, int length) {
+        return new String(bytes, offset, Math.min(length, Math.max(0, bytes.length - offset)),
+                StandardCharsets.ISO_8859_1);
+    }
+
+    // === METRICS ===
+    public long getProcessedCount() {
+        return processed.get();
+    }
+
+    public long getRejectedBusyCount() {
+        return rejectedBusy.get();
+    }
+
+    public long getRejectedInvalidCount() {
+        return rejectedInvalid.get();
+    }
+
+    public long getRejectedTooLargeCount() {
+        return rejectedTooLarge.get();
+    }
+
+    public long getBytesRemoved() {
+        return bytesRemoved.get();
+    }
+
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
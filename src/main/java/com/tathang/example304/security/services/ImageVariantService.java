@@ -0,0 +1,250 @@
+package com.tathang.example304.security.services;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Limit;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.tathang.example304.dto.ImageSizes;
+import com.tathang.example304.model.StoredBlob;
+import com.tathang.example304.repository.StoredBlobRepository;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sinh ảnh thu nhỏ (96/256/768px) cho ảnh vừa upload trên một executor riêng, giới hạn
+ * số luồng và độ dài hàng đợi. Request upload không chờ; hàng đợi đầy thì bỏ qua và
+ * job backfill định kỳ sẽ xử lý sau.
+ */
+@Slf4j
+@Service
+public class ImageVariantService {
+
+    private static final float JPEG_QUALITY = 0.82f;
+
+    private final StoredBlobRepository storedBlobRepository;
+    private final CatalogViewService catalogViewService;
+    private final CatalogSnapshotService catalogSnapshotService;
+    private final TransactionTemplate transactionTemplate;
+    private final BlobStore blobStore;
+    private final UploadCache uploadCache;
+    private final ThreadPoolExecutor executor;
+    private final int queueCapacity;
+
+    // Blob đang chờ/đang xử lý, để backfill không submit trùng
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+    private final AtomicLong generated = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    @Value("${file.upload-dir}")
+    private String uploadDir;
+
+    public ImageVariantService(StoredBlobRepository storedBlobRepository,
+            CatalogViewService catalogViewService,
+            CatalogSnapshotService catalogSnapshotService,
+            TransactionTemplate transactionTemplate,
+            BlobStore blobStore,
+            UploadCache uploadCache,
+            @Value("${catalog.images.variant-threads:2}") int threads,
+            @Value("${catalog.images.variant-queue:100}") int queueCapacity) {
+        this.storedBlobRepository = storedBlobRepository;
+        this.catalogViewService = catalogViewService;
+        this.catalogSnapshotService = catalogSnapshotService;
+        this.transactionTemplate = transactionTemplate;
+        this.blobStore = blobStore;
+        this.uploadCache = uploadCache;
+        this.queueCapacity = queueCapacity;
+        AtomicInteger sequence = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+                    Thread thread = new Thread(runnable, "image-variants-" + sequence.incrementAndGet());
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.NORM_PRIORITY - 1);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    // === SUBMIT ===
+    public void submit(String hash) {
+        if (!inFlight.add(hash)) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    generate(hash);
+                } finally {
+                    inFlight.remove(hash);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(hash);
+            rejected.incrementAndGet();
+            log.warn("⏳ Image variant queue full, {} will be picked up by backfill", hash);
+        }
+    }
+
+    // Bắt lại blob chưa có biến thể: hàng đợi từng đầy, hoặc app tắt giữa chừng
+    @Scheduled(fixedDelayString = "${catalog.images.variant-backfill-ms:60000}")
+    public void backfill() {
+        int room = executor.getQueue().remainingCapacity();
+        if (room == 0) {
+            return;
+        }
+        for (StoredBlob blob : storedBlobRepository.findByVariantsIsNullOrderByCreatedAtAsc(Limit.of(room))) {
+            submit(blob.getHash());
+        }
+    }
+
+    // === GENERATE ===
+    private void generate(String hash) {
+        StoredBlob blob = storedBlobRepository.findById(hash).orElse(null);
+        if (blob == null || blob.getVariants() != null) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        Path dir = Paths.get(uploadDir).toAbsolutePath().normalize();
+        try {
+            BufferedImage image;
+            try (InputStream in = blobStore.open(blob.getFileName())) {
+                image = ImageIO.read(in);
+            }
+            if (image == null) {
+                // Không phải ảnh ImageIO đọc được: đánh dấu đã xử lý, không có biến thể
+                record(blob, "");
+                return;
+            }
+            boolean alpha = image.getColorModel().hasAlpha();
+            String format = alpha ? "png" : "jpg";
+
+            // Thu nhỏ từ lớn tới bé, mỗi bản lấy từ bản lớn hơn liền trước cho nhanh
+            List<Integer> widths = new ArrayList<>();
+            BufferedImage source = image;
+            for (int i = ImageSizes.WIDTHS.length - 1; i >= 0; i--) {
+                int width = ImageSizes.WIDTHS[i];
+                if (width >= image.getWidth()) {
+                    continue;
+                }
+                BufferedImage resized = resize(source, width, alpha);
+                write(resized, format, dir, ImageSizes.variantFileName(hash, width, format));
+                widths.add(0, width);
+                source = resized;
+            }
+            record(blob, ImageSizes.encode(format, widths));
+            generated.incrementAndGet();
+            log.info("🖼️ Image variants for {}: {} ({} ms)", blob.getFileName(), widths,
+                    System.currentTimeMillis() - start);
+        } catch (IOException | RuntimeException e) {
+            failed.incrementAndGet();
+            log.error("❌ Image variant generation failed for {}", blob.getFileName(), e);
+            record(blob, "");
+        }
+    }
+
+    private void record(StoredBlob blob, String variants) {
+        transactionTemplate.executeWithoutResult(status -> {
+            storedBlobRepository.updateVariants(blob.getHash(), variants);
+            if (!variants.isEmpty()) {
+                catalogViewService.imageVariantsChanged(FileStorageService.URL_PREFIX + blob.getFileName(), variants);
+                catalogSnapshotService.catalogChanged();
+            }
+        });
+    }
+
+    private static BufferedImage resize(BufferedImage source, int width, boolean alpha) {
+        int height = Math.max(1, Math.round((float) source.getHeight() * width / source.getWidth()));
+        BufferedImage target = new BufferedImage(width, height,
+                alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = target.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(source, 0, 0, width, height, null);
+        } finally {
+            g.dispose();
+        }
+        return target;
+    }
+
+    // Ghi ra file tạm rồi đưa vào BlobStore (local: đổi tên), để request đọc không thấy file ghi dở
+    private void write(BufferedImage image, String format, Path dir, String fileName) throws IOException {
+        // Không dùng createTempFile (quyền 600): file biến thể cần đọc được như file gốc
+        Files.createDirectories(dir);
+        Path temp = dir.resolve(".variant-" + UUID.randomUUID() + ".tmp");
+        try {
+            if (format.equals("jpg")) {
+                ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+                try (ImageOutputStream out = ImageIO.createImageOutputStream(temp.toFile())) {
+                    ImageWriteParam param = writer.getDefaultWriteParam();
+                    param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                    param.setCompressionQuality(JPEG_QUALITY);
+                    writer.setOutput(out);
+                    writer.write(null, new IIOImage(image, null, null), param);
+                } finally {
+                    writer.dispose();
+                }
+            } else {
+                ImageIO.write(image, format, temp.toFile());
+            }
+            blobStore.put(fileName, temp, format.equals("jpg") ? "image/jpeg" : "image/png");
+            // Trước đó tên biến thể được phục vụ bằng ảnh gốc, có thể đang nằm trong cache
+            uploadCache.invalidate(fileName);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    // === METRICS ===
+    public long getGeneratedCount() {
+        return generated.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
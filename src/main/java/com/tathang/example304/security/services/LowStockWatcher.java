@@ -0,0 +1,212 @@
+package com.tathang.example304.security.services;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import com.tathang.example304.model.Product;
+import com.tathang.example304.repository.ProductRepository;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Theo dõi sản phẩm sắp hết hàng ngay tại các thao tác ghi tồn kho
+ * (không quét bảng định kỳ). Chỉ query DB một lần để khởi tạo tập low-stock,
+ * sau đó cập nhật theo từng lần ghi và đẩy sự kiện qua SSE cho admin.
+ * Việc gửi SSE (ghi mạng, có thể chậm) chạy trên một luồng riêng, ngoài lock, để admin
+ * kết nối chậm không làm nghẽn luồng xử lý order.
+ */
+@Slf4j
+@Service
+public class LowStockWatcher {
+
+    private static final long EMITTER_TIMEOUT_MS = 30 * 60 * 1000L;
+    private static final int EVENT_QUEUE = 1000;
+
+    private final ProductRepository productRepository;
+
+    private final Map<Long, LowStockItem> lowStock = new ConcurrentHashMap<>();
+    private final List<SseEmitter> emitters = new CopyOnWriteArrayList<>();
+    private volatile boolean built;
+    // Một luồng để sự kiện đến client theo đúng thứ tự phát sinh
+    private final ThreadPoolExecutor publisher = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(EVENT_QUEUE), runnable -> {
+                Thread thread = new Thread(runnable, "low-stock-events");
+                thread.setDaemon(true);
+                return thread;
+            }, new ThreadPoolExecutor.AbortPolicy());
+
+    @Value("${catalog.low-stock.threshold:10}")
+    private int threshold;
+
+    public LowStockWatcher(ProductRepository productRepository) {
+        this.productRepository = productRepository;
+    }
+
+    // === WRITE HOOKS ===
+
+    // Gọi sau mỗi lần ghi tồn kho / archive của một sản phẩm
+    public void stockChanged(Product product) {
+        stockChanged(product.getId(), product.getName(), product.getStockQuantity(),
+                Boolean.TRUE.equals(product.getArchive()));
+    }
+
+    // Cho đường ghi bằng JDBC, không có entity Product
+    public void stockChanged(Long id, String name, Integer stock, boolean archived) {
+        AfterCommit.run(() -> apply(id, name, stock, archived));
+    }
+
+    // Ghi hàng loạt (import CSV, bulk patch): khởi tạo lại ở lần đọc kế tiếp
+    public void reset() {
+        AfterCommit.run(() -> {
+            synchronized (this) {
+                built = false;
+                lowStock.clear();
+            }
+            publish("RESET", null);
+        });
+    }
+
+    // Cập nhật tập low-stock trong lock, gửi sự kiện sau khi nhả lock
+    private void apply(Long id, String name, Integer stock, boolean archived) {
+        String event = null;
+        LowStockItem item = null;
+        synchronized (this) {
+            if (!built) {
+                // Chưa khởi tạo thì lần khởi tạo sẽ đọc trạng thái đã commit
+                return;
+            }
+            boolean low = !archived && stock != null && stock < threshold;
+            LowStockItem previous = lowStock.get(id);
+            if (low) {
+                item = new LowStockItem(id, name, stock, previous != null ? previous.since() : LocalDateTime.now());
+                lowStock.put(id, item);
+                if (previous == null) {
+                    log.info("📉 Low stock: product {} ({}) = {}", id, name, stock);
+                    event = "LOW_STOCK";
+                } else if (!previous.stockQuantity().equals(stock)) {
+                    event = "STOCK_UPDATED";
+                }
+            } else if (previous != null) {
+                lowStock.remove(id);
+                item = new LowStockItem(id, name, stock, previous.since());
+                event = "RESTOCKED";
+            }
+        }
+        if (event != null) {
+            publish(event, item);
+        }
+    }
+
+    // === READ ===
+    public List<LowStockItem> getLowStock() {
+        ensureBuilt();
+        List<LowStockItem> items = new ArrayList<>(lowStock.values());
+        items.sort(Comparator.comparing(LowStockItem::stockQuantity).thenComparing(LowStockItem::id));
+        return items;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    private void ensureBuilt() {
+        if (!built) {
+            synchronized (this) {
+                if (!built) {
+                    lowStock.clear();
+                    LocalDateTime now = LocalDateTime.now();
+                    for (Product product : productRepository.findByStockQuantityLessThan(threshold)) {
+                        if (!Boolean.TRUE.equals(product.getArchive())) {
+                            lowStock.put(product.getId(), new LowStockItem(product.getId(), product.getName(),
+                                    product.getStockQuantity(), now));
+                        }
+                    }
+                    built = true;
+                    log.info("📦 Low-stock set initialized: {} products below {}", lowStock.size(), threshold);
+                }
+            }
+        }
+    }
+
+    // === PUSH (SSE) ===
+    public SseEmitter subscribe() {
+        SseEmitter emitter = new SseEmitter(EMITTER_TIMEOUT_MS);
+        emitter.onCompletion(() -> emitters.remove(emitter));
+        emitter.onTimeout(() -> emitters.remove(emitter));
+        emitter.onError(e -> emitters.remove(emitter));
+        try {
+            // Đăng ký và gửi trạng thái hiện tại trên luồng gửi sự kiện, để SNAPSHOT
+            // đến trước mọi thay đổi phát sinh sau đó
+            publisher.execute(() -> {
+                emitters.add(emitter);
+                try {
+                    emitter.send(SseEmitter.event().name("SNAPSHOT").data(snapshot()));
+                } catch (IOException | IllegalStateException e) {
+                    emitters.remove(emitter);
+                    emitter.completeWithError(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            emitter.completeWithError(e);
+        }
+        return emitter;
+    }
+
+    private Map<String, Object> snapshot() {
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("threshold", threshold);
+        data.put("items", getLowStock());
+        return data;
+    }
+
+    // item = null: gửi lại toàn bộ tập (sau reset), snapshot() có thể query DB nên cũng chạy trên luồng gửi
+    private void publish(String event, LowStockItem item) {
+        if (emitters.isEmpty()) {
+            return;
+        }
+        try {
+            publisher.execute(() -> send(event, item));
+        } catch (RejectedExecutionException e) {
+            log.warn("⚠️ Low-stock event queue full, dropped {}", event);
+        }
+    }
+
+    private void send(String event, LowStockItem item) {
+        Object data = item != null ? item : snapshot();
+        for (SseEmitter emitter : emitters) {
+            try {
+                emitter.send(SseEmitter.event().name(event).data(data));
+            } catch (IOException | IllegalStateException e) {
+                emitters.remove(emitter);
+            }
+        }
+    }
+
+    public int getSubscriberCount() {
+        return emitters.size();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        publisher.shutdownNow();
+    }
+
+    public record LowStockItem(Long id, String name, Integer stockQuantity, LocalDateTime since) {
+    }
+}
@@ -1,29 +1,72 @@
 package com.tathang.example304.security.services;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import com.tathang.example304.model.*;
 import com.tathang.example304.repository.*;
 
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+
 import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.TreeMap;
 
 @Service
 @Transactional
 public class OrderService {
 
+    private static final int MAX_ORDER_LINES = 100;
+
+    // Trừ (delta > 0) hoặc hoàn (delta < 0) tồn kho; không đủ hàng thì không dòng nào bị sửa
+    private static final String ADJUST_STOCK_SQL = """
+            UPDATE products SET stock_quantity = stock_quantity - ?, updated_at = ?
+            WHERE id = ? AND stock_quantity >= ?""";
+    private static final String INSERT_ITEM_SQL = """
+            INSERT INTO order_items (order_id, product_id, quantity, price, subtotal, created_at, updated_at)
+            VALUES (?, ?, ?, ?, ?, ?, ?)""";
+    private static final String UPDATE_ITEM_SQL = """
+            UPDATE order_items SET quantity = ?, price = ?, subtotal = ?, updated_at = ? WHERE id = ?""";
+
     private final OrderRepository orderRepository;
     private final OrderItemRepository orderItemRepository;
     private final ProductRepository productRepository;
+    private final CatalogSnapshotService catalogSnapshotService;
+    private final CatalogChangeLogService catalogChangeLogService;
+    private final LowStockWatcher lowStockWatcher;
+    private final CatalogViewService catalogViewService;
+    private final JdbcTemplate jdbcTemplate;
+    private final StockReservationService stockReservationService;
+
+    @PersistenceContext
+    private EntityManager entityManager;
 
     public OrderService(OrderRepository orderRepository, OrderItemRepository orderItemRepository,
-            ProductRepository productRepository) {
+            ProductRepository productRepository, CatalogSnapshotService catalogSnapshotService,
+            CatalogChangeLogService catalogChangeLogService,
+            LowStockWatcher lowStockWatcher, CatalogViewService catalogViewService, JdbcTemplate jdbcTemplate,
+            StockReservationService stockReservationService) {
         this.orderRepository = orderRepository;
         this.orderItemRepository = orderItemRepository;
         this.productRepository = productRepository;
+        this.catalogSnapshotService = catalogSnapshotService;
+        this.catalogChangeLogService = catalogChangeLogService;
+        this.lowStockWatcher = lowStockWatcher;
+        this.catalogViewService = catalogViewService;
+        this.jdbcTemplate = jdbcTemplate;
+        this.stockReservationService = stockReservationService;
     }
 
     public List<Order> getAllOrders() {
@@ -34,13 +77,24 @@ public class OrderService {
 
         Order order = orderRepository.findById(orderId)
                 .orElseThrow(() -> new RuntimeException("Order not found"));
+        lockOpenOrder(orderId);
 
         Product product = productRepository.findById(productId)
                 .orElseThrow(() -> new RuntimeException("Product not found"));
 
-        if (product.getStockQuantity() < quantity) {
+        if (Boolean.TRUE.equals(product.getArchive())) {
+            throw new RuntimeException("Product is no longer available");
+        }
+
+        if (quantity == null || quantity <= 0) {
+            throw new RuntimeException("Quantity must be positive");
+        }
+
+        // Kiểm tra và trừ trong cùng một câu UPDATE: hai đơn mua cùng lúc không bán quá tồn kho
+        if (productRepository.decrementStock(productId, quantity, LocalDateTime.now()) == 0) {
             throw new RuntimeException("Insufficient stock");
         }
+        refreshStock(product);
 
         List<OrderItem> existingItems = orderItemRepository.findByOrderId(orderId);
 
@@ -63,14 +117,182 @@ public class OrderService {
             orderItemRepository.save(orderItem);
         }
 
-        product.setStockQuantity(product.getStockQuantity() - quantity);
-        productRepository.save(product);
+        catalogViewService.updateStock(product.getId(), product.getStockQuantity());
+        catalogSnapshotService.stockChanged();
+        catalogChangeLogService.recordStockChanged(List.of(product.getId()));
+        lowStockWatcher.stockChanged(product);
 
         updateOrderTotal(orderId);
+        stockReservationService.reserve(orderId);
 
         return orderRepository.findById(orderId).orElse(null);
     }
 
+    // === REPLACE ITEMS ===
+
+    /**
+     * Đặt lại toàn bộ giỏ hàng theo danh sách mong muốn (productId -> số lượng, 0 = bỏ).
+     * So với các dòng hiện có rồi thêm/sửa/xóa và trừ/hoàn tồn kho bằng JDBC batch trong
+     * một transaction, nên số câu lệnh không tăng theo số sản phẩm. Thiếu hàng ở bất kỳ
+     * sản phẩm nào thì cả lần sửa bị rollback.
+     */
+    public Map<String, Object> replaceOrderItems(Long orderId, Long userId, Map<Long, Integer> desired) {
+        if (desired.size() > MAX_ORDER_LINES) {
+            throw new IllegalArgumentException("Tối đa " + MAX_ORDER_LINES + " sản phẩm mỗi đơn hàng");
+        }
+        desired.forEach((productId, quantity) -> {
+            if (productId == null || quantity == null || quantity < 0) {
+                throw new IllegalArgumentException("productId và quantity (>= 0) là bắt buộc");
+            }
+        });
+
+        // Khóa dòng order: hai lần sửa cùng một giỏ hàng chạy lần lượt
+        List<Map<String, Object>> orders = jdbcTemplate.queryForList(
+                "SELECT user_id, status FROM orders WHERE id = ? FOR UPDATE", orderId);
+        if (orders.isEmpty() || !userId.equals(((Number) orders.get(0).get("user_id")).longValue())) {
+            throw new SecurityException("Order not found or access denied");
+        }
+        if (!Order.OrderStatus.NEW.name().equals(orders.get(0).get("status"))) {
+            throw new IllegalStateException("Chỉ sửa được đơn hàng chưa thanh toán");
+        }
+
+        // productId -> {itemId, quantity, price}
+        Map<Long, Object[]> current = new HashMap<>();
+        jdbcTemplate.query("SELECT id, product_id, quantity, price FROM order_items WHERE order_id = ?",
+                rs -> {
+                    current.put(rs.getLong("product_id"), new Object[] { rs.getLong("id"),
+                            rs.getInt("quantity"), rs.getBigDecimal("price") });
+                }, orderId);
+
+        // Sắp theo id để các giao dịch đồng thời khóa dòng products theo cùng thứ tự
+        TreeMap<Long, Integer> deltas = new TreeMap<>();
+        desired.forEach((productId, quantity) -> {
+            Object[] line = current.get(productId);
+            int delta = quantity - (line != null ? (Integer) line[1] : 0);
+            if (delta != 0) {
+                deltas.put(productId, delta);
+            }
+        });
+        current.forEach((productId, line) -> {
+            if (!desired.containsKey(productId)) {
+                deltas.put(productId, -(Integer) line[1]);
+            }
+        });
+
+        // productId -> {name, price, archive}
+        Map<Long, Object[]> products = new HashMap<>();
+        if (!deltas.isEmpty()) {
+            String placeholders = String.join(",", Collections.nCopies(deltas.size(), "?"));
+            jdbcTemplate.query("SELECT id, name, price, archive FROM products WHERE id IN (" + placeholders + ")",
+                    rs -> {
+                        products.put(rs.getLong("id"), new Object[] { rs.getString("name"),
+                                rs.getBigDecimal("price"), rs.getBoolean("archive") });
+                    }, deltas.keySet().toArray());
+        }
+
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+        List<Object[]> stockBatch = new ArrayList<>(deltas.size());
+        List<Object[]> inserts = new ArrayList<>();
+        List<Object[]> updates = new ArrayList<>();
+        List<Object[]> deletes = new ArrayList<>();
+        for (Map.Entry<Long, Integer> entry : deltas.entrySet()) {
+            Long productId = entry.getKey();
+            int delta = entry.getValue();
+            Object[] product = products.get(productId);
+            if (product == null) {
+                throw new IllegalArgumentException("Product not found: " + productId);
+            }
+            if (delta > 0 && (Boolean) product[2]) {
+                throw new IllegalArgumentException("Product is no longer available: " + productId);
+            }
+            // Hoàn kho (delta < 0) dùng ngưỡng 0 nên luôn thỏa điều kiện
+            stockBatch.add(new Object[] { delta, now, productId, Math.max(delta, 0) });
+
+            Integer quantity = desired.get(productId);
+            Object[] line = current.get(productId);
+            BigDecimal price = (BigDecimal) product[1];
+            if (quantity == null || quantity == 0) {
+                if (line != null) {
+                    deletes.add(new Object[] { line[0] });
+                }
+            } else if (line == null) {
+                inserts.add(new Object[] { orderId, productId, quantity, price,
+                        price.multiply(BigDecimal.valueOf(quantity)), now, now });
+            } else {
+                updates.add(new Object[] { quantity, price, price.multiply(BigDecimal.valueOf(quantity)), now,
+                        line[0] });
+            }
+        }
+
+        if (!stockBatch.isEmpty()) {
+            int[] counts = jdbcTemplate.batchUpdate(ADJUST_STOCK_SQL, stockBatch,
+                    new int[] { Types.INTEGER, Types.TIMESTAMP, Types.BIGINT, Types.INTEGER });
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] == 0) {
+                    throw new IllegalStateException("Insufficient stock: " + stockBatch.get(i)[2]);
+                }
+            }
+        }
+        if (!inserts.isEmpty()) {
+            jdbcTemplate.batchUpdate(INSERT_ITEM_SQL, inserts, new int[] { Types.BIGINT, Types.BIGINT,
+                    Types.INTEGER, Types.DECIMAL, Types.DECIMAL, Types.TIMESTAMP, Types.TIMESTAMP });
+        }
+        if (!updates.isEmpty()) {
+            jdbcTemplate.batchUpdate(UPDATE_ITEM_SQL, updates,
+                    new int[] { Types.INTEGER, Types.DECIMAL, Types.DECIMAL, Types.TIMESTAMP, Types.BIGINT });
+        }
+        if (!deletes.isEmpty()) {
+            jdbcTemplate.batchUpdate("DELETE FROM order_items WHERE id = ?", deletes, new int[] { Types.BIGINT });
+        }
+
+        // Dòng không đổi số lượng giữ giá cũ, dòng vừa ghi lấy giá hiện tại
+        List<Map<String, Object>> items = new ArrayList<>(desired.size());
+        BigDecimal total = BigDecimal.ZERO;
+        for (Map.Entry<Long, Integer> entry : desired.entrySet()) {
+            if (entry.getValue() == 0) {
+                continue;
+            }
+            BigDecimal price = deltas.containsKey(entry.getKey())
+                    ? (BigDecimal) products.get(entry.getKey())[1]
+                    : (BigDecimal) current.get(entry.getKey())[2];
+            BigDecimal subtotal = price.multiply(BigDecimal.valueOf(entry.getValue()));
+            total = total.add(subtotal);
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("productId", entry.getKey());
+            item.put("quantity", entry.getValue());
+            item.put("price", price);
+            item.put("subtotal", subtotal);
+            items.add(item);
+        }
+        jdbcTemplate.update("UPDATE orders SET total_amount = ?, updated_at = ? WHERE id = ?", total, now, orderId);
+
+        if (!deltas.isEmpty()) {
+            Map<Long, Integer> stocks = new TreeMap<>();
+            String placeholders = String.join(",", Collections.nCopies(deltas.size(), "?"));
+            jdbcTemplate.query("SELECT id, stock_quantity FROM products WHERE id IN (" + placeholders + ")",
+                    rs -> {
+                        stocks.put(rs.getLong("id"), rs.getInt("stock_quantity"));
+                    }, deltas.keySet().toArray());
+            catalogViewService.updateStocks(stocks);
+            catalogChangeLogService.recordStockChanged(deltas.keySet());
+            catalogSnapshotService.stockChanged();
+            stocks.forEach((productId, stock) -> {
+                Object[] product = products.get(productId);
+                lowStockWatcher.stockChanged(productId, (String) product[0], stock, (Boolean) product[2]);
+            });
+        }
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("orderId", orderId);
+        result.put("items", items);
+        result.put("totalAmount", total);
+        result.put("inserted", inserts.size());
+        result.put("updated", updates.size());
+        result.put("removed", deletes.size());
+        result.put("reservedUntil", stockReservationService.reserve(orderId));
+        return result;
+    }
+
     public Order updateOrderStatus(Long orderId, Order.OrderStatus status) {
         Order order = orderRepository.findById(orderId)
                 .orElseThrow(() -> new RuntimeException("Order not found"));
@@ -79,15 +301,42 @@ public class OrderService {
         return updatedOrder;
     }
 
+    /**
+     * Tính lại total_amount bằng một câu UPDATE chỉ sửa cột này (không merge cả entity Order),
+     * nên không ghi đè trạng thái do transaction khác vừa đổi. Gọi trong transaction đã khóa dòng order.
+     */
     public void updateOrderTotal(Long orderId) {
-        Double total = orderItemRepository.getTotalAmountByOrderId(orderId);
-        if (total != null) {
-            Order order = orderRepository.findById(orderId).orElse(null);
-            if (order != null) {
-                order.setTotalAmount(BigDecimal.valueOf(total));
-                orderRepository.save(order);
-            }
+        // order_items vừa sửa qua JPA cần ghi xuống trước câu SUM
+        entityManager.flush();
+        jdbcTemplate.update("""
+                UPDATE orders SET total_amount = (SELECT COALESCE(SUM(subtotal), 0) FROM order_items
+                WHERE order_id = ?), updated_at = ? WHERE id = ?""", orderId, Timestamp.valueOf(LocalDateTime.now()),
+                orderId);
+        Order order = entityManager.find(Order.class, orderId);
+        if (order != null) {
+            entityManager.refresh(order);
+        }
+    }
+
+    // === CANCEL ===
+
+    /**
+     * Khách hủy đơn: khóa dòng order, chỉ nhận đơn NEW/PENDING, đổi trạng thái và trả tồn kho
+     * đang giữ trong cùng một transaction.
+     */
+    public void cancelOrder(Long orderId, Long userId) {
+        List<Map<String, Object>> orders = jdbcTemplate.queryForList(
+                "SELECT user_id, status FROM orders WHERE id = ? FOR UPDATE", orderId);
+        if (orders.isEmpty() || !userId.equals(((Number) orders.get(0).get("user_id")).longValue())) {
+            throw new SecurityException("Order not found or access denied");
+        }
+        Object status = orders.get(0).get("status");
+        if (!Order.OrderStatus.NEW.name().equals(status) && !Order.OrderStatus.PENDING.name().equals(status)) {
+            throw new IllegalStateException("Không thể hủy đơn hàng ở trạng thái " + status);
         }
+        jdbcTemplate.update("UPDATE orders SET status = ?, updated_at = ? WHERE id = ?",
+                Order.OrderStatus.CANCELLED.name(), Timestamp.valueOf(LocalDateTime.now()), orderId);
+        stockReservationService.release(orderId);
     }
 
     public List<Order> getPendingOrders() {
@@ -109,6 +358,7 @@ public class OrderService {
     public Order updateOrderItemQuantity(Long orderId, Long productId, Integer quantity) {
         Order order = orderRepository.findById(orderId)
                 .orElseThrow(() -> new RuntimeException("Order not found"));
+        lockOpenOrder(orderId);
 
         List<OrderItem> orderItems = orderItemRepository.findByOrderId(orderId);
         OrderItem orderItem = orderItems.stream()
@@ -118,21 +368,36 @@ public class OrderService {
 
         Product product = orderItem.getProduct();
 
+        if (quantity == null || quantity <= 0) {
+            throw new RuntimeException("Quantity must be positive");
+        }
+
         // Tính toán chênh lệch số lượng
         int quantityDifference = quantity - orderItem.getQuantity();
+        if (quantityDifference == 0) {
+            return order;
+        }
 
-        // Kiểm tra tồn kho
-        if (product.getStockQuantity() < quantityDifference) {
-            throw new RuntimeException("Insufficient stock");
+        // Trừ thêm (kiểm tra tồn kho ngay trong câu UPDATE) hoặc hoàn lại phần giảm
+        if (quantityDifference > 0) {
+            if (productRepository.decrementStock(product.getId(), quantityDifference, LocalDateTime.now()) == 0) {
+                throw new RuntimeException("Insufficient stock");
+            }
+        } else {
+            productRepository.incrementStock(product.getId(), -quantityDifference, LocalDateTime.now());
         }
+        refreshStock(product);
 
         // Cập nhật số lượng
         orderItem.setQuantity(quantity);
         orderItemRepository.save(orderItem);
 
-        // Cập nhật tồn kho
-        product.setStockQuantity(product.getStockQuantity() - quantityDifference);
-        productRepository.save(product);
+        catalogViewService.updateStock(product.getId(), product.getStockQuantity());
+        catalogSnapshotService.stockChanged();
+        catalogChangeLogService.recordStockChanged(List.of(product.getId()));
+        lowStockWatcher.stockChanged(product);
+        updateOrderTotal(orderId);
+        stockReservationService.reserve(orderId);
 
         return order;
     }
@@ -140,6 +405,7 @@ public class OrderService {
     public Order removeItemFromOrder(Long orderId, Long productId) {
         Order order = orderRepository.findById(orderId)
                 .orElseThrow(() -> new RuntimeException("Order not found"));
+        lockOpenOrder(orderId);
 
         List<OrderItem> orderItems = orderItemRepository.findByOrderId(orderId);
         OrderItem orderItem = orderItems.stream()
@@ -149,14 +415,35 @@ public class OrderService {
 
         // Hoàn trả tồn kho
         Product product = orderItem.getProduct();
-        product.setStockQuantity(product.getStockQuantity() + orderItem.getQuantity());
-        productRepository.save(product);
+        productRepository.incrementStock(product.getId(), orderItem.getQuantity(), LocalDateTime.now());
+        refreshStock(product);
+        catalogViewService.updateStock(product.getId(), product.getStockQuantity());
+        catalogSnapshotService.stockChanged();
+        catalogChangeLogService.recordStockChanged(List.of(product.getId()));
+        lowStockWatcher.stockChanged(product);
 
         // Xóa item
         orderItemRepository.delete(orderItem);
+        updateOrderTotal(orderId);
+        stockReservationService.reserve(orderId);
         return order;
     }
 
+    // Khóa dòng order trước khi đụng tới tồn kho, cùng thứ tự khóa với StockReservationService
+    private void lockOpenOrder(Long orderId) {
+        String status = jdbcTemplate.queryForObject("SELECT status FROM orders WHERE id = ? FOR UPDATE",
+                String.class, orderId);
+        if (!Order.OrderStatus.NEW.name().equals(status)) {
+            throw new RuntimeException("Chỉ sửa được đơn hàng chưa thanh toán");
+        }
+    }
+
+    // Nạp lại dòng sản phẩm sau UPDATE tồn kho: entity có giá trị mới mà không bị coi là đã sửa,
+    // nên khi flush Hibernate không ghi đè tồn kho bằng giá trị cũ
+    private void refreshStock(Product product) {
+        entityManager.refresh(product);
+    }
+
     public List<OrderItem> getOrderItemsByOrderId(Long orderId) {
         return orderItemRepository.findByOrderIdWithProduct(orderId);
     }
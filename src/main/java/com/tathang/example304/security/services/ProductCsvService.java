@@ -0,0 +1,404 @@
+package com.tathang.example304.security.services;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import com.tathang.example304.model.BlobReference;
+import com.tathang.example304.model.Category;
+import com.tathang.example304.repository.CategoryRepository;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Nhập/xuất sản phẩm hàng loạt qua CSV.
+ * Import đọc từng dòng, resolve danh mục sẵn trong bộ nhớ và ghi bằng JDBC batch;
+ * export stream thẳng từ ResultSet ra response, không giữ cả danh sách trong bộ nhớ.
+ */
+@Slf4j
+@Service
+public class ProductCsvService {
+
+    public static final List<String> COLUMNS = List.of(
+            "id", "name", "description", "price", "stock_quantity",
+            "category_id", "category_name", "image_url", "archive");
+
+    private static final int BATCH_SIZE = 500;
+    private static final int FETCH_SIZE = 1000;
+    private static final int MAX_REPORTED_ERRORS = 1000;
+
+    private static final String INSERT_SQL = """
+            INSERT INTO products (name, description, price, stock_quantity, category_id, image_url, archive,
+                created_at, updated_at)
+            VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)""";
+    // Cột không bắt buộc: nếu file không có cột đó thì khi cập nhật giữ nguyên giá trị cũ
+    private static final List<String> OPTIONAL_COLUMNS = List.of(
+            "description", "stock_quantity", "image_url", "archive");
+    private static final String EXPORT_SQL = """
+            SELECT p.id, p.name, p.description, p.price, p.stock_quantity, p.category_id, c.name AS category_name,
+                p.image_url, p.archive
+            FROM products p LEFT JOIN categories c ON c.id = p.category_id
+            ORDER BY p.id""";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final CategoryRepository categoryRepository;
+    private final CatalogChangeLogService catalogChangeLogService;
+    private final CatalogSnapshotService catalogSnapshotService;
+    private final ProductSearchService productSearchService;
+    private final ProductSuggestService productSuggestService;
+    private final LowStockWatcher lowStockWatcher;
+    private final CatalogViewService catalogViewService;
+    private final BlobReferenceService blobReferenceService;
+
+    public ProductCsvService(JdbcTemplate jdbcTemplate,
+            CategoryRepository categoryRepository,
+            CatalogChangeLogService catalogChangeLogService,
+            CatalogSnapshotService catalogSnapshotService,
+            ProductSearchService productSearchService,
+            ProductSuggestService productSuggestService,
+            LowStockWatcher lowStockWatcher,
+            CatalogViewService catalogViewService,
+            BlobReferenceService blobReferenceService) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.categoryRepository = categoryRepository;
+        this.catalogChangeLogService = catalogChangeLogService;
+        this.catalogSnapshotService = catalogSnapshotService;
+        this.productSearchService = productSearchService;
+        this.productSuggestService = productSuggestService;
+        this.lowStockWatcher = lowStockWatcher;
+        this.catalogViewService = catalogViewService;
+        this.blobReferenceService = blobReferenceService;
+    }
+
+    // === IMPORT ===
+
+    /**
+     * Dòng có id thì cập nhật, không có id thì thêm mới. Dòng lỗi bị bỏ qua và báo lại
+     * theo số dòng; lỗi DB làm rollback toàn bộ lần import.
+     */
+    @Transactional
+    public Map<String, Object> importCsv(InputStream input) throws IOException {
+        long started = System.nanoTime();
+        // Cắt về micro giây cho khớp độ chính xác cột timestamp, dùng để tìm lại các dòng vừa ghi
+        LocalDateTime importedAt = LocalDateTime.now().truncatedTo(ChronoUnit.MICROS);
+        Timestamp timestamp = Timestamp.valueOf(importedAt);
+
+        // Resolve danh mục một lần cho cả file
+        Map<Long, Category> categoriesById = new HashMap<>();
+        Map<String, Category> categoriesByName = new HashMap<>();
+        for (Category category : categoryRepository.findAll()) {
+            categoriesById.put(category.getId(), category);
+            if (category.getName() != null) {
+                categoriesByName.putIfAbsent(TextFolding.fold(category.getName()).trim(), category);
+            }
+        }
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+        List<String> header = CsvCodec.readRecord(reader);
+        if (header == null) {
+            throw new IllegalArgumentException("File CSV rỗng");
+        }
+        Map<String, Integer> columns = parseHeader(header);
+        List<String> updatable = OPTIONAL_COLUMNS.stream().filter(columns::containsKey).toList();
+        String updateSql = updateSql(updatable);
+
+        ImportResult result = new ImportResult();
+        List<Object[]> inserts = new ArrayList<>(BATCH_SIZE);
+        List<Object[]> updates = new ArrayList<>(BATCH_SIZE);
+        List<Integer> updateLines = new ArrayList<>(BATCH_SIZE);
+
+        int line = 1;
+        List<String> record;
+        while ((record = CsvCodec.readRecord(reader)) != null) {
+            line++;
+            if (record.size() == 1 && record.get(0).isBlank()) {
+                continue;
+            }
+            result.totalRows++;
+            try {
+                Row row = parseRow(record, columns, categoriesById, categoriesByName);
+                if (row.id == null) {
+                    inserts.add(new Object[] { row.name, row.description, row.price, row.stockQuantity,
+                            row.categoryId, row.imageUrl, row.archive, timestamp, timestamp });
+                } else {
+                    updates.add(updateParams(row, updatable, timestamp));
+                    updateLines.add(line);
+                }
+            } catch (IllegalArgumentException e) {
+                result.error(line, e.getMessage());
+            }
+
+            if (inserts.size() >= BATCH_SIZE) {
+                flushInserts(inserts, result);
+            }
+            if (updates.size() >= BATCH_SIZE) {
+                flushUpdates(updateSql, updates, updateLines, result);
+            }
+        }
+        flushInserts(inserts, result);
+        flushUpdates(updateSql, updates, updateLines, result);
+
+        if (result.inserted + result.updated > 0) {
+            // Ghi change log cho delta sync bằng một câu INSERT ... SELECT
+            catalogChangeLogService.recordProductsUpdatedAt(importedAt);
+            // Chỉ dựng lại dòng catalog_view của các sản phẩm vừa ghi (cùng updated_at), theo lô
+            List<Long> importedIds = jdbcTemplate.queryForList(
+                    "SELECT id FROM products WHERE updated_at = ? ORDER BY id", Long.class, timestamp);
+            catalogViewService.refreshProducts(importedIds);
+            if (columns.containsKey("image_url")) {
+                blobReferenceService.trackAll(BlobReference.OwnerType.PRODUCT, importedIds);
+            }
+            catalogSnapshotService.catalogChanged();
+            lowStockWatcher.reset();
+            AfterCommit.run(() -> {
+                productSearchService.rebuild();
+                productSuggestService.rebuild();
+            });
+        }
+
+        long tookMillis = (System.nanoTime() - started) / 1_000_000;
+        int written = result.inserted + result.updated;
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("totalRows", result.totalRows);
+        response.put("inserted", result.inserted);
+        response.put("updated", result.updated);
+        response.put("failed", result.failed);
+        response.put("errors", result.errors);
+        response.put("tookMillis", tookMillis);
+        response.put("rowsPerSecond", tookMillis > 0 ? written * 1000L / tookMillis : written);
+        log.info("📥 CSV import: {} rows, {} inserted, {} updated, {} failed in {} ms",
+                result.totalRows, result.inserted, result.updated, result.failed, tookMillis);
+        return response;
+    }
+
+    private Map<String, Integer> parseHeader(List<String> header) {
+        Map<String, Integer> columns = new HashMap<>();
+        for (int i = 0; i < header.size(); i++) {
+            String name = header.get(i).replace("\uFEFF", "").trim().toLowerCase(Locale.ROOT);
+            if (!COLUMNS.contains(name)) {
+                throw new IllegalArgumentException("Cột không hợp lệ: " + name + " (hỗ trợ: " + COLUMNS + ")");
+            }
+            columns.put(name, i);
+        }
+        if (!columns.containsKey("name") || !columns.containsKey("price")) {
+            throw new IllegalArgumentException("Thiếu cột bắt buộc: name, price");
+        }
+        if (!columns.containsKey("category_id") && !columns.containsKey("category_name")) {
+            throw new IllegalArgumentException("Cần cột category_id hoặc category_name");
+        }
+        return columns;
+    }
+
+    private String updateSql(List<String> updatable) {
+        StringBuilder sql = new StringBuilder("UPDATE products SET name = ?, price = ?, category_id = ?");
+        for (String column : updatable) {
+            sql.append(", ").append(column).append(" = ?");
+        }
+        return sql.append(", updated_at = ? WHERE id = ?").toString();
+    }
+
+    private Object[] updateParams(Row row, List<String> updatable, Timestamp timestamp) {
+        List<Object> params = new ArrayList<>(updatable.size() + 5);
+        params.add(row.name);
+        params.add(row.price);
+        params.add(row.categoryId);
+        for (String column : updatable) {
+            params.add(switch (column) {
+                case "description" -> row.description;
+                case "stock_quantity" -> row.stockQuantity;
+                case "image_url" -> row.imageUrl;
+                default -> row.archive;
+            });
+        }
+        params.add(timestamp);
+        params.add(row.id);
+        return params.toArray();
+    }
+
+    private Row parseRow(List<String> record, Map<String, Integer> columns,
+            Map<Long, Category> categoriesById, Map<String, Category> categoriesByName) {
+        Row row = new Row();
+
+        String id = value(record, columns, "id");
+        row.id = id == null ? null : parseLong(id, "id");
+
+        row.name = value(record, columns, "name");
+        if (row.name == null) {
+            throw new IllegalArgumentException("Thiếu name");
+        }
+        if (row.name.length() > 100) {
+            throw new IllegalArgumentException("name dài quá 100 ký tự");
+        }
+
+        String price = value(record, columns, "price");
+        if (price == null) {
+            throw new IllegalArgumentException("Thiếu price");
+        }
+        try {
+            row.price = new BigDecimal(price);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("price không hợp lệ: " + price);
+        }
+        if (row.price.signum() < 0) {
+            throw new IllegalArgumentException("price không được âm");
+        }
+
+        String stock = value(record, columns, "stock_quantity");
+        row.stockQuantity = stock == null ? 0 : (int) parseLong(stock, "stock_quantity");
+        if (row.stockQuantity < 0) {
+            throw new IllegalArgumentException("stock_quantity không được âm");
+        }
+
+        String categoryId = value(record, columns, "category_id");
+        String categoryName = value(record, columns, "category_name");
+        Category category = null;
+        if (categoryId != null) {
+            category = categoriesById.get(parseLong(categoryId, "category_id"));
+        } else if (categoryName != null) {
+            category = categoriesByName.get(TextFolding.fold(categoryName).trim());
+        }
+        if (category == null) {
+            throw new IllegalArgumentException("Không tìm thấy danh mục: "
+                    + (categoryId != null ? categoryId : categoryName));
+        }
+        row.categoryId = category.getId();
+
+        row.description = value(record, columns, "description");
+        row.imageUrl = value(record, columns, "image_url");
+        if (row.imageUrl != null && row.imageUrl.length() > 255) {
+            throw new IllegalArgumentException("image_url dài quá 255 ký tự");
+        }
+        String archive = value(record, columns, "archive");
+        row.archive = archive != null && (archive.equalsIgnoreCase("true") || archive.equals("1"));
+        return row;
+    }
+
+    private String value(List<String> record, Map<String, Integer> columns, String column) {
+        Integer index = columns.get(column);
+        if (index == null || index >= record.size()) {
+            return null;
+        }
+        String value = record.get(index).trim();
+        return value.isEmpty() ? null : value;
+    }
+
+    private long parseLong(String value, String column) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(column + " không hợp lệ: " + value);
+        }
+    }
+
+    private void flushInserts(List<Object[]> inserts, ImportResult result) {
+        if (inserts.isEmpty()) {
+            return;
+        }
+        jdbcTemplate.batchUpdate(INSERT_SQL, inserts);
+        result.inserted += inserts.size();
+        inserts.clear();
+    }
+
+    private void flushUpdates(String sql, List<Object[]> updates, List<Integer> lines, ImportResult result) {
+        if (updates.isEmpty()) {
+            return;
+        }
+        int[] counts = jdbcTemplate.batchUpdate(sql, updates);
+        for (int i = 0; i < counts.length; i++) {
+            // Driver có thể trả SUCCESS_NO_INFO (-2) thay vì số dòng
+            if (counts[i] == 0) {
+                Object[] params = updates.get(i);
+                result.error(lines.get(i), "Không tìm thấy sản phẩm id " + params[params.length - 1]);
+            } else {
+                result.updated++;
+            }
+        }
+        updates.clear();
+        lines.clear();
+    }
+
+    // === EXPORT ===
+
+    /**
+     * Ghi toàn bộ sản phẩm ra CSV. Chạy trong transaction read-only để driver
+     * Postgres dùng cursor (fetch size) thay vì đọc hết ResultSet vào bộ nhớ.
+     */
+    @Transactional(readOnly = true)
+    public long exportCsv(OutputStream output) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+        writer.write(String.join(",", COLUMNS));
+        writer.write("\r\n");
+
+        long[] rows = { 0 };
+        StringBuilder line = new StringBuilder(256);
+        jdbcTemplate.query(connection -> {
+            var statement = connection.prepareStatement(EXPORT_SQL);
+            statement.setFetchSize(FETCH_SIZE);
+            return statement;
+        }, rs -> {
+            line.setLength(0);
+            for (int i = 1; i <= COLUMNS.size(); i++) {
+                if (i > 1) {
+                    line.append(',');
+                }
+                CsvCodec.appendField(line, rs.getObject(i));
+            }
+            line.append("\r\n");
+            try {
+                writer.write(line.toString());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            rows[0]++;
+        });
+        writer.flush();
+        return rows[0];
+    }
+
+    private static final class Row {
+        Long id;
+        String name;
+        String description;
+        BigDecimal price;
+        Integer stockQuantity;
+        Long categoryId;
+        String imageUrl;
+        boolean archive;
+    }
+
+    private static final class ImportResult {
+        int totalRows;
+        int inserted;
+        int updated;
+        int failed;
+        final List<Map<String, Object>> errors = new ArrayList<>();
+
+        void error(int line, String message) {
+            failed++;
+            if (errors.size() < MAX_REPORTED_ERRORS) {
+                errors.add(Map.of("line", line, "message", message));
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.tathang.example304.security.services;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.tathang.example304.model.BlobReference;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Xóa hẳn các sản phẩm đã archive lâu và chưa từng xuất hiện trong order nào.
+ * Sản phẩm có lịch sử order được giữ lại (archive) để báo cáo không bị hỏng.
+ * Chạy theo lô nhỏ, mỗi lô một transaction ngắn để không khóa bảng lâu.
+ */
+@Slf4j
+@Service
+public class ProductPurgeService {
+
+    private static final int BATCH_SIZE = 500;
+
+    private static final String SELECT_PURGEABLE_SQL = """
+            SELECT p.id FROM products p
+            WHERE p.archive = true AND p.updated_at < ? AND p.id > ?
+              AND NOT EXISTS (SELECT 1 FROM order_items oi WHERE oi.product_id = p.id)
+            ORDER BY p.id
+            LIMIT ?
+            FOR UPDATE""";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final BlobReferenceService blobReferenceService;
+
+    @Value("${catalog.purge.enabled:false}")
+    private boolean enabled;
+
+    @Value("${catalog.purge.archived-days:90}")
+    private int archivedDays;
+
+    public ProductPurgeService(JdbcTemplate jdbcTemplate, TransactionTemplate transactionTemplate,
+            BlobReferenceService blobReferenceService) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+        this.blobReferenceService = blobReferenceService;
+    }
+
+    @Scheduled(cron = "${catalog.purge.cron:0 0 4 * * *}")
+    public void scheduledPurge() {
+        if (enabled) {
+            purgeArchived();
+        }
+    }
+
+    // Kết quả một lô: số dòng đã khóa, id lớn nhất đã khóa (lô sau bắt đầu từ đó), số dòng đã xóa
+    private record Batch(int locked, long lastId, int purged) {
+    }
+
+    public int purgeArchived() {
+        Timestamp cutoff = Timestamp.valueOf(LocalDateTime.now().minusDays(archivedDays));
+        int total = 0;
+        long afterId = 0;
+        while (true) {
+            long from = afterId;
+            Batch batch = transactionTemplate.execute(status -> purgeBatch(cutoff, from));
+            if (batch == null) {
+                break;
+            }
+            total += batch.purged();
+            // Chỉ dừng khi hết ứng viên; lô bị kiểm tra lại loại bớt (hay hết) vẫn đi tiếp
+            if (batch.locked() < BATCH_SIZE) {
+                break;
+            }
+            afterId = batch.lastId();
+        }
+        if (total > 0) {
+            log.info("🗑️ Purged {} archived products (archived > {} days, no orders)", total, archivedDays);
+        }
+        return total;
+    }
+
+    private Batch purgeBatch(Timestamp cutoff, long afterId) {
+        // Khóa các dòng ứng viên đến hết lô: restore (UPDATE) hay thêm order_item (khóa khóa ngoại)
+        // phải chờ, nên sau bước này trạng thái của chúng không đổi được nữa
+        List<Long> locked = jdbcTemplate.queryForList(SELECT_PURGEABLE_SQL, Long.class, cutoff, afterId, BATCH_SIZE);
+        if (locked.isEmpty()) {
+            return new Batch(0, afterId, 0);
+        }
+        long lastId = locked.get(locked.size() - 1);
+        // Kiểm tra lại bằng câu lệnh mới (thấy mọi thay đổi đã commit trước lúc khóa):
+        // chỉ những id này mới bị xóa, kể cả liên kết khuyến mãi
+        List<Long> ids = jdbcTemplate.queryForList("SELECT p.id FROM products p WHERE p.archive = true AND p.id IN ("
+                + placeholders(locked.size()) + ")"
+                + " AND NOT EXISTS (SELECT 1 FROM order_items oi WHERE oi.product_id = p.id) ORDER BY p.id",
+                Long.class, locked.toArray());
+        if (ids.isEmpty()) {
+            return new Batch(locked.size(), lastId, 0);
+        }
+        String placeholders = placeholders(ids.size());
+        Object[] args = ids.toArray();
+        jdbcTemplate.update("DELETE FROM promotion_products WHERE product_id IN (" + placeholders + ")", args);
+        jdbcTemplate.update("DELETE FROM catalog_view WHERE product_id IN (" + placeholders + ")", args);
+        int deleted = jdbcTemplate.update("DELETE FROM products WHERE id IN (" + placeholders + ")", args);
+        blobReferenceService.releaseAll(BlobReference.OwnerType.PRODUCT, ids);
+        return new Batch(locked.size(), lastId, deleted);
+    }
+
+    private static String placeholders(int count) {
+        return String.join(",", Collections.nCopies(count, "?"));
+    }
+}
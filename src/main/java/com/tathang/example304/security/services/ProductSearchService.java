@@ -0,0 +1,299 @@
+package com.tathang.example304.security.services;
+
+import org.springframework.stereotype.Service;
+
+import com.tathang.example304.model.Product;
+import com.tathang.example304.payload.response.ProductSearchHit;
+import com.tathang.example304.repository.ProductRepository;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Inverted index trong bộ nhớ trên tên, mô tả và tên danh mục của sản phẩm
+ * (chưa archive). Cập nhật từng sản phẩm sau mỗi lần ghi, không query DB khi tìm.
+ */
+@Slf4j
+@Service
+public class ProductSearchService {
+
+    private static final int NAME_WEIGHT = 3;
+    private static final int CATEGORY_WEIGHT = 2;
+    private static final int DESCRIPTION_WEIGHT = 1;
+    // Token cuối của query được khớp theo tiền tố (đang gõ dở) nhưng điểm thấp hơn
+    private static final double PREFIX_FACTOR = 0.5;
+
+    private final ProductRepository productRepository;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // token -> (productId -> trọng số)
+    private final NavigableMap<String, Map<Long, Integer>> postings = new TreeMap<>();
+    private final Map<Long, Document> documents = new HashMap<>();
+    private volatile boolean built;
+    // Cập nhật đến trong lúc rebuild đang chạy, áp lại sau khi build xong (xem apply)
+    private final List<Runnable> pendingUpdates = new ArrayList<>();
+    private boolean building;
+
+    public ProductSearchService(ProductRepository productRepository) {
+        this.productRepository = productRepository;
+    }
+
+    // === SEARCH ===
+    public List<ProductSearchHit> search(String query, int limit) {
+        List<String> tokens = TextFolding.tokenize(query);
+        if (tokens.isEmpty()) {
+            return List.of();
+        }
+        ensureBuilt();
+
+        lock.readLock().lock();
+        try {
+            Map<Long, Double> scores = null;
+            for (int i = 0; i < tokens.size(); i++) {
+                boolean last = i == tokens.size() - 1;
+                Map<Long, Double> tokenScores = scoreToken(tokens.get(i), last);
+                // AND: sản phẩm phải khớp mọi token
+                if (scores == null) {
+                    scores = tokenScores;
+                } else {
+                    scores.keySet().retainAll(tokenScores.keySet());
+                    for (Map.Entry<Long, Double> e : scores.entrySet()) {
+                        e.setValue(e.getValue() + tokenScores.get(e.getKey()));
+                    }
+                }
+                if (scores.isEmpty()) {
+                    return List.of();
+                }
+            }
+
+            List<ProductSearchHit> hits = new ArrayList<>(scores.size());
+            for (Map.Entry<Long, Double> e : scores.entrySet()) {
+                Document doc = documents.get(e.getKey());
+                hits.add(new ProductSearchHit(doc.id, doc.name, doc.price, doc.imageUrl,
+                        doc.categoryId, doc.categoryName, e.getValue()));
+            }
+            hits.sort(Comparator.comparingDouble(ProductSearchHit::getScore).reversed()
+                    .thenComparing(ProductSearchHit::getName, Comparator.nullsLast(String::compareTo)));
+            return hits.size() > limit ? new ArrayList<>(hits.subList(0, limit)) : hits;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private Map<Long, Double> scoreToken(String token, boolean allowPrefix) {
+        Map<Long, Double> result = new HashMap<>();
+        Map<Long, Integer> exact = postings.get(token);
+        if (exact != null) {
+            addScores(result, exact, 1.0);
+        }
+        if (allowPrefix) {
+            for (Map.Entry<String, Map<Long, Integer>> e : postings
+                    .subMap(token, false, token + Character.MAX_VALUE, false).entrySet()) {
+                addScores(result, e.getValue(), PREFIX_FACTOR);
+            }
+        }
+        return result;
+    }
+
+    private void addScores(Map<Long, Double> result, Map<Long, Integer> posting, double factor) {
+        // idf: token càng hiếm càng có giá trị
+        double idf = Math.log(1.0 + (double) documents.size() / posting.size());
+        for (Map.Entry<Long, Integer> p : posting.entrySet()) {
+            result.merge(p.getKey(), p.getValue() * idf * factor, Math::max);
+        }
+    }
+
+    // === INCREMENTAL UPDATES ===
+    public void indexProduct(Product product) {
+        AfterCommit.run(() -> apply(() -> {
+            lock.writeLock().lock();
+            try {
+                upsert(product);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }));
+    }
+
+    public void removeProduct(Long productId) {
+        AfterCommit.run(() -> apply(() -> {
+            lock.writeLock().lock();
+            try {
+                remove(productId);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }));
+    }
+
+    // Tên danh mục nằm trong index nên đổi danh mục phải index lại các sản phẩm của nó
+    public void reindexCategory(Long categoryId) {
+        AfterCommit.run(() -> apply(() -> {
+            List<Product> products = productRepository.findByCategoryId(categoryId);
+            lock.writeLock().lock();
+            try {
+                documents.values().removeIf(doc -> {
+                    if (categoryId.equals(doc.categoryId)) {
+                        removePostings(doc);
+                        return true;
+                    }
+                    return false;
+                });
+                products.forEach(this::upsert);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }));
+    }
+
+    /**
+     * Cập nhật đã commit. Đang build thì xếp hàng: lần đọc DB của build có thể bắt đầu trước commit
+     * này, nên build xong phải chạy lại theo thứ tự. Chưa từng build thì bỏ qua, lần build đầu
+     * sẽ đọc được trạng thái đã commit.
+     */
+    private void apply(Runnable update) {
+        synchronized (pendingUpdates) {
+            if (building) {
+                pendingUpdates.add(update);
+                return;
+            }
+        }
+        if (built) {
+            update.run();
+        }
+    }
+
+    // Đọc DB ngoài khóa, tìm kiếm vẫn chạy trên index cũ trong lúc đọc
+    public synchronized void rebuild() {
+        synchronized (pendingUpdates) {
+            building = true;
+        }
+        try {
+            List<Product> products = productRepository.findByArchiveFalse();
+            lock.writeLock().lock();
+            try {
+                postings.clear();
+                documents.clear();
+                products.forEach(this::upsert);
+                built = true;
+                log.info("🔎 Product search index built: {} products, {} terms", documents.size(), postings.size());
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } finally {
+            // Build lỗi thì vẫn áp vào index cũ (nếu có), không bỏ mất cập nhật
+            drainPendingUpdates();
+        }
+    }
+
+    private void drainPendingUpdates() {
+        while (true) {
+            List<Runnable> batch;
+            synchronized (pendingUpdates) {
+                if (pendingUpdates.isEmpty()) {
+                    building = false;
+                    return;
+                }
+                batch = new ArrayList<>(pendingUpdates);
+                pendingUpdates.clear();
+            }
+            if (built) {
+                batch.forEach(Runnable::run);
+            }
+        }
+    }
+
+    private void ensureBuilt() {
+        if (!built) {
+            synchronized (this) {
+                if (!built) {
+                    rebuild();
+                }
+            }
+        }
+    }
+
+    private void upsert(Product product) {
+        remove(product.getId());
+        if (Boolean.TRUE.equals(product.getArchive())) {
+            return;
+        }
+
+        Map<String, Integer> terms = new HashMap<>();
+        addTerms(terms, product.getName(), NAME_WEIGHT);
+        addTerms(terms, product.getDescription(), DESCRIPTION_WEIGHT);
+        String categoryName = product.getCategory() != null ? product.getCategory().getName() : null;
+        addTerms(terms, categoryName, CATEGORY_WEIGHT);
+
+        Document doc = new Document(product.getId(), product.getName(), product.getPrice(), product.getImageUrl(),
+                product.getCategory() != null ? product.getCategory().getId() : null, categoryName, terms);
+        documents.put(doc.id, doc);
+        for (Map.Entry<String, Integer> term : terms.entrySet()) {
+            postings.computeIfAbsent(term.getKey(), k -> new HashMap<>()).put(doc.id, term.getValue());
+        }
+    }
+
+    private void addTerms(Map<String, Integer> terms, String text, int weight) {
+        for (String token : TextFolding.tokenize(text)) {
+            terms.merge(token, weight, Integer::sum);
+        }
+    }
+
+    private void remove(Long productId) {
+        Document old = documents.remove(productId);
+        if (old != null) {
+            removePostings(old);
+        }
+    }
+
+    private void removePostings(Document doc) {
+        for (String term : doc.terms.keySet()) {
+            Map<Long, Integer> posting = postings.get(term);
+            if (posting != null) {
+                posting.remove(doc.id);
+                if (posting.isEmpty()) {
+                    postings.remove(term);
+                }
+            }
+        }
+    }
+
+    public int getIndexedCount() {
+        lock.readLock().lock();
+        try {
+            return documents.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static final class Document {
+        final Long id;
+        final String name;
+        final BigDecimal price;
+        final String imageUrl;
+        final Long categoryId;
+        final String categoryName;
+        final Map<String, Integer> terms;
+
+        Document(Long id, String name, BigDecimal price, String imageUrl, Long categoryId,
+                String categoryName, Map<String, Integer> terms) {
+            this.id = id;
+            this.name = name;
+            this.price = price;
+            this.imageUrl = imageUrl;
+            this.categoryId = categoryId;
+            this.categoryName = categoryName;
+            this.terms = terms;
+        }
+    }
+}
@@ -1,32 +1,94 @@
 package com.tathang.example304.security.services;
 
+import org.springframework.data.domain.Sort;
+import org.springframework.data.jpa.domain.Specification;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
+import com.tathang.example304.dto.ProductSummary;
+import com.tathang.example304.model.BlobReference;
+import com.tathang.example304.model.CatalogChange;
+import com.tathang.example304.model.CatalogViewEntry;
 import com.tathang.example304.model.Category;
 import com.tathang.example304.model.Product;
+import com.tathang.example304.payload.request.ProductPatchRequest;
+import com.tathang.example304.payload.response.ProductPageResponse;
+import com.tathang.example304.repository.CatalogViewRepository;
 import com.tathang.example304.repository.CategoryRepository;
 import com.tathang.example304.repository.ProductRepository;
+import com.tathang.example304.repository.ProductSpecifications;
 
 import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 
 @Service
 public class ProductService {
 
+    private static final Set<String> SORT_FIELDS = Set.of("name", "price", "updatedAt");
+    private static final int MAX_PAGE_SIZE = 100;
+    private static final int MAX_BULK_PATCHES = 1000;
+
+    // Field null giữ nguyên giá trị cũ nhờ COALESCE, nên mọi dòng dùng chung một câu lệnh batch
+    private static final String BULK_PATCH_SQL = """
+            UPDATE products SET price = COALESCE(?, price), stock_quantity = COALESCE(?, stock_quantity),
+                archive = COALESCE(?, archive), updated_at = ?
+            WHERE id = ?""";
+    private static final int[] BULK_PATCH_TYPES = {
+            Types.NUMERIC, Types.INTEGER, Types.BOOLEAN, Types.TIMESTAMP, Types.BIGINT };
+
     private final ProductRepository productRepository;
     private final CategoryRepository categoryRepository;
     private final FileStorageService fileStorageService;
+    private final CatalogSnapshotService catalogSnapshotService;
+    private final ProductSearchService productSearchService;
+    private final ProductSuggestService productSuggestService;
+    private final CatalogChangeLogService catalogChangeLogService;
+    private final CatalogViewService catalogViewService;
+    private final CatalogViewRepository catalogViewRepository;
+    private final JdbcTemplate jdbcTemplate;
+    private final LowStockWatcher lowStockWatcher;
+    private final BlobReferenceService blobReferenceService;
 
     public ProductService(ProductRepository productRepository,
             CategoryRepository categoryRepository,
-            FileStorageService fileStorageService) {
+            FileStorageService fileStorageService,
+            CatalogSnapshotService catalogSnapshotService,
+            ProductSearchService productSearchService,
+            ProductSuggestService productSuggestService,
+            CatalogChangeLogService catalogChangeLogService,
+            CatalogViewService catalogViewService,
+            CatalogViewRepository catalogViewRepository,
+            JdbcTemplate jdbcTemplate,
+            LowStockWatcher lowStockWatcher,
+            BlobReferenceService blobReferenceService) {
         this.productRepository = productRepository;
         this.categoryRepository = categoryRepository;
         this.fileStorageService = fileStorageService;
+        this.catalogSnapshotService = catalogSnapshotService;
+        this.productSearchService = productSearchService;
+        this.productSuggestService = productSuggestService;
+        this.catalogChangeLogService = catalogChangeLogService;
+        this.catalogViewService = catalogViewService;
+        this.catalogViewRepository = catalogViewRepository;
+        this.jdbcTemplate = jdbcTemplate;
+        this.lowStockWatcher = lowStockWatcher;
+        this.blobReferenceService = blobReferenceService;
     }
 
     // === CREATE PRODUCT ===
+    @Transactional
     public Product createProduct(String name, String description, BigDecimal price,
             Long categoryId, Integer stockQuantity, String imageUrl) {
 
@@ -62,6 +124,13 @@ public class ProductService {
 
             System.out.println("💾 Saving product to database...");
             Product saved = productRepository.save(product);
+            blobReferenceService.track(BlobReference.OwnerType.PRODUCT, saved.getId(), imageUrl);
+            catalogViewService.refreshProducts(List.of(saved.getId()));
+            catalogSnapshotService.catalogChanged();
+            catalogChangeLogService.recordProduct(saved.getId(), CatalogChange.ChangeType.CREATED);
+            productSearchService.indexProduct(saved);
+            productSuggestService.indexProduct(saved);
+            lowStockWatcher.stockChanged(saved);
 
             System.out.println("🎉 Product saved successfully!");
             System.out.println("   Product ID: " + saved.getId());
@@ -78,6 +147,7 @@ public class ProductService {
     }
 
     // === UPDATE PRODUCT ===
+    @Transactional
     public Product updateProduct(Long id, String name, String description, BigDecimal price,
             Long categoryId, Integer stockQuantity, String imageUrl) {
         Product product = productRepository.findById(id)
@@ -94,20 +164,57 @@ public class ProductService {
             product.setImageUrl(imageUrl);
         }
 
-        return productRepository.save(product);
+        Product saved = productRepository.save(product);
+        if (imageUrl != null) {
+            blobReferenceService.track(BlobReference.OwnerType.PRODUCT, saved.getId(), imageUrl);
+        }
+        catalogViewService.refreshProducts(List.of(saved.getId()));
+        catalogSnapshotService.catalogChanged();
+        catalogChangeLogService.recordProduct(saved.getId(), CatalogChange.ChangeType.UPDATED);
+        productSearchService.indexProduct(saved);
+        productSuggestService.indexProduct(saved);
+        lowStockWatcher.stockChanged(saved);
+        return saved;
     }
 
-    // === DELETE PRODUCT (XÓA KHỎI DB + XÓA FILE ẢNH) ===
+    // === DELETE PRODUCT (ARCHIVE) ===
+    // Không xóa cứng: lịch sử order/báo cáo vẫn tham chiếu tới sản phẩm.
+    // Bản ghi archive cũ, không có order nào có thể được ProductPurgeService dọn sau.
+    @Transactional
     public boolean deleteProduct(Long id) {
         Optional<Product> productOpt = productRepository.findById(id);
-        if (productOpt.isPresent()) {
-            Product product = productOpt.get();
+        if (productOpt.isEmpty()) {
+            return false;
+        }
+        Product product = productOpt.get();
+        if (!Boolean.TRUE.equals(product.getArchive())) {
+            product.setArchive(true);
+            productRepository.save(product);
+            catalogViewService.refreshProducts(List.of(id));
+            catalogSnapshotService.catalogChanged();
+            catalogChangeLogService.recordProduct(id, CatalogChange.ChangeType.ARCHIVED);
+            productSearchService.removeProduct(id);
+            productSuggestService.removeProduct(id);
+            lowStockWatcher.stockChanged(product);
+        }
+        return true;
+    }
 
-            // Xóa sản phẩm khỏi database
-            productRepository.deleteById(id);
-            return true;
+    @Transactional
+    public Product restoreProduct(Long id) {
+        Product product = productRepository.findById(id)
+                .orElseThrow(() -> new RuntimeException("Product not found"));
+        if (Boolean.TRUE.equals(product.getArchive())) {
+            product.setArchive(false);
+            product = productRepository.save(product);
+            catalogViewService.refreshProducts(List.of(id));
+            catalogSnapshotService.catalogChanged();
+            catalogChangeLogService.recordProduct(id, CatalogChange.ChangeType.UPDATED);
+            productSearchService.indexProduct(product);
+            productSuggestService.indexProduct(product);
+            lowStockWatcher.stockChanged(product);
         }
-        return false;
+        return product;
     }
 
     // === GET ALL PRODUCTS ===
@@ -115,10 +222,137 @@ public class ProductService {
         return productRepository.findAll();
     }
 
+    // === KEYSET PAGINATION ===
+    public ProductPageResponse<Product> getProductPage(int size, String sort, String direction, Long categoryId,
+            Boolean archive, BigDecimal minPrice, BigDecimal maxPrice, String cursor) {
+        Keyset keyset = keyset(size, sort, direction, cursor);
+        Specification<Product> spec = Specification.allOf(
+                ProductSpecifications.inCategory(categoryId),
+                ProductSpecifications.archived(archive),
+                ProductSpecifications.priceBetween(minPrice, maxPrice),
+                ProductSpecifications.hasSortKey(sort),
+                ProductSpecifications.after("id", sort, keyset.ascending, keyset.lastValue, keyset.lastId));
+
+        // Lấy dư 1 dòng để biết còn trang sau hay không, không cần COUNT
+        List<Product> rows = productRepository.findBy(spec,
+                q -> q.sortBy(keyset.order("id")).limit(size + 1).all());
+
+        boolean hasMore = rows.size() > size;
+        List<Product> items = hasMore ? rows.subList(0, size) : rows;
+        String nextCursor = null;
+        if (hasMore) {
+            Product last = items.get(items.size() - 1);
+            nextCursor = encodeCursor(sort, keyset.ascending, last.getId(),
+                    sortValue(sort, last.getName(), last.getPrice(), last.getUpdatedAt()));
+        }
+        return new ProductPageResponse<>(items, items.size(), hasMore, nextCursor);
+    }
+
+    /**
+     * Trang sản phẩm phía khách, đọc từ catalog_view (một bảng, không JOIN, đã có giá sau
+     * khuyến mãi) với cùng keyset/cursor như trang admin. Chỉ sản phẩm đang hiện trên menu.
+     */
+    public ProductPageResponse<ProductSummary> getCatalogPage(int size, String sort, String direction,
+            Long categoryId, BigDecimal minPrice, BigDecimal maxPrice, String cursor) {
+        Keyset keyset = keyset(size, sort, direction, cursor);
+        Specification<CatalogViewEntry> spec = Specification.allOf(
+                ProductSpecifications.visible(),
+                ProductSpecifications.inViewCategory(categoryId),
+                ProductSpecifications.priceBetween(minPrice, maxPrice),
+                ProductSpecifications.hasSortKey(sort),
+                ProductSpecifications.after("productId", sort, keyset.ascending, keyset.lastValue, keyset.lastId));
+
+        List<CatalogViewEntry> rows = catalogViewRepository.findBy(spec,
+                q -> q.sortBy(keyset.order("productId")).limit(size + 1).all());
+
+        boolean hasMore = rows.size() > size;
+        List<CatalogViewEntry> page = hasMore ? rows.subList(0, size) : rows;
+        String nextCursor = null;
+        if (hasMore) {
+            CatalogViewEntry last = page.get(page.size() - 1);
+            nextCursor = encodeCursor(sort, keyset.ascending, last.getProductId(),
+                    sortValue(sort, last.getName(), last.getPrice(), last.getUpdatedAt()));
+        }
+        List<ProductSummary> items = page.stream()
+                .map(v -> new ProductSummary(v.getProductId(), v.getName(), v.getDescription(), v.getPrice(),
+                        v.getImageUrl(), v.getStockQuantity(), v.getCategoryId(), v.getCategoryName(),
+                        v.getUpdatedAt(), v.getEffectivePrice(), v.getPromotionId(), v.isAvailable(),
+                        v.getImageVariants()))
+                .toList();
+        return new ProductPageResponse<>(items, items.size(), hasMore, nextCursor);
+    }
+
+    // Vị trí bắt đầu trang: cột/chiều sắp xếp và cặp (giá trị, id) của dòng cuối trang trước
+    private record Keyset(String sort, boolean ascending, Object lastValue, Long lastId) {
+
+        Sort order(String idField) {
+            Sort.Direction dir = ascending ? Sort.Direction.ASC : Sort.Direction.DESC;
+            return Sort.by(dir, sort).and(Sort.by(dir, idField));
+        }
+    }
+
+    private Keyset keyset(int size, String sort, String direction, String cursor) {
+        if (size < 1 || size > MAX_PAGE_SIZE) {
+            throw new IllegalArgumentException("size phải trong khoảng 1-" + MAX_PAGE_SIZE);
+        }
+        if (!SORT_FIELDS.contains(sort)) {
+            throw new IllegalArgumentException("Không hỗ trợ sắp xếp theo: " + sort);
+        }
+        boolean ascending = !"desc".equalsIgnoreCase(direction);
+        if (cursor == null || cursor.isBlank()) {
+            return new Keyset(sort, ascending, null, null);
+        }
+        String[] parts = decodeCursor(cursor);
+        if (!parts[0].equals(sort) || !parts[1].equals(ascending ? "asc" : "desc")) {
+            throw new IllegalArgumentException("Cursor không khớp với kiểu sắp xếp hiện tại");
+        }
+        return new Keyset(sort, ascending, parseSortValue(sort, parts[3]), Long.valueOf(parts[2]));
+    }
+
+    private static Object sortValue(String sort, String name, BigDecimal price, LocalDateTime updatedAt) {
+        return switch (sort) {
+            case "name" -> name;
+            case "price" -> price.toPlainString();
+            default -> updatedAt;
+        };
+    }
+
+    private String encodeCursor(String sort, boolean ascending, Long lastId, Object value) {
+        String raw = sort + ":" + (ascending ? "asc" : "desc") + ":" + lastId + ":" + value;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String[] decodeCursor(String cursor) {
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            // Giá trị nằm cuối vì tên sản phẩm có thể chứa dấu ':'
+            String[] parts = raw.split(":", 4);
+            if (parts.length != 4) {
+                throw new IllegalArgumentException("Cursor không hợp lệ");
+            }
+            return parts;
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Cursor không hợp lệ");
+        }
+    }
+
+    private Object parseSortValue(String sort, String value) {
+        return switch (sort) {
+            case "name" -> value;
+            case "price" -> new BigDecimal(value);
+            default -> LocalDateTime.parse(value);
+        };
+    }
+
     public Product getProductById(Long id) {
         return productRepository.findById(id).orElse(null);
     }
 
+    // Chi tiết sản phẩm phía khách, từ catalog_view
+    public ProductSummary getProductSummary(Long id) {
+        return catalogViewRepository.findSummaryById(id).orElse(null);
+    }
+
     public List<Product> getAvailableProducts() {
         return productRepository.findByArchiveFalse();
     }
@@ -127,6 +361,122 @@ public class ProductService {
         return productRepository.findByCategoryId(categoryId);
     }
 
+    // === BULK PATCH ===
+
+    /**
+     * Cập nhật giá / tồn kho / archive cho nhiều sản phẩm trong một transaction bằng
+     * một JDBC batch. Dòng không hợp lệ hoặc không tồn tại được báo lại, không làm hỏng cả lô.
+     * Cache catalog chỉ bị làm mới một lần sau commit.
+     */
+    @Transactional
+    public Map<String, Object> bulkPatch(List<ProductPatchRequest> patches) {
+        if (patches == null || patches.isEmpty()) {
+            throw new IllegalArgumentException("Danh sách cập nhật trống");
+        }
+        if (patches.size() > MAX_BULK_PATCHES) {
+            throw new IllegalArgumentException("Tối đa " + MAX_BULK_PATCHES + " sản phẩm mỗi lần");
+        }
+        long started = System.nanoTime();
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+
+        List<Map<String, Object>> results = new ArrayList<>(patches.size());
+        List<Object[]> batch = new ArrayList<>(patches.size());
+        List<Map<String, Object>> batchResults = new ArrayList<>(patches.size());
+        Set<Long> seen = new HashSet<>();
+        boolean searchAffected = false;
+        boolean suggestAffected = false;
+        boolean stockAffected = false;
+
+        for (ProductPatchRequest patch : patches) {
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("id", patch.getId());
+            results.add(result);
+
+            String error = validatePatch(patch, seen);
+            if (error != null) {
+                result.put("status", "INVALID");
+                result.put("message", error);
+                continue;
+            }
+            batch.add(new Object[] { patch.getPrice(), patch.getStockQuantity(), patch.getArchive(), now,
+                    patch.getId() });
+            batchResults.add(result);
+            searchAffected |= patch.getPrice() != null || patch.getArchive() != null;
+            suggestAffected |= patch.getArchive() != null;
+            stockAffected |= patch.getStockQuantity() != null || patch.getArchive() != null;
+        }
+
+        List<Long> updatedIds = new ArrayList<>(batch.size());
+        if (!batch.isEmpty()) {
+            int[] counts = jdbcTemplate.batchUpdate(BULK_PATCH_SQL, batch, BULK_PATCH_TYPES);
+            for (int i = 0; i < counts.length; i++) {
+                Map<String, Object> result = batchResults.get(i);
+                if (counts[i] == 0) {
+                    result.put("status", "NOT_FOUND");
+                } else {
+                    result.put("status", "UPDATED");
+                    updatedIds.add((Long) result.get("id"));
+                }
+            }
+        }
+
+        if (!updatedIds.isEmpty()) {
+            catalogChangeLogService.recordProductsUpdated(updatedIds);
+            catalogViewService.refreshProducts(updatedIds);
+            catalogSnapshotService.catalogChanged();
+            if (stockAffected) {
+                lowStockWatcher.reset();
+            }
+            boolean rebuildSearch = searchAffected;
+            boolean rebuildSuggest = suggestAffected;
+            AfterCommit.run(() -> {
+                if (rebuildSearch) {
+                    productSearchService.rebuild();
+                }
+                if (rebuildSuggest) {
+                    productSuggestService.rebuild();
+                }
+            });
+        }
+
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("total", patches.size());
+        response.put("updated", updatedIds.size());
+        response.put("failed", patches.size() - updatedIds.size());
+        response.put("results", results);
+        response.put("tookMillis", (System.nanoTime() - started) / 1_000_000);
+        return response;
+    }
+
+    private String validatePatch(ProductPatchRequest patch, Set<Long> seen) {
+        if (patch.getId() == null) {
+            return "Thiếu id";
+        }
+        if (!seen.add(patch.getId())) {
+            return "Trùng id trong cùng một lần cập nhật";
+        }
+        if (patch.getPrice() == null && patch.getStockQuantity() == null && patch.getArchive() == null) {
+            return "Không có field nào để cập nhật";
+        }
+        if (patch.getPrice() != null && patch.getPrice().signum() < 0) {
+            return "price không được âm";
+        }
+        if (patch.getStockQuantity() != null && patch.getStockQuantity() < 0) {
+            return "stockQuantity không được âm";
+        }
+        return null;
+    }
+
+    // === LEAN PROJECTIONS ===
+    public List<ProductSummary> getProductSummaries() {
+        // Sản phẩm đã archive hoặc thuộc danh mục đã tắt không hiện với khách
+        return catalogViewRepository.findVisibleSummaries();
+    }
+
+    public List<ProductSummary> getProductSummariesByCategory(Long categoryId) {
+        return catalogViewRepository.findVisibleSummariesByCategoryId(categoryId);
+    }
+
     public List<Product> searchProducts(String keyword) {
         return productRepository.findByNameContainingIgnoreCase(keyword);
     }
@@ -0,0 +1,302 @@
+package com.tathang.example304.security.services;
+
+import org.springframework.stereotype.Service;
+
+import com.tathang.example304.model.Category;
+import com.tathang.example304.model.Order;
+import com.tathang.example304.model.Product;
+import com.tathang.example304.payload.response.Suggestion;
+import com.tathang.example304.repository.CategoryRepository;
+import com.tathang.example304.repository.OrderItemRepository;
+import com.tathang.example304.repository.ProductRepository;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Gợi ý theo tiền tố (type-ahead) trên tên sản phẩm và danh mục đã bỏ dấu.
+ * Mỗi node của trie giữ sẵn top-K theo độ phổ biến nên một lần tra chỉ tốn
+ * O(độ dài tiền tố), không đụng tới DB.
+ */
+@Slf4j
+@Service
+public class ProductSuggestService {
+
+    private static final int TOP_K = 10;
+    private static final String PRODUCT = "PRODUCT";
+    private static final String CATEGORY = "CATEGORY";
+    // Order đã thanh toán; giỏ hàng chưa trả tiền hay đã hủy không tính vào độ phổ biến
+    private static final List<Order.OrderStatus> PAID_STATUSES = List.of(
+            Order.OrderStatus.PAID, Order.OrderStatus.DELIVERING, Order.OrderStatus.COMPLETED);
+
+    private static final Comparator<Suggestion> RANKING = Comparator
+            .comparingLong(Suggestion::getPopularity).reversed()
+            .thenComparing(Suggestion::getText);
+
+    private final ProductRepository productRepository;
+    private final CategoryRepository categoryRepository;
+    private final OrderItemRepository orderItemRepository;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Node root = new Node();
+    // "PRODUCT:1" -> suggestion
+    private final Map<String, Suggestion> entries = new HashMap<>();
+    private final Map<Long, Long> productCategory = new HashMap<>();
+    private volatile boolean built;
+
+    public ProductSuggestService(ProductRepository productRepository,
+            CategoryRepository categoryRepository,
+            OrderItemRepository orderItemRepository) {
+        this.productRepository = productRepository;
+        this.categoryRepository = categoryRepository;
+        this.orderItemRepository = orderItemRepository;
+    }
+
+    // === SUGGEST ===
+    public List<Suggestion> suggest(String prefix, int limit) {
+        String key = TextFolding.fold(prefix).trim().replaceAll("\\s+", " ");
+        if (key.isEmpty()) {
+            return List.of();
+        }
+        ensureBuilt();
+
+        lock.readLock().lock();
+        try {
+            Node node = root;
+            for (int i = 0; i < key.length() && node != null; i++) {
+                node = node.children.get(key.charAt(i));
+            }
+            if (node == null) {
+                return List.of();
+            }
+            List<Suggestion> top = node.top;
+            return new ArrayList<>(top.subList(0, Math.min(limit, top.size())));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // === INCREMENTAL UPDATES ===
+    public void indexProduct(Product product) {
+        AfterCommit.run(() -> write(() -> {
+            String id = PRODUCT + ":" + product.getId();
+            Suggestion old = entries.get(id);
+            remove(id);
+            productCategory.remove(product.getId());
+            if (Boolean.TRUE.equals(product.getArchive())) {
+                return;
+            }
+            if (product.getCategory() != null) {
+                productCategory.put(product.getId(), product.getCategory().getId());
+            }
+            insert(id, new Suggestion(PRODUCT, product.getId(), product.getName(),
+                    old != null ? old.getPopularity() : 0));
+        }));
+    }
+
+    public void removeProduct(Long productId) {
+        AfterCommit.run(() -> write(() -> {
+            remove(PRODUCT + ":" + productId);
+            productCategory.remove(productId);
+        }));
+    }
+
+    public void indexCategory(Category category) {
+        AfterCommit.run(() -> write(() -> {
+            String id = CATEGORY + ":" + category.getId();
+            Suggestion old = entries.get(id);
+            remove(id);
+            if (Boolean.FALSE.equals(category.getIsActive())) {
+                return;
+            }
+            insert(id, new Suggestion(CATEGORY, category.getId(), category.getName(),
+                    old != null ? old.getPopularity() : 0));
+        }));
+    }
+
+    public void removeCategory(Long categoryId) {
+        AfterCommit.run(() -> write(() -> remove(CATEGORY + ":" + categoryId)));
+    }
+
+    // Gọi khi order được thanh toán (StockReservationService.convert), tăng độ phổ biến của sản phẩm và danh mục
+    public void recordSale(Long productId, int quantity) {
+        AfterCommit.run(() -> write(() -> {
+            bumpPopularity(PRODUCT + ":" + productId, quantity);
+            Long categoryId = productCategory.get(productId);
+            if (categoryId != null) {
+                bumpPopularity(CATEGORY + ":" + categoryId, quantity);
+            }
+        }));
+    }
+
+    public void rebuild() {
+        Map<Long, Long> sold = new HashMap<>();
+        for (Object[] row : orderItemRepository.sumQuantityGroupByProduct(PAID_STATUSES)) {
+            sold.put((Long) row[0], ((Number) row[1]).longValue());
+        }
+        List<Product> products = productRepository.findByArchiveFalse();
+        List<Category> categories = categoryRepository.findAll();
+
+        lock.writeLock().lock();
+        try {
+            root.children.clear();
+            root.terminals = null;
+            root.top = List.of();
+            entries.clear();
+            productCategory.clear();
+
+            Map<Long, Long> categorySold = new HashMap<>();
+            for (Product product : products) {
+                long popularity = sold.getOrDefault(product.getId(), 0L);
+                if (product.getCategory() != null) {
+                    productCategory.put(product.getId(), product.getCategory().getId());
+                    categorySold.merge(product.getCategory().getId(), popularity, Long::sum);
+                }
+                insert(PRODUCT + ":" + product.getId(),
+                        new Suggestion(PRODUCT, product.getId(), product.getName(), popularity));
+            }
+            for (Category category : categories) {
+                if (Boolean.FALSE.equals(category.getIsActive())) {
+                    continue;
+                }
+                insert(CATEGORY + ":" + category.getId(), new Suggestion(CATEGORY, category.getId(),
+                        category.getName(), categorySold.getOrDefault(category.getId(), 0L)));
+            }
+            built = true;
+            log.info("🔤 Suggest trie built: {} entries", entries.size());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void ensureBuilt() {
+        if (!built) {
+            synchronized (this) {
+                if (!built) {
+                    rebuild();
+                }
+            }
+        }
+    }
+
+    private void write(Runnable action) {
+        if (!built) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            action.run();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void bumpPopularity(String id, long delta) {
+        Suggestion old = entries.get(id);
+        if (old == null) {
+            return;
+        }
+        remove(id);
+        insert(id, new Suggestion(old.getType(), old.getId(), old.getText(), old.getPopularity() + delta));
+    }
+
+    // === TRIE ===
+
+    // Khóa gồm cả tên đầy đủ và từng hậu tố bắt đầu từ một từ,
+    // để gõ "sua" vẫn ra "Cà phê sữa đá"
+    private Set<String> keysFor(String text) {
+        List<String> tokens = TextFolding.tokenize(text);
+        Set<String> keys = new LinkedHashSet<>();
+        for (int i = 0; i < tokens.size(); i++) {
+            keys.add(String.join(" ", tokens.subList(i, tokens.size())));
+        }
+        return keys;
+    }
+
+    private void insert(String id, Suggestion suggestion) {
+        entries.put(id, suggestion);
+        for (String key : keysFor(suggestion.getText())) {
+            List<Node> path = new ArrayList<>(key.length() + 1);
+            Node node = root;
+            path.add(node);
+            for (int i = 0; i < key.length(); i++) {
+                node = node.children.computeIfAbsent(key.charAt(i), c -> new Node());
+                path.add(node);
+            }
+            if (node.terminals == null) {
+                node.terminals = new HashMap<>(2);
+            }
+            node.terminals.put(id, suggestion);
+            recomputePath(path);
+        }
+    }
+
+    private void remove(String id) {
+        Suggestion old = entries.remove(id);
+        if (old == null) {
+            return;
+        }
+        for (String key : keysFor(old.getText())) {
+            List<Node> path = new ArrayList<>(key.length() + 1);
+            Node node = root;
+            path.add(node);
+            for (int i = 0; i < key.length() && node != null; i++) {
+                node = node.children.get(key.charAt(i));
+                path.add(node);
+            }
+            if (node == null || node.terminals == null) {
+                continue;
+            }
+            node.terminals.remove(id);
+            if (node.terminals.isEmpty()) {
+                node.terminals = null;
+            }
+            // Dọn các node rỗng từ lá lên
+            for (int i = key.length(); i > 0; i--) {
+                Node child = path.get(i);
+                if (child.children.isEmpty() && child.terminals == null) {
+                    path.get(i - 1).children.remove(key.charAt(i - 1));
+                    path.remove(i);
+                } else {
+                    break;
+                }
+            }
+            recomputePath(path);
+        }
+    }
+
+    private void recomputePath(List<Node> path) {
+        for (int i = path.size() - 1; i >= 0; i--) {
+            path.get(i).recomputeTop();
+        }
+    }
+
+    private static final class Node {
+        final Map<Character, Node> children = new HashMap<>(4);
+        Map<String, Suggestion> terminals;
+        List<Suggestion> top = List.of();
+
+        void recomputeTop() {
+            // Một entry có thể tới từ nhiều nhánh (nhiều hậu tố), gộp theo type + id
+            Map<String, Suggestion> candidates = new LinkedHashMap<>();
+            if (terminals != null) {
+                terminals.values().forEach(s -> candidates.put(s.getType() + ":" + s.getId(), s));
+            }
+            for (Node child : children.values()) {
+                child.top.forEach(s -> candidates.put(s.getType() + ":" + s.getId(), s));
+            }
+            List<Suggestion> sorted = new ArrayList<>(candidates.values());
+            sorted.sort(RANKING);
+            top = sorted.size() > TOP_K ? List.copyOf(sorted.subList(0, TOP_K)) : List.copyOf(sorted);
+        }
+    }
+}
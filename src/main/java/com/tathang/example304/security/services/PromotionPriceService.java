@@ -0,0 +1,219 @@
+package com.tathang.example304.security.services;
+
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.tathang.example304.model.Promotion;
+import com.tathang.example304.repository.PromotionProductRepository;
+import com.tathang.example304.repository.PromotionRepository;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Bảng giảm giá theo sản phẩm, tính sẵn một lần (2 query) từ các khuyến mãi đang chạy.
+ * Chỉ tính lại khi khuyến mãi thay đổi hoặc khi qua ngày bắt đầu/kết thúc của một khuyến mãi.
+ * Giá sau khuyến mãi được ghi sẵn vào catalog_view, không áp lúc đọc.
+ */
+@Slf4j
+@Service
+public class PromotionPriceService {
+
+    private static final BigDecimal HUNDRED = BigDecimal.valueOf(100);
+    // Đánh dấu transaction đang sửa khuyến mãi
+    private static final Object CHANGED_RESOURCE = new Object();
+
+    private final PromotionRepository promotionRepository;
+    private final PromotionProductRepository promotionProductRepository;
+
+    private final AtomicReference<PriceTable> current = new AtomicReference<>();
+    // Bảng mà giá trong catalog_view đang phản ánh (đã commit); refreshIfExpired so với bảng này,
+    // không so với current, vì current có thể đã được thay sớm bởi một lần đọc hay một lần sửa khuyến mãi
+    private final AtomicReference<PriceTable> published = new AtomicReference<>();
+    private final AtomicLong recomputeCount = new AtomicLong();
+
+    public PromotionPriceService(PromotionRepository promotionRepository,
+            PromotionProductRepository promotionProductRepository) {
+        this.promotionRepository = promotionRepository;
+        this.promotionProductRepository = promotionProductRepository;
+    }
+
+    // === APPLY ===
+
+    /**
+     * Bảng giá đang có hiệu lực. Trong transaction vừa sửa khuyến mãi thì tính trực tiếp từ DB
+     * (thấy cả thay đổi chưa commit) và không lưu lại; nơi khác dùng bảng đã commit.
+     */
+    public PriceTable currentTable() {
+        if (TransactionSynchronizationManager.hasResource(CHANGED_RESOURCE)) {
+            return compute();
+        }
+        PriceTable table = current.get();
+        if (table != null && !table.isExpired(LocalDate.now())) {
+            return table;
+        }
+        PriceTable next = compute();
+        // Không ghi đè nếu trong lúc tính đã có bảng mới hơn (commit khuyến mãi, refreshIfExpired)
+        current.compareAndSet(table, next);
+        return next;
+    }
+
+    // === INVALIDATION ===
+
+    /**
+     * Gọi khi khuyến mãi hoặc danh sách sản phẩm của nó thay đổi. Bảng cũ vẫn phục vụ các
+     * request khác cho đến khi commit mới được thay; rollback thì giữ nguyên bảng cũ.
+     */
+    public void promotionsChanged() {
+        markChanged();
+        AfterCommit.run(() -> {
+            PriceTable table = compute();
+            current.set(table);
+            // Đã qua mốc ngày mà refreshIfExpired chưa chạy: giữ bảng cũ để nó còn thấy chênh lệch
+            LocalDate today = LocalDate.now();
+            published.updateAndGet(old -> old == null || !old.isExpired(today) ? table : old);
+        });
+    }
+
+    // currentTable() trong transaction này tính thẳng từ DB, không đọc/ghi bảng dùng chung
+    private void markChanged() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()
+                && !TransactionSynchronizationManager.hasResource(CHANGED_RESOURCE)) {
+            TransactionSynchronizationManager.bindResource(CHANGED_RESOURCE, Boolean.TRUE);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    TransactionSynchronizationManager.unbindResourceIfPossible(CHANGED_RESOURCE);
+                }
+            });
+        }
+    }
+
+    /**
+     * Nếu đã qua ngày bắt đầu/kết thúc của một khuyến mãi thì tính lại bảng.
+     * Trả về id các sản phẩm có giá sau khuyến mãi thay đổi (rỗng nếu không có gì đổi).
+     * Bảng mới chỉ được thay sau khi transaction ghi catalog_view commit: lỗi/rollback thì bảng
+     * cũ (đã hết hạn) giữ nguyên và lần chạy sau thử lại.
+     */
+    public synchronized Set<Long> refreshIfExpired() {
+        PriceTable old = published.get();
+        if (old == null) {
+            // Chưa có mốc để so sánh: giá trong catalog_view được tính khi ghi nên vẫn đúng
+            published.compareAndSet(null, compute());
+            return Set.of();
+        }
+        if (!old.isExpired(LocalDate.now())) {
+            return Set.of();
+        }
+        PriceTable next = compute();
+        markChanged();
+        AfterCommit.run(() -> published.compareAndSet(old, next));
+
+        Set<Long> changed = new HashSet<>(old.discounts.keySet());
+        changed.addAll(next.discounts.keySet());
+        changed.removeIf(id -> Objects.equals(old.discounts.get(id), next.discounts.get(id)));
+        return changed;
+    }
+
+    private PriceTable compute() {
+        LocalDate today = LocalDate.now();
+        List<Promotion> active = promotionRepository.findActivePromotions(today);
+
+        Map<Long, Discount> byPromotion = new HashMap<>();
+        // Hết hạn khi khuyến mãi sớm nhất kết thúc hoặc khuyến mãi kế tiếp bắt đầu
+        LocalDate validUntil = promotionRepository.findNextStartDate(today);
+        for (Promotion promotion : active) {
+            LocalDate endExclusive = promotion.getEndDate().plusDays(1);
+            if (validUntil == null || endExclusive.isBefore(validUntil)) {
+                validUntil = endExclusive;
+            }
+            if (promotion.getDiscountPercentage() != null || promotion.getDiscountAmount() != null) {
+                byPromotion.put(promotion.getId(), new Discount(promotion.getId(),
+                        promotion.getDiscountPercentage(), promotion.getDiscountAmount()));
+            }
+        }
+
+        Map<Long, List<Discount>> discounts = new HashMap<>();
+        if (!byPromotion.isEmpty()) {
+            for (Object[] row : promotionProductRepository.findProductIdsByPromotionIdIn(byPromotion.keySet())) {
+                discounts.computeIfAbsent((Long) row[1], id -> new ArrayList<>(1))
+                        .add(byPromotion.get((Long) row[0]));
+            }
+        }
+
+        recomputeCount.incrementAndGet();
+        log.info("🏷️ Promotion prices computed: {} promotions, {} products, valid until {}",
+                byPromotion.size(), discounts.size(), validUntil);
+        return new PriceTable(discounts, today, validUntil);
+    }
+
+    public long getRecomputeCount() {
+        return recomputeCount.get();
+    }
+
+    public LocalDate getValidUntil() {
+        PriceTable table = current.get();
+        return table != null ? table.validUntil : null;
+    }
+
+    private record Discount(Long promotionId, BigDecimal percentage, BigDecimal amount) {
+
+        BigDecimal applyTo(BigDecimal price) {
+            BigDecimal result = percentage != null
+                    ? price.subtract(price.multiply(percentage).divide(HUNDRED, price.scale(), RoundingMode.HALF_UP))
+                    : price.subtract(amount);
+            return result.signum() < 0 ? BigDecimal.ZERO.setScale(price.scale()) : result;
+        }
+    }
+
+    public record Applied(BigDecimal price, Long promotionId) {
+    }
+
+    public static final class PriceTable {
+        final Map<Long, List<Discount>> discounts;
+        final LocalDate computedOn;
+        // Ngày (exclusive) bảng hết hiệu lực, null nếu không có mốc nào sắp tới
+        final LocalDate validUntil;
+
+        PriceTable(Map<Long, List<Discount>> discounts, LocalDate computedOn, LocalDate validUntil) {
+            this.discounts = discounts;
+            this.computedOn = computedOn;
+            this.validUntil = validUntil;
+        }
+
+        boolean isExpired(LocalDate today) {
+            return today.isBefore(computedOn) || (validUntil != null && !today.isBefore(validUntil));
+        }
+
+        // Nhiều khuyến mãi cùng áp dụng thì lấy giá thấp nhất cho khách
+        public Applied priceOf(Long productId, BigDecimal price) {
+            List<Discount> list = discounts.get(productId);
+            if (list == null || price == null) {
+                return new Applied(price, null);
+            }
+            BigDecimal best = price;
+            Long promotionId = null;
+            for (Discount discount : list) {
+                BigDecimal discounted = discount.applyTo(price);
+                if (discounted.compareTo(best) < 0) {
+                    best = discounted;
+                    promotionId = discount.promotionId();
+                }
+            }
+            return new Applied(best, promotionId);
+        }
+    }
+}
@@ -1,8 +1,10 @@
 package com.tathang.example304.security.services;
 
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import com.tathang.example304.model.CatalogChange;
 import com.tathang.example304.model.Product;
 import com.tathang.example304.model.Promotion;
 import com.tathang.example304.model.PromotionProduct;
@@ -11,8 +13,10 @@ import com.tathang.example304.repository.PromotionProductRepository;
 import com.tathang.example304.repository.PromotionRepository;
 
 import java.time.LocalDate;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 @Service
@@ -21,16 +25,29 @@ public class PromotionService {
     private final PromotionRepository promotionRepository;
     private final PromotionProductRepository promotionProductRepository;
     private final ProductRepository productRepository;
+    private final PromotionPriceService promotionPriceService;
+    private final CatalogSnapshotService catalogSnapshotService;
+    private final CatalogChangeLogService catalogChangeLogService;
+    private final CatalogViewService catalogViewService;
 
     public PromotionService(PromotionRepository promotionRepository,
             PromotionProductRepository promotionProductRepository,
-            ProductRepository productRepository) {
+            ProductRepository productRepository,
+            PromotionPriceService promotionPriceService,
+            CatalogSnapshotService catalogSnapshotService,
+            CatalogChangeLogService catalogChangeLogService,
+            CatalogViewService catalogViewService) {
         this.promotionRepository = promotionRepository;
         this.promotionProductRepository = promotionProductRepository;
         this.productRepository = productRepository;
+        this.promotionPriceService = promotionPriceService;
+        this.catalogSnapshotService = catalogSnapshotService;
+        this.catalogChangeLogService = catalogChangeLogService;
+        this.catalogViewService = catalogViewService;
     }
 
     // === CRUD OPERATIONS ===
+    @Transactional
     public Promotion createPromotion(Promotion promotion) {
         // Validate dates
         if (promotion.getStartDate().isAfter(promotion.getEndDate())) {
@@ -42,9 +59,13 @@ public class PromotionService {
             throw new RuntimeException("Chỉ có thể chọn một loại giảm giá: phần trăm hoặc số tiền");
         }
 
-        return promotionRepository.save(promotion);
+        Promotion saved = promotionRepository.save(promotion);
+        // Khuyến mãi mới chưa có sản phẩm nhưng có thể đổi mốc hết hạn của bảng giá
+        promotionChanged(List.of());
+        return saved;
     }
 
+    @Transactional
     public Promotion updatePromotion(Long id, Promotion promotionDetails) {
         Promotion promotion = promotionRepository.findById(id)
                 .orElseThrow(() -> new RuntimeException("Khuyến mãi không tồn tại"));
@@ -66,17 +87,21 @@ public class PromotionService {
         promotion.setEndDate(promotionDetails.getEndDate());
         promotion.setIsActive(promotionDetails.getIsActive());
 
-        return promotionRepository.save(promotion);
+        Promotion saved = promotionRepository.save(promotion);
+        promotionChanged(productIdsOf(id));
+        return saved;
     }
 
     @Transactional
     public boolean deletePromotion(Long id) {
         try {
             if (promotionRepository.existsById(id)) {
+                List<Long> productIds = productIdsOf(id);
                 // Xóa tất cả các product liên kết với promotion
                 promotionProductRepository.deleteByPromotionId(id);
                 // Sau đó xóa promotion
                 promotionRepository.deleteById(id);
+                promotionChanged(productIds);
                 return true;
             }
             return false;
@@ -103,15 +128,19 @@ public class PromotionService {
     }
 
     // === STATUS MANAGEMENT ===
+    @Transactional
     public Promotion togglePromotionStatus(Long id, Boolean isActive) {
         Promotion promotion = promotionRepository.findById(id)
                 .orElseThrow(() -> new RuntimeException("Khuyến mãi không tồn tại"));
 
         promotion.setIsActive(isActive);
-        return promotionRepository.save(promotion);
+        Promotion saved = promotionRepository.save(promotion);
+        promotionChanged(productIdsOf(id));
+        return saved;
     }
 
     // === PRODUCT MANAGEMENT ===
+    @Transactional
     public boolean addProductToPromotion(Long promotionId, Long productId) {
         Optional<Promotion> promotion = promotionRepository.findById(promotionId);
         Optional<Product> product = productRepository.findById(productId);
@@ -122,6 +151,7 @@ public class PromotionService {
             if (!exists) {
                 PromotionProduct promotionProduct = new PromotionProduct(promotion.get(), product.get());
                 promotionProductRepository.save(promotionProduct);
+                promotionChanged(List.of(productId));
                 return true;
             }
         }
@@ -146,11 +176,14 @@ public class PromotionService {
                 }
             }
         }
+        promotionChanged(productIds);
         return true;
     }
 
+    @Transactional
     public boolean removeProductFromPromotion(Long promotionId, Long productId) {
         promotionProductRepository.deleteByPromotionIdAndProductId(promotionId, productId);
+        promotionChanged(List.of(productId));
         return true;
     }
 
@@ -159,12 +192,15 @@ public class PromotionService {
         for (Long productId : productIds) {
             promotionProductRepository.deleteByPromotionIdAndProductId(promotionId, productId);
         }
+        promotionChanged(productIds);
         return true;
     }
 
     @Transactional
     public void clearAllProductsFromPromotion(Long promotionId) {
+        List<Long> productIds = productIdsOf(promotionId);
         promotionProductRepository.deleteByPromotionId(promotionId);
+        promotionChanged(productIds);
     }
 
     public List<PromotionProduct> getPromotionProducts(Long promotionId) {
@@ -193,6 +229,37 @@ public class PromotionService {
                 .collect(Collectors.toList());
     }
 
+    // === EFFECTIVE PRICES ===
+
+    // Khuyến mãi đổi: ghi lại giá trong catalog_view và change log cho các sản phẩm
+    // bị ảnh hưởng, sau commit build lại snapshot menu
+    private void promotionChanged(Collection<Long> productIds) {
+        promotionPriceService.promotionsChanged();
+        catalogViewService.refreshProducts(productIds);
+        productIds.forEach(productId -> catalogChangeLogService.recordProduct(productId,
+                CatalogChange.ChangeType.UPDATED));
+        catalogSnapshotService.catalogChanged();
+    }
+
+    private List<Long> productIdsOf(Long promotionId) {
+        return promotionProductRepository.findProductIdsByPromotionIdIn(List.of(promotionId)).stream()
+                .map(row -> (Long) row[1])
+                .collect(Collectors.toList());
+    }
+
+    // Qua ngày bắt đầu/kết thúc của một khuyến mãi thì giá trên menu phải đổi theo
+    @Scheduled(cron = "${catalog.promotions.refresh-cron:0 * * * * *}")
+    @Transactional
+    public void refreshExpiredPromotionPrices() {
+        Set<Long> changed = promotionPriceService.refreshIfExpired();
+        if (!changed.isEmpty()) {
+            catalogViewService.refreshProducts(changed);
+            changed.forEach(productId -> catalogChangeLogService.recordProduct(productId,
+                    CatalogChange.ChangeType.UPDATED));
+            catalogSnapshotService.catalogChanged();
+        }
+    }
+
     // === VALIDATION METHODS ===
     public boolean isPromotionActive(Long promotionId) {
         Optional<Promotion> promotion = promotionRepository.findById(promotionId);
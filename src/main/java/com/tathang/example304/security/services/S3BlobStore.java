@@ -0,0 +1,518 @@
+package com.tathang.example304.security.services;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lưu file trên S3 hoặc dịch vụ tương thích S3 (MinIO khi chạy thử), bật bằng file.storage.type=s3.
+ * Gọi REST API trực tiếp bằng java.net.http.HttpClient (ký AWS SigV4), không cần thêm SDK:
+ * một HttpClient dùng chung giữ kết nối keep-alive cho mọi request. File lớn hơn part-size
+ * được upload multipart, mỗi part đọc thẳng từ file tạm theo từng đoạn, vài part song song.
+ */
+@Slf4j
+@Service
+@ConditionalOnProperty(name = "file.storage.type", havingValue = "s3")
+public class S3BlobStore implements BlobStore {
+
+    private static final String UNSIGNED_PAYLOAD = "UNSIGNED-PAYLOAD";
+    private static final long MIN_PART_SIZE = 5L * 1024 * 1024;
+    private static final DateTimeFormatter AMZ_DATE = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'")
+            .withZone(ZoneOffset.UTC);
+
+    private final String endpoint;
+    private final String region;
+    private final String bucket;
+    private final String accessKey;
+    private final String secretKey;
+    private final boolean pathStyle;
+    private final String publicBaseUrl;
+    private final long partSize;
+    private final int uploadParallelism;
+    private final Duration requestTimeout;
+    private final ExecutorService executor;
+    private final HttpClient httpClient;
+
+    public S3BlobStore(@Value("${file.storage.s3.endpoint}") String endpoint,
+            @Value("${file.storage.s3.region:us-east-1}") String region,
+            @Value("${file.storage.s3.bucket}") String bucket,
+            @Value("${file.storage.s3.access-key}") String accessKey,
+            @Value("${file.storage.s3.secret-key}") String secretKey,
+            @Value("${file.storage.s3.path-style:true}") boolean pathStyle,
+            @Value("${file.storage.s3.public-base-url:}") String publicBaseUrl,
+            @Value("${file.storage.s3.part-size-mb:8}") long partSizeMb,
+            @Value("${file.storage.s3.upload-parallelism:4}") int uploadParallelism,
+            @Value("${file.storage.s3.request-timeout-seconds:120}") long requestTimeoutSeconds) {
+        this.endpoint = stripSlash(endpoint);
+        this.region = region;
+        this.bucket = bucket;
+        this.accessKey = accessKey;
+        this.secretKey = secretKey;
+        this.pathStyle = pathStyle;
+        this.partSize = Math.max(MIN_PART_SIZE, partSizeMb * 1024 * 1024);
+        this.uploadParallelism = Math.max(1, uploadParallelism);
+        this.requestTimeout = Duration.ofSeconds(requestTimeoutSeconds);
+        this.publicBaseUrl = publicBaseUrl == null || publicBaseUrl.isBlank()
+                ? (pathStyle ? this.endpoint + "/" + bucket : baseUri().toString())
+                : stripSlash(publicBaseUrl);
+
+        AtomicInteger sequence = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(this.uploadParallelism + 2, runnable -> {
+            Thread thread = new Thread(runnable, "s3-blob-store-" + sequence.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // HTTP/1.1: MinIO và nhiều dịch vụ S3 tương thích không hỗ trợ h2c
+        this.httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(10))
+                .executor(executor)
+                .build();
+        log.info("🪣 S3 blob store: {} bucket={} (public URL {})", this.endpoint, bucket, this.publicBaseUrl);
+    }
+
+    // === PUT ===
+    @Override
+    public void put(String key, Path source, String contentType) throws IOException {
+        long size = Files.size(source);
+        String type = contentType != null && !contentType.isBlank() ? contentType : "application/octet-stream";
+        if (size <= partSize) {
+            HttpResponse<String> response = send(request("PUT", key, Map.of(), Map.of("Content-Type", type),
+                    HttpRequest.BodyPublishers.ofFile(source)), HttpResponse.BodyHandlers.ofString());
+            check(response, "PUT", key);
+            return;
+        }
+        putMultipart(key, source, size, type);
+    }
+
+    private void putMultipart(String key, Path source, long size, String contentType) throws IOException {
+        HttpResponse<String> created = send(request("POST", key, Map.of("uploads", ""),
+                Map.of("Content-Type", contentType), HttpRequest.BodyPublishers.noBody()),
+                HttpResponse.BodyHandlers.ofString());
+        check(created, "CreateMultipartUpload", key);
+        String uploadId = firstText(parse(created.body()), "UploadId");
+        if (uploadId == null) {
+            throw new IOException("S3 CreateMultipartUpload " + key + ": thiếu UploadId");
+        }
+
+        int partCount = (int) ((size + partSize - 1) / partSize);
+        List<CompletableFuture<String>> etags = new ArrayList<>(partCount);
+        // Giới hạn số part đang gửi cùng lúc: bộ nhớ và số kết nối không tăng theo kích thước file
+        Semaphore inFlight = new Semaphore(uploadParallelism);
+        try {
+            for (int part = 1; part <= partCount; part++) {
+                long start = (part - 1) * partSize;
+                long length = Math.min(partSize, size - start);
+                inFlight.acquire();
+                HttpRequest request = request("PUT", key,
+                        Map.of("partNumber", String.valueOf(part), "uploadId", uploadId), Map.of(),
+                        HttpRequest.BodyPublishers.fromPublisher(
+                                HttpRequest.BodyPublishers.ofInputStream(() -> new RangeInputStream(source, start, length)),
+                                length));
+                int partNumber = part;
+                etags.add(httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+                        .whenComplete((response, error) -> inFlight.release())
+                        .thenApply(response -> {
+                            if (response.statusCode() / 100 != 2) {
+                                throw new IllegalStateException("part " + partNumber + ": HTTP " + response.statusCode());
+                            }
+                            return response.headers().firstValue("ETag").orElseThrow(
+                                    () -> new IllegalStateException("part " + partNumber + ": thiếu ETag"));
+                        }));
+            }
+
+            StringBuilder body = new StringBuilder("<CompleteMultipartUpload>");
+            for (int i = 0; i < partCount; i++) {
+                body.append("<Part><PartNumber>").append(i + 1).append("</PartNumber><ETag>")
+                        .append(escapeXml(etags.get(i).get())).append("</ETag></Part>");
+            }
+            body.append("</CompleteMultipartUpload>");
+            HttpResponse<String> completed = send(request("POST", key, Map.of("uploadId", uploadId),
+                    Map.of("Content-Type", "application/xml"), HttpRequest.BodyPublishers.ofString(body.toString())),
+                    HttpResponse.BodyHandlers.ofString());
+            check(completed, "CompleteMultipartUpload", key);
+            log.info("🪣 Uploaded {} to S3 in {} parts ({} bytes)", key, partCount, size);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abortMultipart(key, uploadId);
+            throw new IOException("S3 upload " + key + " bị ngắt", e);
+        } catch (ExecutionException | IOException | RuntimeException e) {
+            abortMultipart(key, uploadId);
+            throw e instanceof IOException io ? io : new IOException("S3 upload " + key + " thất bại: " + e.getMessage(), e);
+        }
+    }
+
+    // Hủy upload dở để S3 không giữ (và tính tiền) các part đã gửi
+    private void abortMultipart(String key, String uploadId) {
+        try {
+            send(request("DELETE", key, Map.of("uploadId", uploadId), Map.of(), HttpRequest.BodyPublishers.noBody()),
+                    HttpResponse.BodyHandlers.discarding());
+        } catch (IOException e) {
+            log.warn("Could not abort multipart upload {} for {}", uploadId, key, e);
+        }
+    }
+
+    // === READ ===
+    @Override
+    public StoredObject stat(String key) throws IOException {
+        HttpResponse<Void> response = send(request("HEAD", key, Map.of(), Map.of(), HttpRequest.BodyPublishers.noBody()),
+                HttpResponse.BodyHandlers.discarding());
+        if (response.statusCode() == 404) {
+            return null;
+        }
+        check(response, "HEAD", key);
+        HttpHeaders headers = response.headers();
+        long size = headers.firstValueAsLong("Content-Length").orElse(0);
+        Instant lastModified = headers.firstValue("Last-Modified")
+                .map(value -> DateTimeFormatter.RFC_1123_DATE_TIME.parse(value, Instant::from))
+                .orElse(Instant.EPOCH);
+        return new StoredObject(key, size, lastModified);
+    }
+
+    @Override
+    public InputStream open(String key) throws IOException {
+        HttpResponse<InputStream> response = send(request("GET", key, Map.of(), Map.of(),
+                HttpRequest.BodyPublishers.noBody()), HttpResponse.BodyHandlers.ofInputStream());
+        if (response.statusCode() / 100 != 2) {
+            response.body().close();
+            if (response.statusCode() == 404) {
+                throw new NoSuchFileException(key);
+            }
+            throw new IOException("S3 GET " + key + " thất bại: HTTP " + response.statusCode());
+        }
+        return response.body();
+    }
+
+    // Liệt kê từng trang (tối đa 1000 key), delimiter "/" để chỉ lấy object ngay dưới prefix
+    @Override
+    public void list(String prefix, ObjectVisitor visitor) throws IOException {
+        String token = null;
+        do {
+            Map<String, String> query = new LinkedHashMap<>();
+            query.put("list-type", "2");
+            query.put("prefix", prefix);
+            query.put("delimiter", "/");
+            if (token != null) {
+                query.put("continuation-token", token);
+            }
+            HttpResponse<byte[]> response = send(request("GET", "", query, Map.of(),
+                    HttpRequest.BodyPublishers.noBody()), HttpResponse.BodyHandlers.ofByteArray());
+            check(response, "ListObjectsV2", prefix);
+            Document page = parse(response.body());
+            NodeList contents = page.getElementsByTagName("Contents");
+            for (int i = 0; i < contents.getLength(); i++) {
+                Element object = (Element) contents.item(i);
+                String key = text(object, "Key");
+                if (key == null || key.substring(prefix.length()).startsWith(".")) {
+                    continue;
+                }
+                String size = text(object, "Size");
+                String lastModified = text(object, "LastModified");
+                visitor.visit(new StoredObject(key, size == null ? 0 : Long.parseLong(size),
+                        lastModified == null ? Instant.EPOCH : Instant.parse(lastModified)));
+            }
+            token = "true".equals(firstText(page, "IsTruncated")) ? firstText(page, "NextContinuationToken") : null;
+        } while (token != null);
+    }
+
+    // === WRITE ===
+    @Override
+    public boolean touch(String key) {
+        try {
+            return copy(key, key);
+        } catch (IOException e) {
+            log.warn("Could not touch S3 object {}", key, e);
+            return false;
+        }
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        HttpResponse<String> response = send(request("DELETE", key, Map.of(), Map.of(),
+                HttpRequest.BodyPublishers.noBody()), HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 404) {
+            check(response, "DELETE", key);
+        }
+    }
+
+    @Override
+    public void move(String fromKey, String toKey) throws IOException {
+        if (!copy(fromKey, toKey)) {
+            throw new NoSuchFileException(fromKey);
+        }
+        delete(fromKey);
+    }
+
+    /**
+     * CopyObject (S3 không có rename). Chép lên chính nó phải đổi metadata (REPLACE), nên lấy
+     * Content-Type hiện tại để giữ nguyên; Last-Modified được đặt lại theo thời điểm chép.
+     */
+    private boolean copy(String fromKey, String toKey) throws IOException {
+        HttpResponse<Void> head = send(request("HEAD", fromKey, Map.of(), Map.of(), HttpRequest.BodyPublishers.noBody()),
+                HttpResponse.BodyHandlers.discarding());
+        if (head.statusCode() == 404) {
+            return false;
+        }
+        check(head, "HEAD", fromKey);
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("x-amz-copy-source", "/" + bucket + "/" + encodePath(fromKey));
+        headers.put("x-amz-metadata-directive", "REPLACE");
+        headers.put("Content-Type", head.headers().firstValue("Content-Type").orElse("application/octet-stream"));
+        HttpResponse<String> response = send(request("PUT", toKey, Map.of(), headers,
+                HttpRequest.BodyPublishers.noBody()), HttpResponse.BodyHandlers.ofString());
+        check(response, "CopyObject", toKey);
+        return true;
+    }
+
+    @Override
+    public String publicUrl(String key) {
+        return publicBaseUrl + "/" + encodePath(key);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    // === HTTP + SIGV4 ===
+    private <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> handler) throws IOException {
+        try {
+            return httpClient.send(request, handler);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("S3 request bị ngắt", e);
+        }
+    }
+
+    private HttpRequest request(String method, String key, Map<String, String> query, Map<String, String> headers,
+            HttpRequest.BodyPublisher body) {
+        URI base = baseUri();
+        String path = pathStyle ? base.getRawPath() + "/" + bucket + "/" + encodePath(key)
+                : base.getRawPath() + "/" + encodePath(key);
+
+        TreeMap<String, String> sortedQuery = new TreeMap<>();
+        query.forEach((name, value) -> sortedQuery.put(encode(name), encode(value)));
+        StringBuilder canonicalQuery = new StringBuilder();
+        sortedQuery.forEach((name, value) -> {
+            if (canonicalQuery.length() > 0) {
+                canonicalQuery.append('&');
+            }
+            canonicalQuery.append(name).append('=').append(value);
+        });
+
+        Instant now = Instant.now();
+        String amzDate = AMZ_DATE.format(now);
+        String dateStamp = amzDate.substring(0, 8);
+        String host = base.getPort() == -1 ? base.getHost() : base.getHost() + ":" + base.getPort();
+
+        // Header ký: host, x-amz-*, sắp theo tên viết thường
+        TreeMap<String, String> signedHeaders = new TreeMap<>();
+        signedHeaders.put("host", host);
+        signedHeaders.put("x-amz-content-sha256", UNSIGNED_PAYLOAD);
+        signedHeaders.put("x-amz-date", amzDate);
+        headers.forEach((name, value) -> {
+            if (name.toLowerCase().startsWith("x-amz-")) {
+                signedHeaders.put(name.toLowerCase(), value.trim());
+            }
+        });
+        StringBuilder canonicalHeaders = new StringBuilder();
+        signedHeaders.forEach((name, value) -> canonicalHeaders.append(name).append(':').append(value).append('\n'));
+        String signedHeaderNames = String.join(";", signedHeaders.keySet());
+
+        String canonicalRequest = method + "\n" + path + "\n" + canonicalQuery + "\n" + canonicalHeaders + "\n"
+                + signedHeaderNames + "\n" + UNSIGNED_PAYLOAD;
+        String scope = dateStamp + "/" + region + "/s3/aws4_request";
+        String stringToSign = "AWS4-HMAC-SHA256\n" + amzDate + "\n" + scope + "\n"
+                + HexFormat.of().formatHex(FileStorageService.sha256()
+                        .digest(canonicalRequest.getBytes(StandardCharsets.UTF_8)));
+        byte[] signingKey = hmac(hmac(hmac(hmac(("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8), dateStamp),
+                region), "s3"), "aws4_request");
+        String signature = HexFormat.of().formatHex(hmac(signingKey, stringToSign));
+
+        String uri = base.getScheme() + "://" + host + path + (canonicalQuery.length() > 0 ? "?" + canonicalQuery : "");
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(uri))
+                .timeout(requestTimeout)
+                .method(method, body)
+                .header("x-amz-content-sha256", UNSIGNED_PAYLOAD)
+                .header("x-amz-date", amzDate)
+                .header("Authorization", "AWS4-HMAC-SHA256 Credential=" + accessKey + "/" + scope
+                        + ", SignedHeaders=" + signedHeaderNames + ", Signature=" + signature);
+        headers.forEach(builder::header);
+        return builder.build();
+    }
+
+    // Virtual-hosted style: bucket nằm trong host (bucket.s3.region.amazonaws.com)
+    private URI baseUri() {
+        URI uri = URI.create(endpoint);
+        if (pathStyle) {
+            return uri;
+        }
+        String authority = bucket + "." + uri.getHost() + (uri.getPort() == -1 ? "" : ":" + uri.getPort());
+        return URI.create(uri.getScheme() + "://" + authority + (uri.getRawPath() == null ? "" : uri.getRawPath()));
+    }
+
+    // S3 trả 200 kèm <Error> cho CopyObject/CompleteMultipartUpload bị lỗi giữa chừng
+    private static void check(HttpResponse<?> response, String operation, String key) throws IOException {
+        Object body = response.body();
+        String text = body instanceof byte[] bytes ? new String(bytes, StandardCharsets.UTF_8)
+                : body instanceof String string ? string : "";
+        if (response.statusCode() / 100 != 2 || text.contains("<Error>")) {
+            throw new IOException("S3 " + operation + " " + key + " thất bại: HTTP " + response.statusCode() + " "
+                    + (text.length() > 300 ? text.substring(0, 300) : text));
+        }
+    }
+
+    private static byte[] hmac(byte[] key, String data) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 not available", e);
+        }
+    }
+
+    // URI-encode theo SigV4: giữ A-Z a-z 0-9 - _ . ~, còn lại %XX
+    private static String encode(String value) {
+        StringBuilder out = new StringBuilder();
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xff);
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '_' || c == '.' || c == '~') {
+                out.append(c);
+            } else {
+                out.append('%').append(String.format("%02X", b & 0xff));
+            }
+        }
+        return out.toString();
+    }
+
+    private static String encodePath(String key) {
+        StringBuilder out = new StringBuilder();
+        for (String segment : key.split("/", -1)) {
+            if (out.length() > 0 || key.startsWith("/")) {
+                out.append('/');
+            }
+            out.append(encode(segment));
+        }
+        return out.toString();
+    }
+
+    private static String escapeXml(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    private static String stripSlash(String value) {
+        return value.endsWith("/") ? value.substring(0, value.length() - 1) : value;
+    }
+
+    private static Document parse(String xml) throws IOException {
+        return parse(xml.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Document parse(byte[] xml) throws IOException {
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            factory.setAttribute(XMLConstants.ACCESS_EXTERNAL_DTD, "");
+            factory.setAttribute(XMLConstants.ACCESS_EXTERNAL_SCHEMA, "");
+            return factory.newDocumentBuilder().parse(new ByteArrayInputStream(xml));
+        } catch (Exception e) {
+            throw new IOException("Không đọc được phản hồi XML từ S3", e);
+        }
+    }
+
+    private static String firstText(Document document, String tag) {
+        NodeList nodes = document.getElementsByTagName(tag);
+        return nodes.getLength() == 0 ? null : nodes.item(0).getTextContent();
+    }
+
+    private static String text(Element element, String tag) {
+        NodeList nodes = element.getElementsByTagName(tag);
+        return nodes.getLength() == 0 ? null : nodes.item(0).getTextContent();
+    }
+
+    /** Một đoạn [start, start+length) của file, đọc theo vị trí nên nhiều part đọc song song được. */
+    private static final class RangeInputStream extends InputStream {
+        private final FileChannel channel;
+        private long position;
+        private long remaining;
+
+        RangeInputStream(Path file, long start, long length) {
+            try {
+                this.channel = FileChannel.open(file, StandardOpenOption.READ);
+            } catch (IOException e) {
+                throw new IllegalStateException("Không mở được " + file, e);
+            }
+            this.position = start;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = channel.read(ByteBuffer.wrap(buffer, offset, (int) Math.min(length, remaining)), position);
+            if (read > 0) {
+                position += read;
+                remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,487 @@
+package com.tathang.example304.security.services;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.tathang.example304.model.Order;
+import com.tathang.example304.repository.ProductRepository;
+import com.tathang.example304.repository.StockReservationRepository;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import lombok.extern.slf4j.Slf4j;
+
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Giữ tồn kho cho đơn hàng chưa thanh toán trong stock.reservation.ttl-minutes.
+ * Tồn kho vẫn bị trừ ngay khi thêm vào đơn; mỗi lần sửa giỏ hàng, stock_reservations được đồng bộ
+ * lại theo order_items và gia hạn. Thanh toán chuyển phần giữ thành trừ hẳn, hủy đơn hoặc hết hạn
+ * thì cộng trả lại. Đơn đang thanh toán được gia hạn từng payment-ttl-minutes nhưng tổng cộng không
+ * quá payment-max-hold-minutes (hold_until); quá mốc đó thì hủy đơn và trả hàng như đơn bỏ dở.
+ * Hạn giữ hàng được xếp trong một hàng đợi ưu tiên trong bộ nhớ, nạp lại định kỳ từ DB (đúng cả
+ * sau khi khởi động lại hay khi chạy nhiều node). Trước khi trả hàng luôn kiểm tra lại trong DB.
+ * Mọi thao tác khóa dòng orders trước rồi mới tới products, cùng thứ tự với OrderService.
+ */
+@Slf4j
+@Service
+public class StockReservationService {
+
+    private static final String RESERVE_SQL = """
+            INSERT INTO stock_reservations (order_id, product_id, quantity, expires_at, created_at)
+            SELECT order_id, product_id, SUM(quantity), ?, ? FROM order_items
+            WHERE order_id = ? GROUP BY order_id, product_id HAVING SUM(quantity) > 0""";
+    private static final String RETURN_STOCK_SQL = """
+            UPDATE products SET stock_quantity = stock_quantity + ?, updated_at = ? WHERE id = ?""";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final StockReservationRepository stockReservationRepository;
+    private final ProductRepository productRepository;
+    private final CatalogViewService catalogViewService;
+    private final CatalogChangeLogService catalogChangeLogService;
+    private final CatalogSnapshotService catalogSnapshotService;
+    private final LowStockWatcher lowStockWatcher;
+    private final ProductSuggestService productSuggestService;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Value("${stock.reservation.ttl-minutes:30}")
+    private long ttlMinutes;
+
+    @Value("${stock.reservation.payment-ttl-minutes:20}")
+    private long paymentTtlMinutes;
+
+    @Value("${stock.reservation.payment-max-hold-minutes:120}")
+    private long paymentMaxHoldMinutes;
+
+    @Value("${stock.reservation.sweep-batch:200}")
+    private int batchSize;
+
+    @Value("${stock.reservation.reconcile-ms:300000}")
+    private long reconcileMillis;
+
+    // Hạn sớm nhất nằm ở đầu hàng đợi
+    private final PriorityQueue<Due> queue = new PriorityQueue<>(Comparator.comparing(Due::expiresAt));
+    // orderId -> hạn đang có hiệu lực; phần tử trong queue mang hạn khác là lịch cũ, bỏ qua khi lấy ra
+    private final Map<Long, LocalDateTime> scheduled = new HashMap<>();
+
+    private final AtomicLong reserveCount = new AtomicLong();
+    private final AtomicLong convertedOrders = new AtomicLong();
+    private final AtomicLong convertedUnits = new AtomicLong();
+    private final AtomicLong expiredOrders = new AtomicLong();
+    private final AtomicLong expiredUnits = new AtomicLong();
+    private final AtomicLong cancelledOrders = new AtomicLong();
+    private final AtomicLong cancelledUnits = new AtomicLong();
+    private final AtomicLong paymentTimeouts = new AtomicLong();
+    private final AtomicLong reclaimedOrders = new AtomicLong();
+    private final AtomicLong oversoldUnits = new AtomicLong();
+    private final AtomicLong sweepBatches = new AtomicLong();
+    private final AtomicLong sweepFailures = new AtomicLong();
+    private volatile Map<String, Object> lastSweep = Map.of();
+
+    private record Due(Long orderId, LocalDateTime expiresAt) {
+    }
+
+    public StockReservationService(JdbcTemplate jdbcTemplate, TransactionTemplate transactionTemplate,
+            StockReservationRepository stockReservationRepository, ProductRepository productRepository,
+            CatalogViewService catalogViewService, CatalogChangeLogService catalogChangeLogService,
+            CatalogSnapshotService catalogSnapshotService, LowStockWatcher lowStockWatcher,
+            ProductSuggestService productSuggestService) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+        this.stockReservationRepository = stockReservationRepository;
+        this.productRepository = productRepository;
+        this.catalogViewService = catalogViewService;
+        this.catalogChangeLogService = catalogChangeLogService;
+        this.catalogSnapshotService = catalogSnapshotService;
+        this.lowStockWatcher = lowStockWatcher;
+        this.productSuggestService = productSuggestService;
+    }
+
+    // === RESERVE ===
+
+    /**
+     * Đồng bộ phần giữ của order theo order_items hiện tại và đặt hạn mới. Gọi trong transaction
+     * sửa giỏ hàng của OrderService (đã khóa dòng order và trừ tồn kho).
+     */
+    public LocalDateTime reserve(Long orderId) {
+        // order_items có thể vừa được sửa qua JPA, cần ghi xuống trước câu INSERT ... SELECT
+        entityManager.flush();
+        LocalDateTime now = LocalDateTime.now();
+        LocalDateTime expiresAt = now.plusMinutes(ttlMinutes);
+        jdbcTemplate.update("DELETE FROM stock_reservations WHERE order_id = ?", orderId);
+        jdbcTemplate.update(RESERVE_SQL, Timestamp.valueOf(expiresAt), Timestamp.valueOf(now), orderId);
+        reserveCount.incrementAndGet();
+        AfterCommit.run(() -> schedule(orderId, expiresAt));
+        return expiresAt;
+    }
+
+    /**
+     * Khách chuyển sang cổng thanh toán: giữ hàng thêm payment-ttl-minutes, không vượt hold_until
+     * (đặt ở lần đầu bắt đầu thanh toán), nên bấm thanh toán lại nhiều lần cũng không giữ mãi.
+     */
+    @Transactional
+    public void extendForPayment(Long orderId) {
+        lockOrder(orderId);
+        LocalDateTime now = LocalDateTime.now();
+        LocalDateTime holdUntil = holdUntil(List.of(orderId), now).get(orderId);
+        LocalDateTime expiresAt = min(now.plusMinutes(paymentTtlMinutes), holdUntil);
+        jdbcTemplate.update("UPDATE stock_reservations SET hold_until = ? WHERE order_id = ? AND hold_until IS NULL",
+                Timestamp.valueOf(holdUntil), orderId);
+        Timestamp until = Timestamp.valueOf(expiresAt);
+        if (jdbcTemplate.update("UPDATE stock_reservations SET expires_at = ? WHERE order_id = ? AND expires_at < ?",
+                until, orderId, until) > 0) {
+            AfterCommit.run(() -> schedule(orderId, expiresAt));
+        }
+    }
+
+    // orderId -> hold_until đã ghi, hoặc now + payment-max-hold-minutes nếu chưa có
+    private Map<Long, LocalDateTime> holdUntil(List<Long> orderIds, LocalDateTime now) {
+        Map<Long, LocalDateTime> holds = new HashMap<>();
+        jdbcTemplate.query("SELECT order_id, MIN(hold_until) AS hold_until FROM stock_reservations WHERE order_id IN ("
+                + String.join(",", Collections.nCopies(orderIds.size(), "?")) + ") GROUP BY order_id", rs -> {
+                    Timestamp hold = rs.getTimestamp("hold_until");
+                    if (hold != null) {
+                        holds.put(rs.getLong("order_id"), hold.toLocalDateTime());
+                    }
+                }, orderIds.toArray());
+        LocalDateTime limit = now.plusMinutes(paymentMaxHoldMinutes);
+        for (Long orderId : orderIds) {
+            holds.putIfAbsent(orderId, limit);
+        }
+        return holds;
+    }
+
+    private static LocalDateTime min(LocalDateTime a, LocalDateTime b) {
+        return a.isBefore(b) ? a : b;
+    }
+
+    // === CONVERT ===
+
+    /**
+     * Đơn đã thanh toán: bỏ bản ghi giữ hàng, phần đã trừ thành trừ hẳn. Gọi trước khi đổi
+     * trạng thái sang PAID. Nếu tiền về sau khi đơn đã bị hủy vì hết hạn (PayOS chậm) thì
+     * trừ lại tồn kho theo các dòng của đơn.
+     */
+    @Transactional
+    public void convert(Long orderId) {
+        String status = lockOrder(orderId);
+        Integer units = jdbcTemplate.queryForObject(
+                "SELECT COALESCE(SUM(quantity), 0) FROM stock_reservations WHERE order_id = ?", Integer.class,
+                orderId);
+        if (units != null && units > 0) {
+            jdbcTemplate.update("DELETE FROM stock_reservations WHERE order_id = ?", orderId);
+            convertedOrders.incrementAndGet();
+            convertedUnits.addAndGet(units);
+            AfterCommit.run(() -> unschedule(orderId));
+            recordSales(orderLines(orderId));
+        } else if (Order.OrderStatus.CANCELLED.name().equals(status)) {
+            Map<Long, Integer> lines = orderLines(orderId);
+            reclaim(orderId, lines);
+            recordSales(lines);
+        }
+    }
+
+    private Map<Long, Integer> orderLines(Long orderId) {
+        Map<Long, Integer> lines = new TreeMap<>();
+        jdbcTemplate.query("SELECT product_id, quantity FROM order_items WHERE order_id = ?", rs -> {
+            lines.merge(rs.getLong("product_id"), rs.getInt("quantity"), Integer::sum);
+        }, orderId);
+        return lines;
+    }
+
+    // Độ phổ biến cho gợi ý tìm kiếm chỉ tính hàng đã thanh toán, một lần cho mỗi order
+    private void recordSales(Map<Long, Integer> lines) {
+        lines.forEach((productId, quantity) -> {
+            if (quantity > 0) {
+                productSuggestService.recordSale(productId, quantity);
+            }
+        });
+    }
+
+    private void reclaim(Long orderId, Map<Long, Integer> lines) {
+        LocalDateTime now = LocalDateTime.now();
+        lines.forEach((productId, quantity) -> {
+            if (quantity > 0 && productRepository.decrementStock(productId, quantity, now) == 0) {
+                // Hàng đã được bán cho người khác trong lúc chờ tiền: ghi lại để xử lý tay
+                oversoldUnits.addAndGet(quantity);
+                log.warn("⚠️ Order {} paid after its reservation expired, product {} short by up to {}",
+                        orderId, productId, quantity);
+            }
+        });
+        reclaimedOrders.incrementAndGet();
+        publishStock(lines.keySet());
+    }
+
+    // === RELEASE ===
+
+    /** Khách hủy đơn: trả lại ngay toàn bộ phần đang giữ. */
+    @Transactional
+    public int release(Long orderId) {
+        lockOrder(orderId);
+        int units = returnStock(List.of(orderId), null);
+        if (units > 0) {
+            cancelledOrders.incrementAndGet();
+            cancelledUnits.addAndGet(units);
+        }
+        AfterCommit.run(() -> unschedule(orderId));
+        return units;
+    }
+
+    /**
+     * Cộng trả tồn kho của các bản ghi giữ hàng (chỉ những bản ghi hết hạn trước expiredBefore
+     * nếu có) rồi xóa chúng. Một batch UPDATE products theo thứ tự id sản phẩm.
+     */
+    private int returnStock(Collection<Long> orderIds, LocalDateTime expiredBefore) {
+        if (orderIds.isEmpty()) {
+            return 0;
+        }
+        List<Object> args = new ArrayList<>(orderIds);
+        String condition = "order_id IN (" + String.join(",", Collections.nCopies(orderIds.size(), "?")) + ")";
+        if (expiredBefore != null) {
+            condition += " AND expires_at <= ?";
+            args.add(Timestamp.valueOf(expiredBefore));
+        }
+        Map<Long, Integer> byProduct = new TreeMap<>();
+        jdbcTemplate.query("SELECT product_id, quantity FROM stock_reservations WHERE " + condition, rs -> {
+            byProduct.merge(rs.getLong("product_id"), rs.getInt("quantity"), Integer::sum);
+        }, args.toArray());
+        if (byProduct.isEmpty()) {
+            return 0;
+        }
+
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+        List<Object[]> batch = new ArrayList<>(byProduct.size());
+        int units = 0;
+        for (Map.Entry<Long, Integer> entry : byProduct.entrySet()) {
+            batch.add(new Object[] { entry.getValue(), now, entry.getKey() });
+            units += entry.getValue();
+        }
+        jdbcTemplate.batchUpdate(RETURN_STOCK_SQL, batch, new int[] { Types.INTEGER, Types.TIMESTAMP, Types.BIGINT });
+        jdbcTemplate.update("DELETE FROM stock_reservations WHERE " + condition, args.toArray());
+        publishStock(byProduct.keySet());
+        return units;
+    }
+
+    // Đẩy tồn kho mới sang catalog_view, nhật ký thay đổi và cảnh báo sắp hết hàng
+    private void publishStock(Collection<Long> productIds) {
+        if (productIds.isEmpty()) {
+            return;
+        }
+        Map<Long, Integer> stocks = new TreeMap<>();
+        jdbcTemplate.query("SELECT id, name, stock_quantity, archive FROM products WHERE id IN ("
+                + String.join(",", Collections.nCopies(productIds.size(), "?")) + ")", rs -> {
+                    Long id = rs.getLong("id");
+                    int stock = rs.getInt("stock_quantity");
+                    stocks.put(id, stock);
+                    lowStockWatcher.stockChanged(id, rs.getString("name"), stock, rs.getBoolean("archive"));
+                }, productIds.toArray());
+        catalogViewService.updateStocks(stocks);
+        catalogChangeLogService.recordStockChanged(stocks.keySet());
+        catalogSnapshotService.stockChanged();
+    }
+
+    private String lockOrder(Long orderId) {
+        List<String> status = jdbcTemplate.queryForList("SELECT status FROM orders WHERE id = ? FOR UPDATE",
+                String.class, orderId);
+        return status.isEmpty() ? null : status.get(0);
+    }
+
+    // === SWEEP ===
+
+    /** Lấy các đơn đến hạn từ đầu hàng đợi và trả hàng theo từng lô sweep-batch đơn. */
+    @Scheduled(fixedDelayString = "${stock.reservation.sweep-ms:1000}")
+    public void sweep() {
+        while (true) {
+            List<Long> due = pollDue(LocalDateTime.now());
+            if (due.isEmpty()) {
+                return;
+            }
+            try {
+                transactionTemplate.executeWithoutResult(status -> releaseExpired(due));
+            } catch (RuntimeException e) {
+                // Các đơn này sẽ được xếp lại ở lần reconcile kế tiếp
+                sweepFailures.incrementAndGet();
+                log.warn("Stock reservation sweep failed for {} orders", due.size(), e);
+                return;
+            }
+            if (due.size() < batchSize) {
+                return;
+            }
+        }
+    }
+
+    private synchronized List<Long> pollDue(LocalDateTime now) {
+        List<Long> due = new ArrayList<>();
+        while (due.size() < batchSize && !queue.isEmpty() && !queue.peek().expiresAt().isAfter(now)) {
+            Due head = queue.poll();
+            if (head.expiresAt().equals(scheduled.get(head.orderId()))) {
+                scheduled.remove(head.orderId());
+                due.add(head.orderId());
+            }
+        }
+        return due;
+    }
+
+    private void releaseExpired(List<Long> orderIds) {
+        long started = System.nanoTime();
+        LocalDateTime now = LocalDateTime.now();
+        String placeholders = String.join(",", Collections.nCopies(orderIds.size(), "?"));
+
+        Map<Long, String> statuses = new HashMap<>();
+        jdbcTemplate.query("SELECT id, status FROM orders WHERE id IN (" + placeholders + ") ORDER BY id FOR UPDATE",
+                rs -> {
+                    statuses.put(rs.getLong("id"), rs.getString("status"));
+                }, orderIds.toArray());
+        // Đơn có thể đã được gia hạn (sửa giỏ hàng, sang trang thanh toán) sau khi xếp lịch
+        List<Object> args = new ArrayList<>(orderIds);
+        args.add(Timestamp.valueOf(now));
+        Set<Long> expired = new HashSet<>(jdbcTemplate.queryForList("SELECT DISTINCT order_id FROM stock_reservations"
+                + " WHERE order_id IN (" + placeholders + ") AND expires_at <= ?", Long.class, args.toArray()));
+
+        // abandoned: đơn NEW bỏ dở hoặc đơn PENDING giữ quá payment-max-hold-minutes, bị hủy
+        List<Long> abandoned = new ArrayList<>();
+        List<Long> release = new ArrayList<>();
+        List<Long> paid = new ArrayList<>();
+        List<Long> paying = new ArrayList<>();
+        for (Long orderId : expired) {
+            String status = statuses.get(orderId);
+            if (Order.OrderStatus.NEW.name().equals(status)) {
+                abandoned.add(orderId);
+                release.add(orderId);
+            } else if (status == null || Order.OrderStatus.CANCELLED.name().equals(status)) {
+                // Đơn đã xóa hoặc đã hủy bằng đường khác (admin đổi trạng thái)
+                release.add(orderId);
+            } else if (Order.OrderStatus.PENDING.name().equals(status)) {
+                paying.add(orderId);
+            } else {
+                // Đã thanh toán/giao mà chưa qua convert: phần giữ coi như đã trừ hẳn
+                paid.add(orderId);
+            }
+        }
+
+        // Đang chờ tiền (webhook PayOS chưa về): gia hạn tới hold_until, quá mốc thì hủy như đơn bỏ dở.
+        // Tiền về sau đó vẫn được convert nhận (trừ lại tồn kho).
+        Map<Long, LocalDateTime> holds = paying.isEmpty() ? Map.of() : holdUntil(paying, now);
+        List<Long> extend = new ArrayList<>();
+        for (Long orderId : paying) {
+            if (holds.get(orderId).isAfter(now)) {
+                extend.add(orderId);
+            } else {
+                abandoned.add(orderId);
+                release.add(orderId);
+                paymentTimeouts.incrementAndGet();
+            }
+        }
+
+        int units = returnStock(release, now);
+        if (!abandoned.isEmpty()) {
+            List<Object> cancelArgs = new ArrayList<>();
+            cancelArgs.add(Timestamp.valueOf(now));
+            cancelArgs.addAll(abandoned);
+            jdbcTemplate.update("UPDATE orders SET status = 'CANCELLED', updated_at = ? WHERE id IN ("
+                    + String.join(",", Collections.nCopies(abandoned.size(), "?")) + ")", cancelArgs.toArray());
+        }
+        if (!paid.isEmpty()) {
+            jdbcTemplate.update("DELETE FROM stock_reservations WHERE order_id IN ("
+                    + String.join(",", Collections.nCopies(paid.size(), "?")) + ")", paid.toArray());
+            convertedOrders.addAndGet(paid.size());
+        }
+        for (Long orderId : extend) {
+            LocalDateTime holdUntil = holds.get(orderId);
+            LocalDateTime paymentDeadline = min(now.plusMinutes(paymentTtlMinutes), holdUntil);
+            jdbcTemplate.update("UPDATE stock_reservations SET expires_at = ?, hold_until = ? WHERE order_id = ?",
+                    Timestamp.valueOf(paymentDeadline), Timestamp.valueOf(holdUntil), orderId);
+            AfterCommit.run(() -> schedule(orderId, paymentDeadline));
+        }
+
+        expiredOrders.addAndGet(release.size());
+        expiredUnits.addAndGet(units);
+        sweepBatches.incrementAndGet();
+        Map<String, Object> run = new LinkedHashMap<>();
+        run.put("at", now);
+        run.put("due", orderIds.size());
+        run.put("released", release.size());
+        run.put("cancelled", abandoned.size());
+        run.put("units", units);
+        run.put("tookMillis", (System.nanoTime() - started) / 1_000_000);
+        AfterCommit.run(() -> lastSweep = run);
+        if (!release.isEmpty()) {
+            log.info("⏰ Released {} units from {} expired stock reservations", units, release.size());
+        }
+    }
+
+    /**
+     * Nạp lịch từ DB cho các bản ghi hết hạn trước lần reconcile kế tiếp: chạy lúc khởi động
+     * và định kỳ, để nhận cả đơn do node khác giữ/gia hạn và những lô sweep bị lỗi.
+     */
+    @Scheduled(fixedDelayString = "${stock.reservation.reconcile-ms:300000}")
+    public void reconcile() {
+        LocalDateTime horizon = LocalDateTime.now().plusNanos(reconcileMillis * 1_000_000);
+        List<Due> due = jdbcTemplate.query(
+                "SELECT order_id, MIN(expires_at) AS expires_at FROM stock_reservations WHERE expires_at <= ?"
+                        + " GROUP BY order_id",
+                (rs, i) -> new Due(rs.getLong("order_id"), rs.getTimestamp("expires_at").toLocalDateTime()),
+                Timestamp.valueOf(horizon));
+        due.forEach(d -> schedule(d.orderId(), d.expiresAt()));
+    }
+
+    private synchronized void schedule(Long orderId, LocalDateTime expiresAt) {
+        if (!expiresAt.equals(scheduled.put(orderId, expiresAt))) {
+            queue.add(new Due(orderId, expiresAt));
+        }
+    }
+
+    private synchronized void unschedule(Long orderId) {
+        scheduled.remove(orderId);
+    }
+
+    // === METRICS ===
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("activeReservations", stockReservationRepository.count());
+        stats.put("reservedUnits", stockReservationRepository.sumQuantity());
+        synchronized (this) {
+            stats.put("scheduledOrders", scheduled.size());
+            stats.put("queueSize", queue.size());
+        }
+        stats.put("ttlMinutes", ttlMinutes);
+        stats.put("paymentTtlMinutes", paymentTtlMinutes);
+        stats.put("paymentMaxHoldMinutes", paymentMaxHoldMinutes);
+        stats.put("reserveCount", reserveCount.get());
+        stats.put("convertedOrders", convertedOrders.get());
+        stats.put("convertedUnits", convertedUnits.get());
+        stats.put("expiredOrders", expiredOrders.get());
+        stats.put("expiredUnits", expiredUnits.get());
+        stats.put("cancelledOrders", cancelledOrders.get());
+        stats.put("cancelledUnits", cancelledUnits.get());
+        stats.put("paymentTimeouts", paymentTimeouts.get());
+        stats.put("reclaimedOrders", reclaimedOrders.get());
+        stats.put("oversoldUnits", oversoldUnits.get());
+        stats.put("sweepBatches", sweepBatches.get());
+        stats.put("sweepFailures", sweepFailures.get());
+        stats.put("lastSweep", lastSweep);
+        return stats;
+    }
+}
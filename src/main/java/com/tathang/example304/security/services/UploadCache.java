@@ -0,0 +1,175 @@
+package com.tathang.example304.security.services;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.tathang.example304.security.services.UploadServingService.ResolvedUpload;
+
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache nội dung file upload nóng (chủ yếu ảnh thu nhỏ) trong direct ByteBuffer, giới hạn
+ * theo tổng số byte. Dữ liệu nằm ngoài heap nên không làm GC chậm đi.
+ * Dùng Caffeine (W-TinyLFU, weigher theo số byte): đọc không khóa, đếm tần suất không chặn
+ * nhau, file xem một lần không đẩy các thumbnail nóng ra khỏi cache.
+ * <p>
+ * Lần đầu gặp một file chỉ ghi nhận key (doorkeeper, tối đa {@value #MAX_SEEN_KEYS} key) và để
+ * controller gửi thẳng từ file; từ lần thứ hai mới cấp direct buffer. Nhờ vậy file xem một lần
+ * không tốn buffer mà Caffeine đằng nào cũng loại.
+ * <p>
+ * Direct buffer chỉ được trả lại khi GC thu object ByteBuffer, nên entry đã bị đẩy ra vẫn
+ * chiếm bộ nhớ một lúc. {@code allocatedBytes} đếm mọi buffer chưa được GC thu (theo dõi bằng
+ * Cleaner); khi vượt {@value #ALLOCATION_FACTOR} lần maxBytes thì tạm ngừng nạp mới và phục vụ
+ * thẳng từ file cho tới khi GC giải phóng bớt.
+ */
+@Service
+public class UploadCache {
+
+    private static final int ALLOCATION_FACTOR = 2;
+    private static final int MAX_SEEN_KEYS = 10_000;
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final Cache<String, Entry> entries;
+    // Key đã được yêu cầu ít nhất một lần mà chưa nạp
+    private final Cache<String, Boolean> seen;
+    // Byte direct buffer cache đã cấp mà GC chưa thu, gồm cả entry đã bị đẩy ra
+    private final AtomicLong allocatedBytes = new AtomicLong();
+    // Tăng mỗi lần invalidate; entry nạp từ trước đó bị bỏ để không cache lại nội dung cũ
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicLong allocationsSkipped = new AtomicLong();
+    private final AtomicLong firstRequests = new AtomicLong();
+
+    public UploadCache(@Value("${file.cache.max-bytes:67108864}") long maxBytes,
+            @Value("${file.cache.max-entry-bytes:1048576}") long maxEntryBytes) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = Math.min(maxEntryBytes, Integer.MAX_VALUE);
+        this.entries = Caffeine.newBuilder()
+                .maximumWeight(Math.max(0, maxBytes))
+                .weigher((String key, Entry entry) -> entry.data().capacity())
+                .recordStats()
+                .build();
+        this.seen = Caffeine.newBuilder().maximumSize(MAX_SEEN_KEYS).build();
+    }
+
+    public record Entry(ResolvedUpload upload, ByteBuffer data) {
+    }
+
+    // === READ ===
+    public Entry get(String key) {
+        return entries.getIfPresent(key);
+    }
+
+    public long generation() {
+        return generation.get();
+    }
+
+    /**
+     * Nạp file vào cache nếu đủ điều kiện. Trả về entry để phục vụ request hiện tại, null nếu
+     * file không nên cache (quá lớn, không phải file cục bộ, lần đầu được yêu cầu, đã cấp quá nhiều
+     * direct buffer); khi đó controller gửi thẳng từ file.
+     * Caffeine có thể không nhận entry (tần suất thấp hơn entry sắp bị đẩy), entry vẫn dùng được
+     * cho request này.
+     */
+    public Entry load(String key, ResolvedUpload upload, long expectedGeneration) throws IOException {
+        long size = upload.length();
+        if (upload.path() == null || size <= 0 || size > maxEntryBytes || size > maxBytes) {
+            return null;
+        }
+        if (seen.asMap().putIfAbsent(key, Boolean.TRUE) == null) {
+            firstRequests.incrementAndGet();
+            return null;
+        }
+        if (allocatedBytes.addAndGet(size) > maxBytes * ALLOCATION_FACTOR) {
+            allocatedBytes.addAndGet(-size);
+            allocationsSkipped.incrementAndGet();
+            return null;
+        }
+        ByteBuffer buffer;
+        try {
+            buffer = ByteBuffer.allocateDirect((int) size);
+        } catch (OutOfMemoryError e) {
+            allocatedBytes.addAndGet(-size);
+            allocationsSkipped.incrementAndGet();
+            return null;
+        }
+        CLEANER.register(buffer, () -> allocatedBytes.addAndGet(-size));
+        try (FileChannel channel = FileChannel.open(upload.path(), StandardOpenOption.READ)) {
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // đọc đến khi đầy buffer
+            }
+        }
+        if (buffer.hasRemaining()) {
+            // File bị thay/cắt trong lúc đọc
+            return null;
+        }
+        buffer.flip();
+        seen.invalidate(key);
+        Entry entry = new Entry(upload, buffer.asReadOnlyBuffer());
+        if (generation.get() == expectedGeneration) {
+            Entry existing = entries.asMap().putIfAbsent(key, entry);
+            // invalidate chen vào giữa lúc kiểm tra và lúc put: bỏ entry vừa thêm
+            if (existing == null && generation.get() != expectedGeneration) {
+                entries.asMap().remove(key, entry);
+            }
+        }
+        return entry;
+    }
+
+    // === INVALIDATE ===
+
+    // Gọi khi file được ghi mới/ghi đè/chuyển đi (FileStorageService, ImageVariantService, UploadGarbageCollector)
+    public void invalidate(String key) {
+        generation.incrementAndGet();
+        entries.invalidate(key);
+    }
+
+    public void clear() {
+        generation.incrementAndGet();
+        entries.invalidateAll();
+    }
+
+    // === METRICS ===
+    public Map<String, Object> stats() {
+        CacheStats cacheStats = entries.stats();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("entries", entries.estimatedSize());
+        stats.put("usedBytes", entries.policy().eviction().map(eviction -> eviction.weightedSize().orElse(0))
+                .orElse(0L));
+        stats.put("allocatedBytes", allocatedBytes.get());
+        stats.put("directMemoryBytes", directMemoryUsed());
+        stats.put("maxBytes", maxBytes);
+        stats.put("maxEntryBytes", maxEntryBytes);
+        stats.put("hits", cacheStats.hitCount());
+        stats.put("misses", cacheStats.missCount());
+        stats.put("hitRatio", cacheStats.hitRate());
+        stats.put("evictions", cacheStats.evictionCount());
+        stats.put("evictedBytes", cacheStats.evictionWeight());
+        stats.put("allocationsSkipped", allocationsSkipped.get());
+        stats.put("firstRequests", firstRequests.get());
+        return stats;
+    }
+
+    // Toàn bộ direct memory của JVM (cả Tomcat/NIO), để so với allocatedBytes
+    private static long directMemoryUsed() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if ("direct".equals(pool.getName())) {
+                return pool.getMemoryUsed();
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,402 @@
+package com.tathang.example304.security.services;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.sql.PreparedStatement;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Dọn file upload không còn được tham chiếu (mark-and-sweep), chạy nền theo lịch.
+ * <ul>
+ * <li>Mark: đọc lần lượt image_url của products/categories/users (cursor, không load hết)
+ * vào một Bloom filter cỡ vài MB.</li>
+ * <li>Sweep: duyệt lần lượt các file trong BlobStore (thư mục upload hoặc bucket S3); file cũ hơn thời gian ân hạn mà filter chắc chắn
+ * không chứa là ứng viên. Mỗi lô ứng viên được kiểm tra lại với DB ngay trước khi chuyển vào
+ * thư mục cách ly, để ảnh vừa được gán lại sau bước mark không bị dọn nhầm.</li>
+ * <li>File cách ly quá số ngày cấu hình mới bị xóa hẳn.</li>
+ * </ul>
+ */
+@Slf4j
+@Service
+public class UploadGarbageCollector {
+
+    private static final int BATCH_SIZE = 500;
+    private static final int FETCH_SIZE = 1000;
+    static final String QUARANTINE_DIR = ".orphans";
+
+    // <sha256>[_<width>].<ext>: biến thể đi theo hash của ảnh gốc
+    private static final Pattern CONTENT_NAME = Pattern.compile("^([0-9a-f]{64})(_\\d+)?(\\.[a-z0-9]{1,5})?$");
+    // File tạm của FileStorageService/ImageVariantService còn sót lại khi app tắt giữa chừng
+    private static final Pattern TEMP_NAME = Pattern.compile("^\\.(upload|variant)-.*\\.tmp$");
+
+    private static final String REFERENCED_URLS_SQL = """
+            SELECT image_url FROM products WHERE image_url LIKE '%/uploads/%'
+            UNION ALL SELECT image_url FROM categories WHERE image_url LIKE '%/uploads/%'
+            UNION ALL SELECT image_url FROM users WHERE image_url LIKE '%/uploads/%'""";
+
+    private static final String COUNT_URLS_SQL = """
+            SELECT (SELECT COUNT(*) FROM products WHERE image_url IS NOT NULL)
+                 + (SELECT COUNT(*) FROM categories WHERE image_url IS NOT NULL)
+                 + (SELECT COUNT(*) FROM users WHERE image_url IS NOT NULL)""";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final FileStorageService fileStorageService;
+    private final BlobStore blobStore;
+    private final UploadCache uploadCache;
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    private volatile Map<String, Object> lastRun = Map.of();
+
+    @Value("${file.gc.enabled:true}")
+    private boolean enabled;
+
+    @Value("${file.gc.grace-hours:24}")
+    private long graceHours;
+
+    @Value("${file.gc.quarantine-days:7}")
+    private long quarantineDays;
+
+    public UploadGarbageCollector(JdbcTemplate jdbcTemplate, TransactionTemplate transactionTemplate,
+            FileStorageService fileStorageService, BlobStore blobStore, UploadCache uploadCache) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+        this.fileStorageService = fileStorageService;
+        this.blobStore = blobStore;
+        this.uploadCache = uploadCache;
+    }
+
+    @Scheduled(cron = "${file.gc.cron:0 30 3 * * *}")
+    public void scheduledCollect() {
+        if (enabled) {
+            collect();
+        }
+    }
+
+    /** Chạy một lượt; trả về thống kê, hoặc lượt trước nếu đang có lượt khác chạy. */
+    public Map<String, Object> collect() {
+        if (!running.compareAndSet(false, true)) {
+            return lastRun;
+        }
+        long start = System.currentTimeMillis();
+        try {
+            Instant cutoff = Instant.now().minus(graceHours, ChronoUnit.HOURS);
+            BloomFilter referenced = mark();
+            Sweep sweep = new Sweep(cutoff);
+            sweep.run(referenced);
+            int purged = purgeQuarantine();
+            int tempDeleted = deleteStaleTempFiles(fileStorageService.getUploadPath(), cutoff);
+
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("finishedAt", Instant.now().toString());
+            result.put("referencedUrls", referenced.count);
+            result.put("scannedFiles", sweep.scanned);
+            result.put("candidates", sweep.candidates);
+            result.put("quarantined", sweep.quarantined);
+            result.put("quarantinedBytes", sweep.quarantinedBytes);
+            result.put("staleTempFilesDeleted", tempDeleted);
+            result.put("purgedFromQuarantine", purged);
+            result.put("durationMs", System.currentTimeMillis() - start);
+            lastRun = result;
+            if (sweep.quarantined > 0 || purged > 0) {
+                log.info("🧹 Upload GC: quarantined {} orphan files ({} bytes), purged {}", sweep.quarantined,
+                        sweep.quarantinedBytes, purged);
+            }
+            return result;
+        } catch (IOException | RuntimeException e) {
+            log.error("❌ Upload GC failed", e);
+            throw new RuntimeException("Upload GC thất bại: " + e.getMessage(), e);
+        } finally {
+            running.set(false);
+        }
+    }
+
+    public Map<String, Object> getLastRun() {
+        return lastRun;
+    }
+
+    // === MARK ===
+    private BloomFilter mark() {
+        Long expected = jdbcTemplate.queryForObject(COUNT_URLS_SQL, Long.class);
+        BloomFilter filter = new BloomFilter(expected == null ? 0 : expected);
+        // PostgreSQL chỉ đọc theo cursor (fetch size) khi autocommit tắt, nên chạy trong transaction chỉ đọc
+        transactionTemplate.executeWithoutResult(status -> jdbcTemplate.query(connection -> {
+            PreparedStatement statement = connection.prepareStatement(REFERENCED_URLS_SQL);
+            statement.setFetchSize(FETCH_SIZE);
+            return statement;
+        }, row -> {
+            String key = keyOfUrl(row.getString(1));
+            if (key != null) {
+                filter.add(key);
+            }
+        }));
+        return filter;
+    }
+
+    // === SWEEP ===
+    private final class Sweep {
+        private final Instant cutoff;
+        // key -> các file cùng key (ảnh gốc + biến thể) trong lô hiện tại
+        private final Map<String, List<String>> batch = new LinkedHashMap<>();
+        // Hash có mọi file trong lô đã vào quarantine; chỉ xóa stored_blobs ở cuối lượt quét
+        private final Set<String> moved = new HashSet<>();
+        // Hash còn ít nhất một file ở lại (mới hơn cutoff, hoặc không chuyển được), kể cả ở lô khác
+        private final Set<String> retained = new HashSet<>();
+        private long scanned;
+        private long candidates;
+        private long quarantined;
+        private long quarantinedBytes;
+
+        Sweep(Instant cutoff) {
+            this.cutoff = cutoff;
+        }
+
+        void run(BloomFilter referenced) throws IOException {
+            blobStore.list("", object -> {
+                scanned++;
+                String key = keyOfFileName(object.key());
+                if (referenced.mightContain(key)) {
+                    return;
+                }
+                if (!object.lastModified().isBefore(cutoff)) {
+                    retained.add(key);
+                    return;
+                }
+                candidates++;
+                batch.computeIfAbsent(key, k -> new ArrayList<>()).add(object.key());
+                if (batch.size() >= BATCH_SIZE) {
+                    flush();
+                }
+            });
+            flush();
+            // Ảnh gốc và biến thể có thể nằm ở các lô khác nhau: đợi quét hết rồi mới quyết định
+            for (String key : moved) {
+                if (!retained.contains(key)) {
+                    forgetBlob(key);
+                }
+            }
+        }
+
+        private void flush() throws IOException {
+            if (batch.isEmpty()) {
+                return;
+            }
+            Set<String> stillReferenced = referencedKeys(batch);
+            for (Map.Entry<String, List<String>> entry : batch.entrySet()) {
+                if (stillReferenced.contains(entry.getKey())) {
+                    retained.add(entry.getKey());
+                    continue;
+                }
+                boolean all = true;
+                for (String name : entry.getValue()) {
+                    all &= quarantine(name);
+                }
+                (all ? moved : retained).add(entry.getKey());
+            }
+            batch.clear();
+        }
+
+        // true nếu file đã được chuyển vào quarantine
+        private boolean quarantine(String name) {
+            try {
+                // Kiểm tra lại thời gian sửa: FileStorageService chạm vào file khi upload trùng nội dung
+                BlobStore.StoredObject current = blobStore.stat(name);
+                if (current == null) {
+                    return true;
+                }
+                if (!current.lastModified().isBefore(cutoff)) {
+                    return false;
+                }
+                // Local: đổi tên nguyên tử, request đang đọc file (fd đã mở) vẫn đọc xong bình thường
+                blobStore.move(name, QUARANTINE_DIR + "/" + name);
+                uploadCache.invalidate(name);
+                quarantined++;
+                quarantinedBytes += current.size();
+                return true;
+            } catch (IOException e) {
+                log.warn("Could not quarantine orphan upload {}", name, e);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Kiểm tra lại với DB: hash còn trong blob_references, hoặc URL của một file trong lô
+     * còn nằm trong image_url của bảng nào đó (ảnh cũ không theo hash chỉ có cách này).
+     */
+    private Set<String> referencedKeys(Map<String, List<String>> batch) {
+        List<String> hashes = new ArrayList<>();
+        List<String> urls = new ArrayList<>();
+        for (Map.Entry<String, List<String>> entry : batch.entrySet()) {
+            if (CONTENT_NAME.matcher(entry.getKey()).matches()) {
+                hashes.add(entry.getKey());
+            }
+            for (String name : entry.getValue()) {
+                urls.add(FileStorageService.URL_PREFIX + name);
+            }
+        }
+        Set<String> referenced = new HashSet<>();
+        if (!hashes.isEmpty()) {
+            String placeholders = String.join(",", Collections.nCopies(hashes.size(), "?"));
+            referenced.addAll(jdbcTemplate.queryForList(
+                    "SELECT DISTINCT blob_hash FROM blob_references WHERE blob_hash IN (" + placeholders + ")",
+                    String.class, hashes.toArray()));
+        }
+        String placeholders = String.join(",", Collections.nCopies(urls.size(), "?"));
+        Object[] args = new Object[urls.size() * 3];
+        for (int i = 0; i < 3; i++) {
+            System.arraycopy(urls.toArray(), 0, args, i * urls.size(), urls.size());
+        }
+        for (String url : jdbcTemplate.queryForList(
+                "SELECT image_url FROM products WHERE image_url IN (" + placeholders + ")"
+                        + " UNION SELECT image_url FROM categories WHERE image_url IN (" + placeholders + ")"
+                        + " UNION SELECT image_url FROM users WHERE image_url IN (" + placeholders + ")",
+                String.class, args)) {
+            referenced.add(keyOfUrl(url));
+        }
+        return referenced;
+    }
+
+    // Bỏ bản ghi stored_blobs của nội dung đã dọn; upload lại sẽ đăng ký và sinh biến thể từ đầu
+    private void forgetBlob(String key) {
+        if (CONTENT_NAME.matcher(key).matches()) {
+            jdbcTemplate.update("DELETE FROM stored_blobs WHERE hash = ? AND NOT EXISTS "
+                    + "(SELECT 1 FROM blob_references r WHERE r.blob_hash = stored_blobs.hash)", key);
+        }
+    }
+
+    // === QUARANTINE PURGE ===
+    private int purgeQuarantine() throws IOException {
+        Instant cutoff = Instant.now().minus(quarantineDays, ChronoUnit.DAYS);
+        int[] purged = { 0 };
+        blobStore.list(QUARANTINE_DIR + "/", object -> {
+            if (object.lastModified().isBefore(cutoff)) {
+                blobStore.delete(object.key());
+                purged[0]++;
+            }
+        });
+        return purged[0];
+    }
+
+    // File tạm trong thư mục upload cục bộ (cả khi lưu trên S3) còn sót lại khi app tắt giữa chừng
+    private int deleteStaleTempFiles(Path dir, Instant cutoff) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return 0;
+        }
+        int deleted = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                if (!TEMP_NAME.matcher(file.getFileName().toString()).matches()) {
+                    continue;
+                }
+                try {
+                    if (Files.getLastModifiedTime(file, LinkOption.NOFOLLOW_LINKS).toInstant().isBefore(cutoff)
+                            && Files.deleteIfExists(file)) {
+                        deleted++;
+                    }
+                } catch (NoSuchFileException e) {
+                    // Vừa được đổi tên/xóa bởi chính request đã tạo nó
+                }
+            }
+        }
+        return deleted;
+    }
+
+    // === KEYS ===
+
+    // Key của một URL: hash với URL theo nội dung, tên file với URL cũ, null nếu không trỏ vào /uploads/
+    private static String keyOfUrl(String url) {
+        if (url == null) {
+            return null;
+        }
+        int index = url.lastIndexOf(FileStorageService.URL_PREFIX);
+        if (index < 0) {
+            return null;
+        }
+        String name = url.substring(index + FileStorageService.URL_PREFIX.length());
+        int query = name.indexOf('?');
+        return keyOfFileName(query >= 0 ? name.substring(0, query) : name);
+    }
+
+    private static String keyOfFileName(String name) {
+        Matcher matcher = CONTENT_NAME.matcher(name);
+        return matcher.matches() ? matcher.group(1) : name;
+    }
+
+    /**
+     * Bloom filter tối giản (tỉ lệ dương tính giả ~0.1%): dương tính giả chỉ khiến một file mồ côi
+     * được giữ lại tới lượt sau, không bao giờ làm dọn nhầm file đang dùng.
+     */
+    static final class BloomFilter {
+        private static final int HASHES = 10;
+        private final long[] bits;
+        private final long bitCount;
+        private long count;
+
+        BloomFilter(long expected) {
+            long size = Math.max(1024, (long) Math.ceil(Math.max(expected, 1) * 14.4));
+            this.bits = new long[(int) Math.min(Integer.MAX_VALUE - 8, (size + 63) / 64)];
+            this.bitCount = (long) bits.length * 64;
+        }
+
+        void add(String key) {
+            long h1 = fnv1a(key);
+            long h2 = mix(h1);
+            for (int i = 0; i < HASHES; i++) {
+                long bit = Math.floorMod(h1 + i * h2, bitCount);
+                bits[(int) (bit >>> 6)] |= 1L << bit;
+            }
+            count++;
+        }
+
+        boolean mightContain(String key) {
+            long h1 = fnv1a(key);
+            long h2 = mix(h1);
+            for (int i = 0; i < HASHES; i++) {
+                long bit = Math.floorMod(h1 + i * h2, bitCount);
+                if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static long fnv1a(String key) {
+            long hash = 0xcbf29ce484222325L;
+            for (int i = 0; i < key.length(); i++) {
+                hash ^= key.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+            return hash;
+        }
+
+        private static long mix(long z) {
+            z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+            z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+            return (z ^ (z >>> 33)) | 1;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.tathang.example304.security.services;
+
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
+import org.springframework.stereotype.Service;
+
+import com.tathang.example304.dto.ImageSizes;
+import com.tathang.example304.model.StoredBlob;
+import com.tathang.example304.repository.StoredBlobRepository;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Tìm file cho request /uploads/{name} trong đúng thư mục lưu trữ (file.upload-dir).
+ * Tên theo hash nội dung thì nội dung không bao giờ đổi, nên được cache vĩnh viễn.
+ * Khi lưu trên S3, URL /uploads/{name} vẫn giữ nguyên và được chuyển hướng tới bucket.
+ */
+@Service
+public class UploadServingService {
+
+    // Chỉ chấp nhận tên phẳng, không có "/" hay ".." để không thoát ra ngoài thư mục upload
+    private static final Pattern SAFE_NAME = Pattern.compile("^[A-Za-z0-9][A-Za-z0-9._-]{0,199}$");
+    // <sha256>[_<width>].<ext>
+    private static final Pattern CONTENT_NAME = Pattern.compile("^([0-9a-f]{64})(_\\d+)?(\\.[a-z0-9]{1,5})?$");
+
+    private final FileStorageService fileStorageService;
+    private final StoredBlobRepository storedBlobRepository;
+    private final BlobStore blobStore;
+
+    public UploadServingService(FileStorageService fileStorageService, StoredBlobRepository storedBlobRepository,
+            BlobStore blobStore) {
+        this.fileStorageService = fileStorageService;
+        this.storedBlobRepository = storedBlobRepository;
+        this.blobStore = blobStore;
+    }
+
+    /**
+     * Trả về null nếu tên không hợp lệ hoặc không có file. Biến thể kích thước chưa sinh xong
+     * thì trả file gốc nhưng không đánh dấu immutable, để client lấy lại bản nhỏ sau.
+     */
+    public ResolvedUpload resolve(String fileName) throws IOException {
+        if (fileName == null || !SAFE_NAME.matcher(fileName).matches()) {
+            return null;
+        }
+        Matcher content = CONTENT_NAME.matcher(fileName);
+        boolean contentAddressed = content.matches();
+        if (blobStore.publicUrl(fileName) != null) {
+            return resolveRemote(fileName, content, contentAddressed);
+        }
+
+        Path root = fileStorageService.getUploadPath();
+        Path path = root.resolve(fileName).normalize();
+        if (!path.getParent().equals(root)) {
+            return null;
+        }
+        if (Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS)) {
+            return describe(path, fileName, contentAddressed);
+        }
+        if (contentAddressed && content.group(2) != null) {
+            StoredBlob original = storedBlobRepository.findById(content.group(1)).orElse(null);
+            if (original != null) {
+                Path originalPath = root.resolve(original.getFileName());
+                if (Files.isRegularFile(originalPath, LinkOption.NOFOLLOW_LINKS)) {
+                    return describe(originalPath, original.getFileName(), false);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Store từ xa (S3): chuyển hướng tới URL công khai của object. Biến thể chưa sinh
+     * (không có trong stored_blobs.variants) thì chuyển tới ảnh gốc, không immutable.
+     */
+    private ResolvedUpload resolveRemote(String fileName, Matcher content, boolean contentAddressed) {
+        if (contentAddressed && content.group(2) != null) {
+            StoredBlob original = storedBlobRepository.findById(content.group(1)).orElse(null);
+            if (original == null) {
+                return null;
+            }
+            if (!ImageSizes.of(original.getFileName(), original.getVariants()).containsValue(fileName)) {
+                return ResolvedUpload.redirect(blobStore.publicUrl(original.getFileName()), false);
+            }
+        }
+        return ResolvedUpload.redirect(blobStore.publicUrl(fileName), contentAddressed);
+    }
+
+    private ResolvedUpload describe(Path path, String fileName, boolean immutable) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        // Tên theo hash: ETag mạnh chính là tên file. Tên cũ (UUID): theo kích thước + thời gian sửa
+        String etag = immutable
+                ? "\"" + fileName + "\""
+                : "\"" + Long.toHexString(attributes.size()) + "-" + Long.toHexString(lastModified) + "\"";
+        MediaType contentType = MediaTypeFactory.getMediaType(fileName).orElse(MediaType.APPLICATION_OCTET_STREAM);
+        return new ResolvedUpload(path, fileName, attributes.size(), lastModified, etag, contentType, immutable,
+                null);
+    }
+
+    // redirectUrl khác null: file không nằm trên đĩa cục bộ, client tải từ URL đó
+    public record ResolvedUpload(Path path, String fileName, long length, long lastModified, String etag,
+            MediaType contentType, boolean immutable, String redirectUrl) {
+
+        static ResolvedUpload redirect(String url, boolean immutable) {
+            return new ResolvedUpload(null, null, -1, -1, null, null, immutable, url);
+        }
+    }
+}
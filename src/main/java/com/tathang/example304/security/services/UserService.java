@@ -2,7 +2,9 @@ package com.tathang.example304.security.services;
 
 import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
+import com.tathang.example304.model.BlobReference;
 import com.tathang.example304.model.ERole;
 import com.tathang.example304.model.Role;
 import com.tathang.example304.model.User;
@@ -19,11 +21,14 @@ public class UserService {
     private final UserRepository userRepository;
     private final RoleRepository roleRepository;
     private final PasswordEncoder passwordEncoder;
+    private final BlobReferenceService blobReferenceService;
 
-    public UserService(UserRepository userRepository, RoleRepository roleRepository, PasswordEncoder passwordEncoder) {
+    public UserService(UserRepository userRepository, RoleRepository roleRepository, PasswordEncoder passwordEncoder,
+            BlobReferenceService blobReferenceService) {
         this.userRepository = userRepository;
         this.roleRepository = roleRepository;
         this.passwordEncoder = passwordEncoder;
+        this.blobReferenceService = blobReferenceService;
     }
 
     public List<User> getAllStaffs() {
@@ -31,6 +36,7 @@ public class UserService {
                 List.of(ERole.ROLE_USER, ERole.ROLE_ADMIN));
     }
 
+    @Transactional
     public User createStaff(String username, String email, String password, String fullName,
             String phone, String address, String imageUrl, List<String> roles) {
         if (userRepository.existsByUsername(username)) {
@@ -63,9 +69,12 @@ public class UserService {
         }
         user.setRoles(roleSet);
 
-        return userRepository.save(user);
+        User saved = userRepository.save(user);
+        blobReferenceService.track(BlobReference.OwnerType.USER, saved.getId(), imageUrl);
+        return saved;
     }
 
+    @Transactional
     public User updateStaff(Long id, String username, String email, String password,
             String fullName, String phone, String address, String imageUrl, List<String> roles) {
         User user = userRepository.findById(id)
@@ -103,7 +112,29 @@ public class UserService {
         }
         user.setRoles(roleSet);
 
-        return userRepository.save(user);
+        User saved = userRepository.save(user);
+        if (imageUrl != null) {
+            blobReferenceService.track(BlobReference.OwnerType.USER, id, imageUrl);
+        }
+        return saved;
+    }
+
+    // Người dùng tự sửa hồ sơ (PUT /api/auth/me)
+    @Transactional
+    public User updateProfile(Long id, String fullName, String email, String phone, String address,
+            String imageUrl) {
+        User user = userRepository.findById(id)
+                .orElseThrow(() -> new RuntimeException("User not found"));
+
+        user.setFullName(fullName);
+        user.setEmail(email);
+        user.setPhone(phone);
+        user.setAddress(address);
+        user.setImageUrl(imageUrl);
+
+        User saved = userRepository.save(user);
+        blobReferenceService.track(BlobReference.OwnerType.USER, id, imageUrl);
+        return saved;
     }
 
     public User toggleUserStatus(Long id, Boolean isActive) {
@@ -118,9 +149,11 @@ public class UserService {
                 .orElseThrow(() -> new RuntimeException("User không tồn tại với ID: " + id));
     }
 
+    @Transactional
     public boolean deleteUser(Long id) {
         if (userRepository.existsById(id)) {
             userRepository.deleteById(id);
+            blobReferenceService.release(BlobReference.OwnerType.USER, id);
             return true;
         }
         return false;
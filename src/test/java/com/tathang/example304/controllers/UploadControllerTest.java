@@ -0,0 +1,195 @@
+package com.tathang.example304.controllers;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import com.tathang.example304.security.services.UploadCache;
+import com.tathang.example304.security.services.UploadServingService;
+import com.tathang.example304.security.services.UploadServingService.ResolvedUpload;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Range / If-Range của /uploads: parseRange trực tiếp, If-Range qua controller với file thật
+ * (cache tắt để đi đường đọc file). Kèm kiểm tra file không phải ảnh/media bị trả dạng tải về.
+ */
+class UploadControllerTest {
+
+    private static final long LENGTH = 1000;
+    private static final String ETAG = "\"abc123\"";
+    private static final long LAST_MODIFIED = 1_700_000_000_000L;
+
+    @TempDir
+    Path dir;
+
+    private UploadController controller;
+    private byte[] content;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        content = new byte[(int) LENGTH];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        Path file = Files.write(dir.resolve("abc123.bin"), content);
+        UploadServingService servingService = mock(UploadServingService.class);
+        when(servingService.resolve("abc123.bin")).thenReturn(new ResolvedUpload(file, "abc123.bin", LENGTH,
+                LAST_MODIFIED, ETAG, MediaType.APPLICATION_OCTET_STREAM, true, null));
+        Path page = Files.writeString(dir.resolve("page.html"), "<script>alert(1)</script>");
+        when(servingService.resolve("page.html")).thenReturn(new ResolvedUpload(page, "page.html", Files.size(page),
+                LAST_MODIFIED, "\"page\"", MediaType.TEXT_HTML, false, null));
+        controller = new UploadController(servingService, new UploadCache(0, 0));
+    }
+
+    // === parseRange ===
+
+    @Test
+    void parsesClosedRange() {
+        assertArrayEquals(new long[] { 0, 99 }, UploadController.parseRange("bytes=0-99", LENGTH));
+        // Cuối đoạn vượt quá file thì cắt về byte cuối
+        assertArrayEquals(new long[] { 900, 999 }, UploadController.parseRange("bytes=900-5000", LENGTH));
+    }
+
+    @Test
+    void parsesOpenEndedRange() {
+        assertArrayEquals(new long[] { 900, 999 }, UploadController.parseRange("bytes=900-", LENGTH));
+        assertArrayEquals(new long[] { 999, 999 }, UploadController.parseRange("bytes=999-", LENGTH));
+    }
+
+    @Test
+    void parsesSuffixRange() {
+        assertArrayEquals(new long[] { 900, 999 }, UploadController.parseRange("bytes=-100", LENGTH));
+        // Đòi nhiều hơn kích thước file thì trả cả file
+        assertArrayEquals(new long[] { 0, 999 }, UploadController.parseRange("bytes=-5000", LENGTH));
+    }
+
+    @Test
+    void rejectsUnsatisfiableRange() {
+        assertNull(UploadController.parseRange("bytes=1000-", LENGTH));
+        assertNull(UploadController.parseRange("bytes=2000-3000", LENGTH));
+        assertNull(UploadController.parseRange("bytes=-0", LENGTH));
+        assertNull(UploadController.parseRange("bytes=-10", 0));
+    }
+
+    @Test
+    void ignoresMultiRangeAndMalformedHeaders() {
+        assertEquals(0, UploadController.parseRange("bytes=0-1,5-6", LENGTH).length);
+        assertEquals(0, UploadController.parseRange("items=0-1", LENGTH).length);
+        assertEquals(0, UploadController.parseRange("bytes=abc", LENGTH).length);
+        assertEquals(0, UploadController.parseRange("bytes=x-5", LENGTH).length);
+        assertEquals(0, UploadController.parseRange("bytes=5-2", LENGTH).length);
+    }
+
+    // === Controller ===
+
+    @Test
+    void servesPartialContent() throws Exception {
+        MockHttpServletResponse response = get("bytes=10-19", null);
+
+        assertEquals(206, response.getStatus());
+        assertEquals("bytes 10-19/1000", response.getHeader(HttpHeaders.CONTENT_RANGE));
+        assertArrayEquals(Arrays.copyOfRange(content, 10, 20), response.getContentAsByteArray());
+    }
+
+    @Test
+    void answersUnsatisfiableRangeWith416() throws Exception {
+        MockHttpServletResponse response = get("bytes=5000-", null);
+
+        assertEquals(416, response.getStatus());
+        assertEquals("bytes */1000", response.getHeader(HttpHeaders.CONTENT_RANGE));
+    }
+
+    @Test
+    void multiRangeFallsBackToFullBody() throws Exception {
+        MockHttpServletResponse response = get("bytes=0-1,5-6", null);
+
+        assertEquals(200, response.getStatus());
+        assertArrayEquals(content, response.getContentAsByteArray());
+    }
+
+    @Test
+    void ifRangeWithMatchingEtagKeepsRange() throws Exception {
+        MockHttpServletResponse response = get("bytes=0-9", ETAG);
+
+        assertEquals(206, response.getStatus());
+        assertEquals(10, response.getContentAsByteArray().length);
+    }
+
+    @Test
+    void ifRangeWithOtherEtagSendsWholeFile() throws Exception {
+        MockHttpServletResponse response = get("bytes=0-9", "\"other\"");
+
+        assertEquals(200, response.getStatus());
+        assertNull(response.getHeader(HttpHeaders.CONTENT_RANGE));
+        assertArrayEquals(content, response.getContentAsByteArray());
+    }
+
+    @Test
+    void ifRangeWithDateComparesLastModified() throws Exception {
+        MockHttpServletRequest unchanged = request("bytes=0-9");
+        unchanged.addHeader(HttpHeaders.IF_RANGE, LAST_MODIFIED);
+        assertEquals(206, serve(unchanged).getStatus());
+
+        MockHttpServletRequest older = request("bytes=0-9");
+        older.addHeader(HttpHeaders.IF_RANGE, LAST_MODIFIED - 60_000);
+        assertEquals(200, serve(older).getStatus());
+    }
+
+    // === Nội dung không an toàn ===
+
+    @Test
+    void htmlIsServedAsAttachment() throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        controller.serve("page.html", new MockHttpServletRequest("GET", "/uploads/page.html"), response);
+
+        assertEquals(200, response.getStatus());
+        assertEquals("attachment", response.getHeader(HttpHeaders.CONTENT_DISPOSITION));
+        assertEquals(MediaType.APPLICATION_OCTET_STREAM_VALUE, response.getContentType());
+        assertEquals("nosniff", response.getHeader("X-Content-Type-Options"));
+    }
+
+    @Test
+    void onlyRasterImagesAndMediaAreInline() {
+        assertTrue(UploadController.isInlineSafe(MediaType.IMAGE_JPEG));
+        assertTrue(UploadController.isInlineSafe(MediaType.parseMediaType("video/mp4")));
+        assertTrue(UploadController.isInlineSafe(MediaType.parseMediaType("audio/mpeg")));
+        assertFalse(UploadController.isInlineSafe(MediaType.parseMediaType("image/svg+xml")));
+        assertFalse(UploadController.isInlineSafe(MediaType.TEXT_HTML));
+        assertFalse(UploadController.isInlineSafe(MediaType.parseMediaType("text/javascript")));
+    }
+
+    private MockHttpServletResponse get(String range, String ifRange) throws Exception {
+        MockHttpServletRequest request = request(range);
+        if (ifRange != null) {
+            request.addHeader(HttpHeaders.IF_RANGE, ifRange);
+        }
+        return serve(request);
+    }
+
+    private MockHttpServletRequest request(String range) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/uploads/abc123.bin");
+        request.addHeader(HttpHeaders.RANGE, range);
+        return request;
+    }
+
+    private MockHttpServletResponse serve(MockHttpServletRequest request) throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        controller.serve("abc123.bin", request, response);
+        return response;
+    }
+}
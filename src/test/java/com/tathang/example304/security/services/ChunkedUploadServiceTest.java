@@ -0,0 +1,119 @@
+package com.tathang.example304.security.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HexFormat;
+
+/**
+ * Phiên upload sống qua restart (service mới, cùng thư mục) và file .part bỏ dở bị dọn theo mtime.
+ */
+class ChunkedUploadServiceTest {
+
+    @TempDir
+    Path dir;
+
+    private FileStorageService fileStorageService;
+    private byte[] content;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        fileStorageService = mock(FileStorageService.class);
+        when(fileStorageService.getUploadPath()).thenReturn(dir);
+        when(fileStorageService.storeLocalFile(any(), any(), any())).thenReturn("/uploads/x.bin");
+        content = new byte[300_000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i * 31);
+        }
+    }
+
+    @Test
+    void resumesAfterRestart() throws Exception {
+        String sha = HexFormat.of().formatHex(FileStorageService.sha256().digest(content));
+        ChunkedUploadService before = newService();
+        String id = (String) before.init("video.mp4", content.length, sha).toMap().get("uploadId");
+        before.appendChunk(id, 0, chunk(0, 100_000));
+
+        // Node/tiến trình mới: chưa có gì trong bộ nhớ
+        ChunkedUploadService after = newService();
+        assertEquals(100_000L, after.get(id).toMap().get("offset"));
+        after.appendChunk(id, 100_000, chunk(100_000, content.length));
+
+        assertEquals("/uploads/x.bin", after.complete(id));
+        verify(fileStorageService).storeLocalFile(eq(dir.resolve(".sessions/" + id + ".part")), eq(sha),
+                eq("video.mp4"));
+        assertFalse(Files.exists(dir.resolve(".sessions/" + id + ".properties")));
+    }
+
+    @Test
+    void staleNodeCatchesUpWithSharedDisk() throws Exception {
+        ChunkedUploadService nodeA = newService();
+        ChunkedUploadService nodeB = newService();
+        String id = (String) nodeA.init("a.mp3", content.length, null).toMap().get("uploadId");
+        nodeA.appendChunk(id, 0, chunk(0, 1000));
+        nodeB.appendChunk(id, 1000, chunk(1000, 2000));
+
+        // nodeA còn giữ offset 1000 trong bộ nhớ nhưng phải thấy 2000 trên đĩa
+        ChunkedUploadService.OffsetMismatchException e = assertThrows(
+                ChunkedUploadService.OffsetMismatchException.class,
+                () -> nodeA.appendChunk(id, 1000, chunk(1000, 2000)));
+        assertEquals(2000, e.getExpectedOffset());
+    }
+
+    @Test
+    void expiresAbandonedPartsByModificationTime() throws Exception {
+        ChunkedUploadService service = newService();
+        String stale = (String) service.init("old.mp4", 10, null).toMap().get("uploadId");
+        String fresh = (String) service.init("new.mp4", 10, null).toMap().get("uploadId");
+        Path sessions = dir.resolve(".sessions");
+        // File còn sót từ lần chạy trước, không có trong map
+        Path leftover = Files.createFile(sessions.resolve("3f1c2a9e-0000-4000-8000-000000000000.part"));
+        FileTime old = FileTime.from(Instant.now().minus(Duration.ofHours(48)));
+        Files.setLastModifiedTime(sessions.resolve(stale + ".part"), old);
+        Files.setLastModifiedTime(leftover, old);
+
+        service.expireSessions();
+
+        assertFalse(Files.exists(sessions.resolve(stale + ".part")));
+        assertFalse(Files.exists(sessions.resolve(stale + ".properties")));
+        assertFalse(Files.exists(leftover));
+        assertTrue(Files.exists(sessions.resolve(fresh + ".part")));
+        assertThrows(IllegalArgumentException.class, () -> service.get(stale));
+    }
+
+    @Test
+    void rejectsIdsThatAreNotUuids() {
+        ChunkedUploadService service = newService();
+        assertThrows(IllegalArgumentException.class, () -> service.get("../../etc/passwd"));
+    }
+
+    private ChunkedUploadService newService() {
+        ChunkedUploadService service = new ChunkedUploadService(fileStorageService);
+        ReflectionTestUtils.setField(service, "maxSize", 1_000_000L);
+        ReflectionTestUtils.setField(service, "sessionTtlHours", 24L);
+        return service;
+    }
+
+    private ByteArrayInputStream chunk(int from, int to) {
+        return new ByteArrayInputStream(Arrays.copyOfRange(content, from, to));
+    }
+}
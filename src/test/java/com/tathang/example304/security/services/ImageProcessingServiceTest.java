@@ -0,0 +1,273 @@
+package com.tathang.example304.security.services;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.tathang.example304.security.services.ImageProcessingService.ImageFormat;
+import com.tathang.example304.security.services.ImageProcessingService.ProcessedImage;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Đọc kích thước từ header, bỏ metadata (giữ Orientation) và từ chối file cắt cụt.
+ * Fixture JPEG/PNG/GIF sinh bằng ImageIO rồi chèn metadata; WebP ghép tay theo cấu trúc RIFF
+ * (service không giải mã nên chỉ cần header đúng).
+ */
+class ImageProcessingServiceTest {
+
+    private static final byte[] XMP = "<x:xmpmeta>secret-location</x:xmpmeta>".getBytes(StandardCharsets.ISO_8859_1);
+
+    @TempDir
+    Path dir;
+
+    private final ImageProcessingService service = new ImageProcessingService(1, 4, 40_000_000, 12_000, 30);
+
+    @AfterEach
+    void tearDown() {
+        service.shutdown();
+    }
+
+    // === readDimensions ===
+
+    @Test
+    void readsDimensionsOfEveryFormat() throws Exception {
+        assertArrayEquals(new int[] { 7, 5 }, dimensions(ImageFormat.JPEG, encode("jpg", 7, 5)));
+        assertArrayEquals(new int[] { 7, 5 }, dimensions(ImageFormat.PNG, encode("png", 7, 5)));
+        assertArrayEquals(new int[] { 7, 5 }, dimensions(ImageFormat.GIF, encode("gif", 7, 5)));
+        assertArrayEquals(new int[] { 640, 480 }, dimensions(ImageFormat.WEBP, webp(vp8x(0, 640, 480), vp8l(640, 480))));
+        assertArrayEquals(new int[] { 300, 200 }, dimensions(ImageFormat.WEBP, webp(vp8l(300, 200))));
+        assertArrayEquals(new int[] { 320, 240 }, dimensions(ImageFormat.WEBP, webp(vp8(320, 240))));
+    }
+
+    @Test
+    void truncatedHeaderHasNoDimensions() throws Exception {
+        assertNull(dimensions(ImageFormat.PNG, Arrays.copyOf(encode("png", 7, 5), 14)));
+        assertNull(dimensions(ImageFormat.GIF, Arrays.copyOf(encode("gif", 7, 5), 8)));
+        assertNull(dimensions(ImageFormat.WEBP, Arrays.copyOf(webp(vp8x(0, 640, 480)), 24)));
+        // JPEG hết dữ liệu trước SOF
+        byte[] jpeg = encode("jpg", 7, 5);
+        assertNull(dimensions(ImageFormat.JPEG, Arrays.copyOf(jpeg, 20)));
+    }
+
+    // === JPEG ===
+
+    @Test
+    void jpegKeepsOnlyOrientation() throws Exception {
+        byte[] jpeg = encode("jpg", 7, 5);
+        byte[] withMetadata = concat(Arrays.copyOf(jpeg, 2), app1(exif(6)), app1(concat(
+                "http://ns.adobe.com/xap/1.0/\0".getBytes(StandardCharsets.ISO_8859_1), XMP)),
+                Arrays.copyOfRange(jpeg, 2, jpeg.length));
+
+        byte[] cleaned = process(withMetadata, ImageFormat.JPEG);
+
+        assertFalse(contains(cleaned, "Cano".getBytes(StandardCharsets.ISO_8859_1)));
+        assertFalse(contains(cleaned, XMP));
+        assertTrue(contains(cleaned, orientationEntry(6)));
+        assertNotNull(ImageIO.read(new ByteArrayInputStream(cleaned)));
+    }
+
+    @Test
+    void jpegWithoutRotationDropsExifEntirely() throws Exception {
+        byte[] jpeg = encode("jpg", 7, 5);
+        byte[] withExif = concat(Arrays.copyOf(jpeg, 2), app1(exif(1)), Arrays.copyOfRange(jpeg, 2, jpeg.length));
+
+        assertFalse(contains(process(withExif, ImageFormat.JPEG), "Exif".getBytes(StandardCharsets.ISO_8859_1)));
+    }
+
+    // === WebP ===
+
+    @Test
+    void webpDropsXmpAndKeepsOrientation() throws Exception {
+        byte[] tiff = Arrays.copyOfRange(exif(8), 6, exif(8).length);
+        byte[] source = webp(vp8x(0x08 | 0x04, 640, 480), vp8l(640, 480), chunk("EXIF", tiff), chunk("XMP ", XMP));
+
+        byte[] cleaned = process(source, ImageFormat.WEBP);
+
+        assertFalse(contains(cleaned, XMP));
+        assertFalse(contains(cleaned, "Cano".getBytes(StandardCharsets.ISO_8859_1)));
+        assertTrue(contains(cleaned, orientationEntry(8)));
+        // Cờ VP8X: còn EXIF, hết XMP; kích thước RIFF khớp file mới
+        assertEquals(0x08, cleaned[20] & 0xFF);
+        assertEquals(cleaned.length - 8, readIntLe(cleaned, 4));
+        assertArrayEquals(new int[] { 640, 480 }, dimensions(ImageFormat.WEBP, cleaned));
+    }
+
+    @Test
+    void webpWithoutRotationClearsExifFlag() throws Exception {
+        byte[] tiff = Arrays.copyOfRange(exif(1), 6, exif(1).length);
+        byte[] cleaned = process(webp(vp8x(0x08, 64, 64), vp8l(64, 64), chunk("EXIF", tiff)), ImageFormat.WEBP);
+
+        assertFalse(contains(cleaned, "EXIF".getBytes(StandardCharsets.ISO_8859_1)));
+        assertEquals(0, cleaned[20] & 0xFF);
+        assertEquals(cleaned.length - 8, readIntLe(cleaned, 4));
+    }
+
+    @Test
+    void truncatedWebpIsRejected() throws Exception {
+        byte[] source = webp(vp8x(0, 640, 480), vp8l(640, 480), chunk("XMP ", XMP));
+        byte[] truncated = Arrays.copyOf(source, source.length - 10);
+
+        assertThrows(IllegalArgumentException.class, () -> process(truncated, ImageFormat.WEBP));
+    }
+
+    // === GIF ===
+
+    @Test
+    void gifDropsCommentsAndXmpButKeepsLooping() throws Exception {
+        byte[] gif = encode("gif", 7, 5);
+        int trailer = gif.length - 1;
+        byte[] comment = concat(new byte[] { 0x21, (byte) 0xFE, 6 }, "secret".getBytes(StandardCharsets.ISO_8859_1),
+                new byte[] { 0 });
+        byte[] xmp = concat(new byte[] { 0x21, (byte) 0xFF, 11 }, "XMP DataXMP".getBytes(StandardCharsets.ISO_8859_1),
+                new byte[] { (byte) XMP.length }, XMP, new byte[] { 0 });
+        byte[] loop = concat(new byte[] { 0x21, (byte) 0xFF, 11 }, "NETSCAPE2.0".getBytes(StandardCharsets.ISO_8859_1),
+                new byte[] { 3, 1, 0, 0, 0 });
+        int firstBlock = firstGifBlock(gif);
+        byte[] source = concat(Arrays.copyOf(gif, firstBlock), loop, comment, xmp,
+                Arrays.copyOfRange(gif, firstBlock, trailer), comment, new byte[] { 0x3B },
+                "appended-payload".getBytes(StandardCharsets.ISO_8859_1));
+
+        byte[] cleaned = process(source, ImageFormat.GIF);
+
+        assertFalse(contains(cleaned, "secret".getBytes(StandardCharsets.ISO_8859_1)));
+        assertFalse(contains(cleaned, XMP));
+        assertFalse(contains(cleaned, "appended".getBytes(StandardCharsets.ISO_8859_1)));
+        assertTrue(contains(cleaned, "NETSCAPE2.0".getBytes(StandardCharsets.ISO_8859_1)));
+        assertEquals(0x3B, cleaned[cleaned.length - 1]);
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(cleaned));
+        assertEquals(7, image.getWidth());
+    }
+
+    @Test
+    void truncatedGifIsRejected() throws Exception {
+        byte[] gif = encode("gif", 7, 5);
+        byte[] truncated = Arrays.copyOf(gif, gif.length - 4);
+
+        assertThrows(IllegalArgumentException.class, () -> process(truncated, ImageFormat.GIF));
+    }
+
+    // === FIXTURES ===
+
+    private int[] dimensions(ImageFormat format, byte[] bytes) throws Exception {
+        return ImageProcessingService.readDimensions(format, write(bytes));
+    }
+
+    private byte[] process(byte[] bytes, ImageFormat expected) throws Exception {
+        ProcessedImage image = service.process(write(bytes));
+        assertEquals(expected, image.format());
+        return Files.readAllBytes(image.file());
+    }
+
+    private Path write(byte[] bytes) throws Exception {
+        return Files.write(Files.createTempFile(dir, "image", ".bin"), bytes);
+    }
+
+    private static byte[] encode(String format, int width, int height) throws Exception {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(1, 1, 0xFF0000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(ImageIO.write(image, format, out));
+        return out.toByteArray();
+    }
+
+    // EXIF big-endian: IFD0 gồm Make = "Cano" (ASCII 4 byte, nằm gọn trong entry) và Orientation
+    private static byte[] exif(int orientation) {
+        return new byte[] {
+                'E', 'x', 'i', 'f', 0, 0,
+                'M', 'M', 0, 0x2A, 0, 0, 0, 8,
+                0, 2,
+                0x01, 0x0F, 0, 2, 0, 0, 0, 4, 'C', 'a', 'n', 'o',
+                0x01, 0x12, 0, 3, 0, 0, 0, 1, 0, (byte) orientation, 0, 0,
+                0, 0, 0, 0 };
+    }
+
+    private static byte[] orientationEntry(int orientation) {
+        return new byte[] { 0x01, 0x12, 0, 3, 0, 0, 0, 1, 0, (byte) orientation };
+    }
+
+    private static byte[] app1(byte[] payload) {
+        int length = payload.length + 2;
+        return concat(new byte[] { (byte) 0xFF, (byte) 0xE1, (byte) (length >> 8), (byte) length }, payload);
+    }
+
+    private static byte[] webp(byte[]... chunks) {
+        byte[] body = concat(chunks);
+        return concat("RIFF".getBytes(StandardCharsets.ISO_8859_1), intLe(4 + body.length),
+                "WEBP".getBytes(StandardCharsets.ISO_8859_1), body);
+    }
+
+    private static byte[] chunk(String type, byte[] payload) {
+        byte[] padding = new byte[payload.length & 1];
+        return concat(type.getBytes(StandardCharsets.ISO_8859_1), intLe(payload.length), payload, padding);
+    }
+
+    private static byte[] vp8x(int flags, int width, int height) {
+        return chunk("VP8X", concat(new byte[] { (byte) flags, 0, 0, 0 }, int24Le(width - 1), int24Le(height - 1)));
+    }
+
+    private static byte[] vp8l(int width, int height) {
+        long bits = (width - 1) | ((long) (height - 1) << 14);
+        return chunk("VP8L", new byte[] { 0x2F, (byte) bits, (byte) (bits >> 8), (byte) (bits >> 16),
+                (byte) (bits >> 24), 0 });
+    }
+
+    private static byte[] vp8(int width, int height) {
+        return chunk("VP8 ", new byte[] { 0, 0, 0, (byte) 0x9D, 0x01, 0x2A, (byte) width, (byte) (width >> 8),
+                (byte) height, (byte) (height >> 8) });
+    }
+
+    // Vị trí block đầu tiên sau header, logical screen descriptor và bảng màu toàn cục
+    private static int firstGifBlock(byte[] gif) {
+        int packed = gif[10] & 0xFF;
+        return 13 + ((packed & 0x80) != 0 ? 3 * (1 << ((packed & 0x07) + 1)) : 0);
+    }
+
+    private static byte[] intLe(int value) {
+        return new byte[] { (byte) value, (byte) (value >> 8), (byte) (value >> 16), (byte) (value >> 24) };
+    }
+
+    private static byte[] int24Le(int value) {
+        return new byte[] { (byte) value, (byte) (value >> 8), (byte) (value >> 16) };
+    }
+
+    private static int readIntLe(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8 | (bytes[offset + 2] & 0xFF) << 16
+                | (bytes[offset + 3] & 0xFF) << 24;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.writeBytes(part);
+        }
+        return out.toByteArray();
+    }
+
+    private static boolean contains(byte[] haystack, byte[] needle) {
+        outer: for (int i = 0; i + needle.length <= haystack.length; i++) {
+            for (int j = 0; j < needle.length; j++) {
+                if (haystack[i + j] != needle[j]) {
+                    continue outer;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,174 @@
+package com.tathang.example304.security.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import com.tathang.example304.model.Order;
+import com.tathang.example304.model.Product;
+import com.tathang.example304.model.User;
+import com.tathang.example304.repository.OrderRepository;
+import com.tathang.example304.repository.ProductRepository;
+import com.tathang.example304.repository.UserRepository;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Nhiều khách cùng mua những đơn vị cuối cùng: tồn kho không bao giờ âm và tổng số lượng
+ * bán ra đúng bằng tồn kho ban đầu.
+ */
+@SpringBootTest
+class OrderServiceConcurrencyTest {
+
+    private static final int THREADS = 32;
+
+    @Autowired
+    private OrderService orderService;
+
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private ProductRepository productRepository;
+
+    @Autowired
+    private OrderRepository orderRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    private User user;
+    private Product product;
+    private final List<Long> orderIds = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        String suffix = Long.toString(System.nanoTime() % 1_000_000_000L, 36);
+        user = userRepository.save(new User("stock-" + suffix, "stock-" + suffix + "@example.com", "x"));
+        product = new Product("Stock test " + suffix, new BigDecimal("10.00"), null);
+        product.setArchive(false);
+        for (int i = 0; i < THREADS; i++) {
+            Order order = new Order(user);
+            order.setTotalAmount(BigDecimal.ZERO);
+            orderIds.add(orderRepository.save(order).getId());
+        }
+    }
+
+    @AfterEach
+    void tearDown() {
+        for (Long orderId : orderIds) {
+            jdbcTemplate.update("DELETE FROM stock_reservations WHERE order_id = ?", orderId);
+            jdbcTemplate.update("DELETE FROM order_items WHERE order_id = ?", orderId);
+            jdbcTemplate.update("DELETE FROM orders WHERE id = ?", orderId);
+        }
+        if (product.getId() != null) {
+            jdbcTemplate.update("DELETE FROM catalog_changes WHERE entity_type = 'PRODUCT' AND entity_id = ?",
+                    product.getId());
+            jdbcTemplate.update("DELETE FROM catalog_view WHERE product_id = ?", product.getId());
+            jdbcTemplate.update("DELETE FROM products WHERE id = ?", product.getId());
+        }
+        jdbcTemplate.update("DELETE FROM users WHERE id = ?", user.getId());
+    }
+
+    @Test
+    void lastUnitsAreNotOversoldWhenAddingItems() throws Exception {
+        product.setStockQuantity(5);
+        product = productRepository.save(product);
+
+        int sold = race(orderId -> orderService.addItemToOrder(orderId, product.getId(), 1));
+
+        assertEquals(5, sold);
+        assertEquals(0, stock());
+        assertEquals(5, quantityInOrders());
+    }
+
+    @Test
+    void lastUnitsAreNotOversoldWhenIncreasingQuantity() throws Exception {
+        product.setStockQuantity(THREADS + 7);
+        product = productRepository.save(product);
+        for (Long orderId : orderIds) {
+            orderService.addItemToOrder(orderId, product.getId(), 1);
+        }
+
+        // Còn 7 đơn vị, mỗi đơn muốn tăng từ 1 lên 3
+        int sold = race(orderId -> orderService.updateOrderItemQuantity(orderId, product.getId(), 3));
+
+        assertEquals(3, sold);
+        assertEquals(1, stock());
+        assertEquals(THREADS + 6, quantityInOrders());
+    }
+
+    @Test
+    void removingItemsReturnsStock() throws Exception {
+        product.setStockQuantity(THREADS);
+        product = productRepository.save(product);
+        for (Long orderId : orderIds) {
+            orderService.addItemToOrder(orderId, product.getId(), 1);
+        }
+
+        int removed = race(orderId -> orderService.removeItemFromOrder(orderId, product.getId()));
+
+        assertEquals(THREADS, removed);
+        assertEquals(THREADS, stock());
+        assertEquals(0, quantityInOrders());
+    }
+
+    // Mỗi luồng thao tác trên một order riêng, cùng xuất phát một lúc; trả về số lần thành công
+    private int race(OrderAction action) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (Long orderId : orderIds) {
+                results.add(pool.submit(() -> {
+                    start.await();
+                    try {
+                        action.run(orderId);
+                        return true;
+                    } catch (RuntimeException e) {
+                        assertEquals("Insufficient stock", e.getMessage());
+                        return false;
+                    }
+                }));
+            }
+            start.countDown();
+            int succeeded = 0;
+            for (Future<Boolean> result : results) {
+                if (result.get(60, TimeUnit.SECONDS)) {
+                    succeeded++;
+                }
+            }
+            return succeeded;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private int stock() {
+        return jdbcTemplate.queryForObject("SELECT stock_quantity FROM products WHERE id = ?", Integer.class,
+                product.getId());
+    }
+
+    private int quantityInOrders() {
+        return jdbcTemplate.queryForObject(
+                "SELECT COALESCE(SUM(quantity), 0) FROM order_items WHERE product_id = ?", Integer.class,
+                product.getId());
+    }
+
+    @FunctionalInterface
+    private interface OrderAction {
+        void run(Long orderId);
+    }
+}
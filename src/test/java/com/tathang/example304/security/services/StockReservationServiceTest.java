@@ -0,0 +1,221 @@
+package com.tathang.example304.security.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import com.tathang.example304.model.Order;
+import com.tathang.example304.model.Product;
+import com.tathang.example304.model.User;
+import com.tathang.example304.repository.OrderRepository;
+import com.tathang.example304.repository.ProductRepository;
+import com.tathang.example304.repository.UserRepository;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+
+/**
+ * Giữ hàng theo hạn: đơn bỏ dở bị hủy và trả hàng, đơn đang thanh toán được gia hạn nhưng không
+ * quá payment-max-hold-minutes, tiền về muộn thì trừ lại tồn kho; khách hủy đơn thì trả hàng ngay và
+ * không sửa giỏ được nữa.
+ * Sweeper tự động tắt (chu kỳ rất dài) để test tự gọi reconcile/sweep.
+ */
+@SpringBootTest(properties = { "stock.reservation.sweep-ms=3600000", "stock.reservation.reconcile-ms=3600000" })
+class StockReservationServiceTest {
+
+    private static final int STOCK = 10;
+
+    @Autowired
+    private StockReservationService stockReservationService;
+
+    @Autowired
+    private OrderService orderService;
+
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private ProductRepository productRepository;
+
+    @Autowired
+    private OrderRepository orderRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    private User user;
+    private Product product;
+    private Long orderId;
+
+    @BeforeEach
+    void setUp() {
+        String suffix = Long.toString(System.nanoTime() % 1_000_000_000L, 36);
+        user = userRepository.save(new User("hold-" + suffix, "hold-" + suffix + "@example.com", "x"));
+        product = new Product("Hold test " + suffix, new BigDecimal("10.00"), null);
+        product.setArchive(false);
+        product.setStockQuantity(STOCK);
+        product = productRepository.save(product);
+        Order order = new Order(user);
+        order.setTotalAmount(BigDecimal.ZERO);
+        orderId = orderRepository.save(order).getId();
+        orderService.addItemToOrder(orderId, product.getId(), 3);
+    }
+
+    @AfterEach
+    void tearDown() {
+        jdbcTemplate.update("DELETE FROM stock_reservations WHERE order_id = ?", orderId);
+        jdbcTemplate.update("DELETE FROM order_items WHERE order_id = ?", orderId);
+        jdbcTemplate.update("DELETE FROM orders WHERE id = ?", orderId);
+        jdbcTemplate.update("DELETE FROM catalog_changes WHERE entity_type = 'PRODUCT' AND entity_id = ?",
+                product.getId());
+        jdbcTemplate.update("DELETE FROM catalog_view WHERE product_id = ?", product.getId());
+        jdbcTemplate.update("DELETE FROM products WHERE id = ?", product.getId());
+        jdbcTemplate.update("DELETE FROM users WHERE id = ?", user.getId());
+    }
+
+    @Test
+    void expiredCartIsCancelledAndStockReturned() {
+        assertEquals(STOCK - 3, stock());
+
+        expireNow();
+
+        assertEquals("CANCELLED", status());
+        assertEquals(STOCK, stock());
+        assertEquals(0, reservedUnits());
+    }
+
+    @Test
+    void pendingPaymentIsExtendedUntilMaxHold() {
+        stockReservationService.extendForPayment(orderId);
+        LocalDateTime holdUntil = holdUntil();
+        assertTrue(holdUntil.isAfter(LocalDateTime.now()));
+        jdbcTemplate.update("UPDATE orders SET status = 'PENDING' WHERE id = ?", orderId);
+
+        // Hết hạn lần đầu: còn trong hold_until nên chỉ gia hạn, không vượt quá mốc đó
+        expireNow();
+        assertEquals("PENDING", status());
+        assertEquals(STOCK - 3, stock());
+        assertEquals(holdUntil, holdUntil());
+        assertFalse(expiresAt().isAfter(holdUntil));
+
+        // Webhook không bao giờ về: quá hold_until thì hủy và trả hàng
+        jdbcTemplate.update("UPDATE stock_reservations SET hold_until = ? WHERE order_id = ?",
+                Timestamp.valueOf(LocalDateTime.now().minusMinutes(1)), orderId);
+        long timeouts = (Long) stockReservationService.stats().get("paymentTimeouts");
+        expireNow();
+
+        assertEquals("CANCELLED", status());
+        assertEquals(STOCK, stock());
+        assertEquals(0, reservedUnits());
+        assertEquals(timeouts + 1, stockReservationService.stats().get("paymentTimeouts"));
+    }
+
+    @Test
+    void repeatedCheckoutDoesNotMoveHoldLimit() {
+        stockReservationService.extendForPayment(orderId);
+        LocalDateTime holdUntil = holdUntil();
+
+        stockReservationService.extendForPayment(orderId);
+
+        assertEquals(holdUntil, holdUntil());
+    }
+
+    @Test
+    void latePaymentTakesStockBack() {
+        expireNow();
+        assertEquals(STOCK, stock());
+
+        // Tiền về sau khi đơn đã bị hủy vì hết hạn
+        stockReservationService.convert(orderId);
+
+        assertEquals(STOCK - 3, stock());
+        assertEquals(0, reservedUnits());
+    }
+
+    @Test
+    void paymentInTimeKeepsStockDeducted() {
+        stockReservationService.convert(orderId);
+        expireNow();
+
+        assertEquals("NEW", status());
+        assertEquals(STOCK - 3, stock());
+        assertEquals(0, reservedUnits());
+    }
+
+    @Test
+    void cancelReturnsStockAndBlocksLaterCartEdits() {
+        orderService.cancelOrder(orderId, user.getId());
+
+        assertEquals("CANCELLED", status());
+        assertEquals(STOCK, stock());
+        assertEquals(0, reservedUnits());
+        // Tab khác sửa giỏ sau khi đã hủy: bị từ chối, trạng thái không bị ghi lại thành NEW
+        assertThrows(RuntimeException.class, () -> orderService.addItemToOrder(orderId, product.getId(), 1));
+        assertEquals("CANCELLED", status());
+        assertEquals(STOCK, stock());
+    }
+
+    @Test
+    void paidOrderCannotBeCancelled() {
+        jdbcTemplate.update("UPDATE orders SET status = 'PAID' WHERE id = ?", orderId);
+
+        assertThrows(IllegalStateException.class, () -> orderService.cancelOrder(orderId, user.getId()));
+        assertEquals("PAID", status());
+        assertThrows(SecurityException.class, () -> orderService.cancelOrder(orderId, user.getId() + 1));
+    }
+
+    @Test
+    void cartEditsKeepTotalInSync() {
+        orderService.updateOrderItemQuantity(orderId, product.getId(), 5);
+        assertEquals(0, new BigDecimal("50.00").compareTo(total()));
+
+        orderService.removeItemFromOrder(orderId, product.getId());
+        assertEquals(0, BigDecimal.ZERO.compareTo(total()));
+    }
+
+    // Đưa hạn giữ hàng về quá khứ rồi chạy reconcile + sweep như scheduler
+    private void expireNow() {
+        jdbcTemplate.update("UPDATE stock_reservations SET expires_at = ? WHERE order_id = ?",
+                Timestamp.valueOf(LocalDateTime.now().minusSeconds(1)), orderId);
+        stockReservationService.reconcile();
+        stockReservationService.sweep();
+    }
+
+    private String status() {
+        return jdbcTemplate.queryForObject("SELECT status FROM orders WHERE id = ?", String.class, orderId);
+    }
+
+    private BigDecimal total() {
+        return jdbcTemplate.queryForObject("SELECT total_amount FROM orders WHERE id = ?", BigDecimal.class, orderId);
+    }
+
+    private int stock() {
+        return jdbcTemplate.queryForObject("SELECT stock_quantity FROM products WHERE id = ?", Integer.class,
+                product.getId());
+    }
+
+    private int reservedUnits() {
+        return jdbcTemplate.queryForObject(
+                "SELECT COALESCE(SUM(quantity), 0) FROM stock_reservations WHERE order_id = ?", Integer.class,
+                orderId);
+    }
+
+    private LocalDateTime holdUntil() {
+        return jdbcTemplate.queryForObject("SELECT MIN(hold_until) FROM stock_reservations WHERE order_id = ?",
+                Timestamp.class, orderId).toLocalDateTime();
+    }
+
+    private LocalDateTime expiresAt() {
+        return jdbcTemplate.queryForObject("SELECT MIN(expires_at) FROM stock_reservations WHERE order_id = ?",
+                Timestamp.class, orderId).toLocalDateTime();
+    }
+}
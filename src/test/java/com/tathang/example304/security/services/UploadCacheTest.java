@@ -0,0 +1,94 @@
+package com.tathang.example304.security.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.MediaType;
+
+import com.tathang.example304.security.services.UploadServingService.ResolvedUpload;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Nạp/đọc cache, lần đầu gặp file thì không cấp buffer, bỏ entry nạp trước một lần invalidate,
+ * và ngừng cấp direct buffer khi các buffer chưa được GC thu vượt ngân sách.
+ */
+class UploadCacheTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void servesLoadedEntry() throws Exception {
+        UploadCache cache = new UploadCache(10_000, 1_000);
+        ResolvedUpload upload = upload("a.jpg", 600);
+        cache.load("a.jpg", upload, cache.generation());
+
+        UploadCache.Entry loaded = cache.load("a.jpg", upload, cache.generation());
+
+        assertNotNull(loaded);
+        assertEquals(600, loaded.data().remaining());
+        assertSame(loaded, cache.get("a.jpg"));
+        assertEquals(1L, cache.stats().get("hits"));
+        assertEquals(600L, cache.stats().get("allocatedBytes"));
+    }
+
+    @Test
+    void firstRequestIsServedFromFile() throws Exception {
+        UploadCache cache = new UploadCache(10_000, 1_000);
+
+        assertNull(cache.load("a.jpg", upload("a.jpg", 600), cache.generation()));
+        assertEquals(0L, cache.stats().get("allocatedBytes"));
+        assertEquals(1L, cache.stats().get("firstRequests"));
+    }
+
+    @Test
+    void entryLoadedBeforeInvalidateIsNotCached() throws Exception {
+        UploadCache cache = new UploadCache(10_000, 1_000);
+        cache.load("a.jpg", upload("a.jpg", 600), cache.generation());
+        long generation = cache.generation();
+        cache.invalidate("a.jpg");
+
+        // Vẫn phục vụ được request hiện tại nhưng không vào cache
+        assertNotNull(cache.load("a.jpg", upload("a.jpg", 600), generation));
+        assertNull(cache.get("a.jpg"));
+    }
+
+    @Test
+    void skipsAllocationPastBudget() throws Exception {
+        UploadCache cache = new UploadCache(1_000, 1_000);
+        // Giữ tham chiếu để GC không thu buffer: 3 x 600 <= 2 x 1000, cái thứ tư vượt
+        List<UploadCache.Entry> held = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            String name = i + ".jpg";
+            cache.load(name, upload(name, 600), cache.generation());
+            held.add(cache.load(name, upload(name, 600), cache.generation()));
+        }
+
+        cache.load("3.jpg", upload("3.jpg", 600), cache.generation());
+        assertNull(cache.load("3.jpg", upload("3.jpg", 600), cache.generation()));
+        assertEquals(3, held.stream().filter(entry -> entry != null).count());
+        assertEquals(1L, cache.stats().get("allocationsSkipped"));
+        assertEquals(1800L, cache.stats().get("allocatedBytes"));
+    }
+
+    @Test
+    void ignoresFilesLargerThanEntryLimit() throws Exception {
+        UploadCache cache = new UploadCache(10_000, 500);
+
+        assertNull(cache.load("a.jpg", upload("a.jpg", 600), cache.generation()));
+        assertEquals(0L, cache.stats().get("allocatedBytes"));
+    }
+
+    private ResolvedUpload upload(String name, int size) throws Exception {
+        Path file = Files.write(dir.resolve(name), new byte[size]);
+        return new ResolvedUpload(file, name, size, 0, "\"" + name + "\"", MediaType.IMAGE_JPEG, true, null);
+    }
+}